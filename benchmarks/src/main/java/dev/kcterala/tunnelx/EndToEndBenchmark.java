@@ -0,0 +1,170 @@
+package dev.kcterala.tunnelx;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.kcterala.tunnelx.model.TunnelFrame;
+import dev.kcterala.tunnelx.model.TunnelMessage;
+import dev.kcterala.tunnelx.tunnel.FrameCodec;
+import dev.kcterala.tunnelx.tunnel.TunnelConnection;
+import dev.kcterala.tunnelx.tunnel.TunnelManager;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocket08FrameDecoder;
+import io.netty.handler.codec.http.websocketx.WebSocket08FrameEncoder;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One public HTTP request through the whole server: bytes in on a public connection, out as a
+ * WebSocket frame on a tunnel connection, answered by a scripted tunnel client, and back out as
+ * HTTP bytes. Both connections are {@link EmbeddedChannel}s with the pipeline
+ * {@link ServerInitializer} builds, so codecs, routing, admission and flow control are all in the
+ * measurement while the network is not.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = BenchmarkMain.QUIET_LOGGING)
+public class EndToEndBenchmark {
+    private static final String SUBDOMAIN = "bench";
+    private static final String UPGRADE = "GET /tunnel HTTP/1.1\r\n"
+            + "Host: localhost\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+            + "Sec-WebSocket-Version: 13\r\n\r\n";
+    private static final String REQUEST = "GET /api/items?page=2 HTTP/1.1\r\n"
+            + "Host: " + SUBDOMAIN + ".tunnel.example.com\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n"
+            + "Accept: application/json\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Cookie: session=4f1c2a9e8b7d6c5e4f3a2b1c0d9e8f7a\r\n\r\n";
+    private static final Map<String, String> RESPONSE_HEADERS = Map.of("Content-Type", "application/json");
+
+    @Param({"binary", "json"})
+    public String protocol;
+
+    @Param({"0", "16384"})
+    public int responseSize;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private TunnelManager tunnelManager;
+    private EmbeddedChannel publicChannel;
+    private EmbeddedChannel tunnelChannel;
+    /** The tunnel client's side of the WebSocket: masks what it sends, reads what the server sends. */
+    private EmbeddedChannel clientEncoder;
+    private EmbeddedChannel clientDecoder;
+    private ByteBuf request;
+    private ByteBuf responseBody;
+    private byte[] responseBytes;
+
+    @Setup
+    public void setUp() {
+        tunnelManager = new TunnelManager();
+        tunnelChannel = new EmbeddedChannel(new ServerInitializer(tunnelManager));
+        tunnelChannel.writeInbound(Unpooled.copiedBuffer(UPGRADE, CharsetUtil.US_ASCII));
+        drainOutbound(tunnelChannel);
+        // Registration is normally a JSON message checked against the auth token, which is environment-only
+        tunnelManager.registerTunnel(SUBDOMAIN, new TunnelConnection(SUBDOMAIN, tunnelChannel, tunnelManager,
+                "binary".equals(protocol), TimeUnit.SECONDS.toMillis(30)));
+
+        clientEncoder = new EmbeddedChannel(new WebSocket08FrameEncoder(true));
+        clientDecoder = new EmbeddedChannel(new WebSocket08FrameDecoder(false, true, 16 * 1024 * 1024));
+        publicChannel = new EmbeddedChannel(new ServerInitializer(tunnelManager));
+
+        request = Unpooled.unreleasableBuffer(Unpooled.copiedBuffer(REQUEST, CharsetUtil.US_ASCII));
+        responseBytes = new byte[responseSize];
+        responseBody = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(responseBytes));
+    }
+
+    @TearDown
+    public void tearDown() {
+        publicChannel.finishAndReleaseAll();
+        tunnelChannel.finishAndReleaseAll();
+        clientEncoder.finishAndReleaseAll();
+        clientDecoder.finishAndReleaseAll();
+    }
+
+    /** Returns the number of response bytes written to the public connection. */
+    @Benchmark
+    public long roundTrip() throws Exception {
+        publicChannel.writeInbound(request.duplicate());
+        publicChannel.runPendingTasks();
+        answerTunnelRequests();
+        tunnelChannel.runPendingTasks();
+        publicChannel.runPendingTasks();
+        return drainOutbound(publicChannel);
+    }
+
+    private void answerTunnelRequests() throws Exception {
+        Object out;
+        while ((out = tunnelChannel.readOutbound()) != null) {
+            clientDecoder.writeInbound(out);
+        }
+        WebSocketFrame frame;
+        while ((frame = clientDecoder.readInbound()) != null) {
+            try {
+                if (frame instanceof BinaryWebSocketFrame) {
+                    final TunnelFrame decoded = FrameCodec.decode(frame.content());
+                    decoded.getBody().release();
+                    if (decoded.getType() == TunnelFrame.TYPE_REQUEST) {
+                        sendToServer(new BinaryWebSocketFrame(FrameCodec.encodeResponse(ByteBufAllocator.DEFAULT,
+                                decoded.getStreamId(), 200, RESPONSE_HEADERS, responseBody.duplicate(), true)));
+                    }
+                } else if (frame instanceof TextWebSocketFrame text) {
+                    final TunnelMessage message = mapper.readValue(text.text(), TunnelMessage.class);
+                    final TunnelMessage response = new TunnelMessage();
+                    response.setType("response");
+                    response.setRequestId(message.getRequestId());
+                    response.setStatusCode(200);
+                    response.setHeaders(RESPONSE_HEADERS);
+                    response.setBody(responseBytes);
+                    sendToServer(new TextWebSocketFrame(mapper.writeValueAsString(response)));
+                }
+            } finally {
+                frame.release();
+            }
+        }
+    }
+
+    private void sendToServer(final WebSocketFrame frame) {
+        clientEncoder.writeOutbound(frame);
+        Object encoded;
+        while ((encoded = clientEncoder.readOutbound()) != null) {
+            tunnelChannel.writeInbound(encoded);
+        }
+    }
+
+    private static long drainOutbound(final EmbeddedChannel channel) {
+        long bytes = 0;
+        Object out;
+        while ((out = channel.readOutbound()) != null) {
+            if (out instanceof ByteBuf buf) {
+                bytes += buf.readableBytes();
+            }
+            ReferenceCountUtil.release(out);
+        }
+        return bytes;
+    }
+}
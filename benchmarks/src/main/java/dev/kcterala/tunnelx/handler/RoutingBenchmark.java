@@ -0,0 +1,71 @@
+package dev.kcterala.tunnelx.handler;
+
+import dev.kcterala.tunnelx.BenchmarkMain;
+import dev.kcterala.tunnelx.tunnel.TunnelConnection;
+import dev.kcterala.tunnelx.tunnel.TunnelManager;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Host parsing and routing of a public request, done for every request before anything else. The
+ * hosts cover a subdomain, a miss, a custom domain, a wildcard and the base domain, with the
+ * default {@code TUNNEL_DOMAIN} of {@code localhost}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = BenchmarkMain.QUIET_LOGGING)
+public class RoutingBenchmark {
+    @Param({"bench.localhost:8080", "missing.localhost:8080", "shop.example.com", "a.b.preview.example.org", "localhost:8080"})
+    public String host;
+
+    private TunnelManager tunnelManager;
+    private HttpRequest request;
+
+    @Setup
+    public void setUp() {
+        tunnelManager = new TunnelManager();
+        for (int i = 0; i < 1000; i++) {
+            final String subdomain = i == 0 ? "bench" : "app" + i;
+            tunnelManager.registerTunnel(subdomain, new TunnelConnection(subdomain, new EmbeddedChannel(), tunnelManager));
+        }
+        tunnelManager.getRouter().claim("app1", List.of("shop.example.com"));
+        tunnelManager.getRouter().claim("app2", List.of("*.preview.example.org"));
+        request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/api/items?page=2");
+        request.headers().set("Host", host);
+    }
+
+    @Benchmark
+    public TunnelConnection findTunnel() {
+        return HttpRequestHandler.findTunnel(tunnelManager, request);
+    }
+
+    @Benchmark
+    public boolean isMainDomain() {
+        return tunnelManager.getRouter().isMainDomain(host);
+    }
+
+    @Benchmark
+    public boolean isServerPath() {
+        return HttpRequestHandler.isServerPath(request.uri());
+    }
+}
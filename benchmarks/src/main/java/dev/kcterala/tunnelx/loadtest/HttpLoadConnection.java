@@ -0,0 +1,144 @@
+package dev.kcterala.tunnelx.loadtest;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One public keep-alive connection with a single request in flight.
+ *
+ * <p>In closed-loop mode the next request goes out as soon as the previous response is in. With a
+ * rate, requests follow a fixed schedule and latency is measured from the intended start rather
+ * than the actual send, so a stalled server is charged for the requests it held back instead of
+ * hiding them (coordinated omission).
+ */
+final class HttpLoadConnection extends SimpleChannelInboundHandler<FullHttpResponse> {
+    private static final int MAX_RESPONSE_BYTES = 64 * 1024 * 1024;
+
+    private final LoadTestOptions options;
+    private final Recorder recorder;
+    private final String host;
+    private final ByteBuf body;
+    private final long intervalNanos;
+    private volatile boolean running = true;
+    private long intendedStart;
+    private Channel channel;
+
+    private HttpLoadConnection(final LoadTestOptions options, final Recorder recorder, final String subdomain) {
+        this.options = options;
+        this.recorder = recorder;
+        this.host = subdomain + ".localhost:" + options.port;
+        this.body = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(new byte[options.requestBytes]));
+        this.intervalNanos = options.rate > 0 ? TimeUnit.SECONDS.toNanos(options.connections) / options.rate : 0;
+    }
+
+    /** Opens the connection and starts sending once it is up. */
+    static HttpLoadConnection open(final EventLoopGroup group, final LoadTestOptions options, final Recorder recorder,
+                                   final String subdomain) throws InterruptedException {
+        final HttpLoadConnection connection = new HttpLoadConnection(options, recorder, subdomain);
+        new Bootstrap().group(group).channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(final Channel ch) {
+                        ch.pipeline().addLast(
+                                new HttpClientCodec(),
+                                new HttpObjectAggregator(MAX_RESPONSE_BYTES),
+                                connection);
+                    }
+                })
+                .connect("localhost", options.port).sync();
+        return connection;
+    }
+
+    void stop() {
+        running = false;
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    @Override
+    public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+        channel = ctx.channel();
+        // Spread the first requests of a paced run over one interval instead of sending them together
+        final long offset = intervalNanos > 0 ? (long) (Math.random() * intervalNanos) : 0;
+        intendedStart = System.nanoTime() + offset;
+        schedule(ctx);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    protected void channelRead0(final ChannelHandlerContext ctx, final FullHttpResponse response) {
+        final long now = System.nanoTime();
+        recorder.recordResponse(now - intendedStart, response.status().code(),
+                options.requestBytes, response.content().readableBytes());
+        intendedStart = intervalNanos > 0 ? intendedStart + intervalNanos : now;
+        schedule(ctx);
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+        if (running) {
+            recorder.recordFailure();
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) {
+        ctx.close();
+    }
+
+    private void schedule(final ChannelHandlerContext ctx) {
+        if (!running) {
+            return;
+        }
+        final long delay = intendedStart - System.nanoTime();
+        if (delay > 0) {
+            ctx.executor().schedule(() -> send(ctx), delay, TimeUnit.NANOSECONDS);
+        } else {
+            send(ctx);
+        }
+    }
+
+    private void send(final ChannelHandlerContext ctx) {
+        if (!running) {
+            return;
+        }
+        if (intervalNanos == 0) {
+            intendedStart = System.nanoTime();
+        }
+        final FullHttpRequest request;
+        if (options.requestBytes > 0) {
+            request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/load", body.duplicate());
+            request.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_OCTET_STREAM);
+            request.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, options.requestBytes);
+        } else {
+            request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/load", Unpooled.EMPTY_BUFFER);
+        }
+        request.headers().set(HttpHeaderNames.HOST, host);
+        ctx.writeAndFlush(request).addListener(future -> {
+            if (!future.isSuccess()) {
+                recorder.recordFailure();
+                ctx.close();
+            }
+        });
+    }
+}
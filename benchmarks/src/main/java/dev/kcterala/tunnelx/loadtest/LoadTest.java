@@ -0,0 +1,190 @@
+package dev.kcterala.tunnelx.loadtest;
+
+import dev.kcterala.tunnelx.TunnelX;
+import dev.kcterala.tunnelx.metrics.LatencyHistogram;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end load test. Starts the server in this JVM, registers simulated tunnel clients over
+ * real sockets and drives public HTTP traffic through them, then reports throughput, latency
+ * percentiles, GC activity and the server threads' allocation rate.
+ *
+ * <p>Server settings come from the usual environment variables, so a run can be repeated with a
+ * different transport, window or limit without touching the harness.
+ */
+public final class LoadTest {
+    private static final long MIB = 1024 * 1024;
+
+    private LoadTest() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final LoadTestOptions options;
+        try {
+            options = LoadTestOptions.parse(args);
+        } catch (final IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(LoadTestOptions.USAGE);
+            System.exit(2);
+            return;
+        }
+        final String authToken = System.getenv("staticAuthToken");
+        if (authToken == null) {
+            System.err.println("Set staticAuthToken so the simulated clients can register");
+            System.exit(2);
+            return;
+        }
+        System.setProperty("org.slf4j.simpleLogger.defaultLogLevel",
+                System.getProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn"));
+        // Initialise logging here, before the server and client threads race to do it
+        LoggerFactory.getILoggerFactory();
+
+        final Thread server = new Thread(() -> {
+            try {
+                new TunnelX(options.port).start();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (final SSLException e) {
+                throw new IllegalStateException(e);
+            }
+        }, "loadtest-server");
+        server.setDaemon(true);
+        server.start();
+
+        final EventLoopGroup clients = new NioEventLoopGroup(options.clientThreads,
+                new DefaultThreadFactory("loadtest-client", true));
+        final Recorder recorder = new Recorder();
+        registerTunnels(clients, options, authToken);
+
+        final List<HttpLoadConnection> connections = new ArrayList<>(options.connections);
+        for (int i = 0; i < options.connections; i++) {
+            connections.add(HttpLoadConnection.open(clients, options, recorder, options.subdomain(i)));
+        }
+        System.out.printf("%d tunnels (%s, %s backend) on %d subdomains, %d connections, %s%n",
+                options.tunnels, options.binary ? "binary" : "json", options.echo ? "echo" : "fixed",
+                options.subdomains, options.connections,
+                options.rate > 0 ? options.rate + " req/s" : "closed loop");
+
+        System.out.printf("Warming up for %ds%n", options.warmupSeconds);
+        TimeUnit.SECONDS.sleep(options.warmupSeconds);
+        recorder.reset();
+
+        final Map<String, long[]> gcBefore = gcCounters();
+        final long allocatedBefore = serverAllocatedBytes();
+        final long start = System.nanoTime();
+        long lastRequests = 0;
+        for (int second = 1; second <= options.durationSeconds; second++) {
+            TimeUnit.NANOSECONDS.sleep(start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime());
+            final long requests = recorder.current().requests.sum();
+            System.out.printf("  %3ds %,10d req/s%n", second, requests - lastRequests);
+            lastRequests = requests;
+        }
+        final Recorder.Phase result = recorder.reset();
+        final long elapsedNanos = System.nanoTime() - result.startNanos;
+        final long allocated = serverAllocatedBytes() - allocatedBefore;
+        final Map<String, long[]> gcAfter = gcCounters();
+
+        for (final HttpLoadConnection connection : connections) {
+            connection.stop();
+        }
+        report(result, elapsedNanos, allocated, gcBefore, gcAfter);
+        clients.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        System.exit(0);
+    }
+
+    private static void registerTunnels(final EventLoopGroup clients, final LoadTestOptions options,
+                                        final String authToken) throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        for (int i = 0; i < options.tunnels; i++) {
+            while (true) {
+                final CompletableFuture<Void> registered =
+                        TunnelClient.connect(clients, options, options.subdomain(i), authToken);
+                try {
+                    registered.get(10, TimeUnit.SECONDS);
+                    break;
+                } catch (final Exception e) {
+                    // The server may still be binding
+                    if (System.nanoTime() > deadline) {
+                        throw new IllegalStateException("Tunnel client " + i + " could not register", e);
+                    }
+                    TimeUnit.MILLISECONDS.sleep(100);
+                }
+            }
+        }
+    }
+
+    private static void report(final Recorder.Phase result, final long elapsedNanos, final long allocated,
+                               final Map<String, long[]> gcBefore, final Map<String, long[]> gcAfter) {
+        final double seconds = elapsedNanos / 1e9;
+        final long requests = result.requests.sum();
+        final LatencyHistogram.Snapshot latency = result.latency.snapshot();
+
+        System.out.println();
+        System.out.printf("Requests     %,d in %.1fs (%,d non-2xx, %,d failed)%n",
+                requests, seconds, result.errors.sum(), result.failures.sum());
+        System.out.printf("Throughput   %,.0f req/s, %.2f MiB/s up, %.2f MiB/s down%n",
+                requests / seconds, result.bytesOut.sum() / seconds / MIB, result.bytesIn.sum() / seconds / MIB);
+        if (latency.getCount() > 0) {
+            System.out.printf("Latency ms   p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  mean %.3f%n",
+                    millis(latency.percentileNanos(50)), millis(latency.percentileNanos(90)),
+                    millis(latency.percentileNanos(99)), millis(latency.percentileNanos(99.9)),
+                    millis(latency.getSumNanos() / latency.getCount()));
+        }
+
+        final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        // The load generator runs in the same JVM, so heap and GC figures include its share
+        System.out.printf("Heap MiB     used %d, committed %d, max %d (shared with the load generator)%n",
+                heap.getUsed() / MIB, heap.getCommitted() / MIB, heap.getMax() / MIB);
+        for (final Map.Entry<String, long[]> entry : gcAfter.entrySet()) {
+            final long[] before = gcBefore.getOrDefault(entry.getKey(), new long[2]);
+            System.out.printf("GC           %s: %d collections, %d ms%n", entry.getKey(),
+                    entry.getValue()[0] - before[0], entry.getValue()[1] - before[1]);
+        }
+        if (allocated >= 0) {
+            System.out.printf("Server alloc %.1f MiB/s, %,d bytes/request (tunnelx-* threads)%n",
+                    allocated / seconds / MIB, requests > 0 ? allocated / requests : 0);
+        }
+    }
+
+    private static double millis(final long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static Map<String, long[]> gcCounters() {
+        final Map<String, long[]> counters = new HashMap<>();
+        for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            counters.put(gc.getName(), new long[] {gc.getCollectionCount(), gc.getCollectionTime()});
+        }
+        return counters;
+    }
+
+    /** Bytes allocated so far by the server's event loop threads, or -1 if the JVM cannot tell. */
+    private static long serverAllocatedBytes() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads)
+                || !threads.isThreadAllocatedMemorySupported()) {
+            return -1;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long total = 0;
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("tunnelx-")) {
+                total += Math.max(0, threads.getThreadAllocatedBytes(thread.threadId()));
+            }
+        }
+        return total;
+    }
+}
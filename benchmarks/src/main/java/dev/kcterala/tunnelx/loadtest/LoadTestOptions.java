@@ -0,0 +1,100 @@
+package dev.kcterala.tunnelx.loadtest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** Command line of {@link LoadTest}, given as {@code --name=value}. */
+final class LoadTestOptions {
+    static final String USAGE = """
+            Usage: LoadTest [--name=value ...]
+              --port=18080           port for the in-process server
+              --tunnels=4            simulated tunnel clients
+              --subdomains=1         subdomains the clients register, round robin; clients on one subdomain form a pool
+              --protocol=binary      tunnel protocol: binary or json
+              --backend=fixed        fixed: answer with --response-bytes; echo: answer with the request body
+              --backend-latency-ms=0 delay before each tunnel client answers
+              --connections=64       public HTTP/1.1 keep-alive connections, one request in flight on each
+              --rate=0               total requests per second spread over the connections, 0 for as fast as possible
+              --request-bytes=0      request body size; above 0 requests are POSTs
+              --response-bytes=1024  response body size for the fixed backend
+              --warmup=5             seconds of load before measuring
+              --duration=30          seconds measured
+              --client-threads=0     event loop threads for the simulated clients, 0 for one per core
+            """;
+
+    final int port;
+    final int tunnels;
+    final int subdomains;
+    final boolean binary;
+    final boolean echo;
+    final long backendLatencyMillis;
+    final int connections;
+    final int rate;
+    final int requestBytes;
+    final int responseBytes;
+    final int warmupSeconds;
+    final int durationSeconds;
+    final int clientThreads;
+
+    private LoadTestOptions(final Map<String, String> values) {
+        port = intOption(values, "port", 18080);
+        tunnels = intOption(values, "tunnels", 4);
+        subdomains = Math.max(1, Math.min(tunnels, intOption(values, "subdomains", 1)));
+        binary = choice(values, "protocol", "binary", "json");
+        echo = !choice(values, "backend", "fixed", "echo");
+        backendLatencyMillis = intOption(values, "backend-latency-ms", 0);
+        connections = intOption(values, "connections", 64);
+        rate = intOption(values, "rate", 0);
+        requestBytes = intOption(values, "request-bytes", 0);
+        responseBytes = intOption(values, "response-bytes", 1024);
+        warmupSeconds = intOption(values, "warmup", 5);
+        durationSeconds = intOption(values, "duration", 30);
+        clientThreads = intOption(values, "client-threads", 0);
+        if (!values.isEmpty()) {
+            throw new IllegalArgumentException("Unknown option --" + values.keySet().iterator().next());
+        }
+    }
+
+    static LoadTestOptions parse(final String[] args) {
+        final Map<String, String> values = new HashMap<>();
+        for (final String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            final int equals = arg.indexOf('=');
+            values.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        return new LoadTestOptions(values);
+    }
+
+    String subdomain(final int tunnel) {
+        return "load" + (tunnel % subdomains);
+    }
+
+    private static int intOption(final Map<String, String> values, final String name, final int defaultValue) {
+        final String value = values.remove(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            final int parsed = Integer.parseInt(value);
+            if (parsed < 0) {
+                throw new IllegalArgumentException("--" + name + " must not be negative");
+            }
+            return parsed;
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name + " must be a number, got " + value);
+        }
+    }
+
+    /** True for {@code first}, false for {@code second}. */
+    private static boolean choice(final Map<String, String> values, final String name, final String first,
+                                  final String second) {
+        final String value = values.getOrDefault(name, first);
+        values.remove(name);
+        if (!value.equals(first) && !value.equals(second)) {
+            throw new IllegalArgumentException("--" + name + " must be " + first + " or " + second);
+        }
+        return value.equals(first);
+    }
+}
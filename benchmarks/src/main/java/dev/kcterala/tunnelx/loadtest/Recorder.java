@@ -0,0 +1,50 @@
+package dev.kcterala.tunnelx.loadtest;
+
+import dev.kcterala.tunnelx.metrics.LatencyHistogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Results of the public connections. {@link #reset()} starts a new phase, so the warmup does not
+ * end up in the measurement.
+ */
+final class Recorder {
+    private volatile Phase phase = new Phase();
+
+    void recordResponse(final long latencyNanos, final int status, final long bytesOut, final long bytesIn) {
+        final Phase current = phase;
+        current.latency.record(latencyNanos);
+        current.requests.increment();
+        current.bytesOut.add(bytesOut);
+        current.bytesIn.add(bytesIn);
+        if (status < 200 || status >= 300) {
+            current.errors.increment();
+        }
+    }
+
+    void recordFailure() {
+        phase.failures.increment();
+    }
+
+    Phase reset() {
+        final Phase finished = phase;
+        phase = new Phase();
+        return finished;
+    }
+
+    Phase current() {
+        return phase;
+    }
+
+    static final class Phase {
+        final long startNanos = System.nanoTime();
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder requests = new LongAdder();
+        /** Responses with a status outside 2xx. */
+        final LongAdder errors = new LongAdder();
+        /** Connections lost or requests that could not be sent. */
+        final LongAdder failures = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+    }
+}
@@ -0,0 +1,280 @@
+package dev.kcterala.tunnelx.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.kcterala.tunnelx.handler.WebSocketHandler;
+import dev.kcterala.tunnelx.model.TunnelFrame;
+import dev.kcterala.tunnelx.model.TunnelMessage;
+import dev.kcterala.tunnelx.tunnel.FrameCodec;
+import dev.kcterala.tunnelx.tunnel.TunnelStream;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameAggregator;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.collection.LongObjectMap;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A simulated tunnel client: connects to {@code /tunnel}, registers with the real protocol and
+ * answers every forwarded request from a built-in backend, either a fixed payload or an echo of the
+ * request body. On the binary protocol it honours the stream windows in both directions.
+ */
+final class TunnelClient extends SimpleChannelInboundHandler<WebSocketFrame> {
+    private static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+    private static final int DATA_CHUNK_BYTES = 16 * 1024;
+    private static final Map<String, String> RESPONSE_HEADERS = Map.of("Content-Type", "application/octet-stream");
+
+    private final LoadTestOptions options;
+    private final String subdomain;
+    private final String authToken;
+    private final ByteBuf fixedBody;
+    private final byte[] fixedBodyBytes;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final CompletableFuture<Void> registered = new CompletableFuture<>();
+
+    // Stream state, only touched on the channel's event loop
+    private final LongObjectMap<CompositeByteBuf> requestBodies = new LongObjectHashMap<>();
+    private final LongObjectMap<Outgoing> responses = new LongObjectHashMap<>();
+    private int initialWindow = TunnelStream.INITIAL_WINDOW;
+
+    private TunnelClient(final LoadTestOptions options, final String subdomain, final String authToken) {
+        this.options = options;
+        this.subdomain = subdomain;
+        this.authToken = authToken;
+        this.fixedBodyBytes = new byte[options.responseBytes];
+        this.fixedBody = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(fixedBodyBytes));
+    }
+
+    /** Connects and registers; the future completes once the server confirms the registration. */
+    static CompletableFuture<Void> connect(final EventLoopGroup group, final LoadTestOptions options,
+                                           final String subdomain, final String authToken) throws Exception {
+        final TunnelClient client = new TunnelClient(options, subdomain, authToken);
+        final URI uri = new URI("ws://localhost:" + options.port + "/tunnel");
+        new Bootstrap().group(group).channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(final Channel ch) {
+                        ch.pipeline().addLast(
+                                new HttpClientCodec(),
+                                new HttpObjectAggregator(64 * 1024),
+                                new WebSocketClientProtocolHandler(WebSocketClientHandshakerFactory.newHandshaker(
+                                        uri, WebSocketVersion.V13, null, false, new DefaultHttpHeaders(), MAX_FRAME_BYTES)),
+                                new WebSocketFrameAggregator(MAX_FRAME_BYTES),
+                                client);
+                    }
+                })
+                .connect("localhost", options.port)
+                .addListener(future -> {
+                    if (!future.isSuccess()) {
+                        client.registered.completeExceptionally(future.cause());
+                    }
+                });
+        return client.registered;
+    }
+
+    @Override
+    public void userEventTriggered(final ChannelHandlerContext ctx, final Object evt) throws Exception {
+        if (evt == WebSocketClientProtocolHandler.ClientHandshakeStateEvent.HANDSHAKE_COMPLETE) {
+            final TunnelMessage register = new TunnelMessage();
+            register.setType("register");
+            register.setSubdomain(subdomain);
+            register.setAuthToken(authToken);
+            if (options.binary) {
+                register.setProtocol(WebSocketHandler.BINARY_PROTOCOL);
+            }
+            ctx.writeAndFlush(new TextWebSocketFrame(mapper.writeValueAsString(register)));
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+        registered.completeExceptionally(new IllegalStateException("Tunnel connection closed"));
+        for (final CompositeByteBuf body : requestBodies.values()) {
+            body.release();
+        }
+        requestBodies.clear();
+        for (final Outgoing outgoing : responses.values()) {
+            outgoing.body.release();
+        }
+        responses.clear();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) {
+        registered.completeExceptionally(cause);
+        ctx.close();
+    }
+
+    @Override
+    protected void channelRead0(final ChannelHandlerContext ctx, final WebSocketFrame frame) throws Exception {
+        if (frame instanceof TextWebSocketFrame text) {
+            onMessage(ctx, mapper.readValue(text.text(), TunnelMessage.class));
+        } else if (frame instanceof BinaryWebSocketFrame) {
+            onFrame(ctx, FrameCodec.decode(frame.content()));
+        }
+    }
+
+    private void onMessage(final ChannelHandlerContext ctx, final TunnelMessage message) {
+        switch (message.getType()) {
+            case "registered" -> {
+                if (message.getInitialWindow() != null) {
+                    initialWindow = message.getInitialWindow();
+                }
+                registered.complete(null);
+            }
+            case "error" -> registered.completeExceptionally(new IllegalStateException(message.getError()));
+            case "request" -> {
+                final TunnelMessage response = new TunnelMessage();
+                response.setType("response");
+                response.setRequestId(message.getRequestId());
+                response.setStatusCode(200);
+                response.setHeaders(RESPONSE_HEADERS);
+                response.setBody(options.echo ? message.getBody() : fixedBodyBytes);
+                later(ctx, () -> {
+                    try {
+                        ctx.writeAndFlush(new TextWebSocketFrame(mapper.writeValueAsString(response)));
+                    } catch (final Exception e) {
+                        ctx.fireExceptionCaught(e);
+                    }
+                });
+            }
+            default -> {
+            }
+        }
+    }
+
+    private void onFrame(final ChannelHandlerContext ctx, final TunnelFrame frame) {
+        final long streamId = frame.getStreamId();
+        switch (frame.getType()) {
+            case TunnelFrame.TYPE_REQUEST -> {
+                final CompositeByteBuf body = ctx.alloc().compositeBuffer();
+                requestBodies.put(streamId, body);
+                receiveBody(ctx, streamId, body, frame);
+            }
+            case TunnelFrame.TYPE_DATA -> {
+                final CompositeByteBuf body = requestBodies.get(streamId);
+                if (body == null) {
+                    frame.getBody().release();
+                    return;
+                }
+                final int bytes = frame.getBody().readableBytes();
+                receiveBody(ctx, streamId, body, frame);
+                if (bytes > 0) {
+                    // Buffered right away, so the credit can go straight back
+                    ctx.writeAndFlush(new BinaryWebSocketFrame(FrameCodec.encodeWindowUpdate(ctx.alloc(), streamId, bytes)));
+                }
+            }
+            case TunnelFrame.TYPE_WINDOW_UPDATE -> {
+                final int increment = frame.getBody().readInt();
+                frame.getBody().release();
+                final Outgoing outgoing = responses.get(streamId);
+                if (outgoing != null) {
+                    outgoing.window += increment;
+                    pump(ctx, outgoing);
+                }
+            }
+            case TunnelFrame.TYPE_RESET -> {
+                frame.getBody().release();
+                final CompositeByteBuf body = requestBodies.remove(streamId);
+                if (body != null) {
+                    body.release();
+                }
+                final Outgoing outgoing = responses.remove(streamId);
+                if (outgoing != null) {
+                    outgoing.body.release();
+                }
+            }
+            default -> frame.getBody().release();
+        }
+    }
+
+    private void receiveBody(final ChannelHandlerContext ctx, final long streamId, final CompositeByteBuf body,
+                             final TunnelFrame frame) {
+        body.addComponent(true, frame.getBody());
+        if (!frame.isEndStream()) {
+            return;
+        }
+        requestBodies.remove(streamId);
+        final ByteBuf responseBody;
+        if (options.echo) {
+            responseBody = body;
+        } else {
+            body.release();
+            responseBody = fixedBody.duplicate();
+        }
+        later(ctx, () -> respond(ctx, streamId, responseBody));
+    }
+
+    private void respond(final ChannelHandlerContext ctx, final long streamId, final ByteBuf body) {
+        final boolean empty = !body.isReadable();
+        ctx.write(new BinaryWebSocketFrame(FrameCodec.encodeResponse(ctx.alloc(), streamId, 200, RESPONSE_HEADERS,
+                Unpooled.EMPTY_BUFFER, empty)));
+        if (empty) {
+            body.release();
+            ctx.flush();
+            return;
+        }
+        final Outgoing outgoing = new Outgoing(streamId, body, initialWindow);
+        responses.put(streamId, outgoing);
+        pump(ctx, outgoing);
+    }
+
+    /** Sends as much of the response body as the server's window allows. */
+    private void pump(final ChannelHandlerContext ctx, final Outgoing outgoing) {
+        while (outgoing.window > 0 && outgoing.body.isReadable()) {
+            final int chunk = Math.min(DATA_CHUNK_BYTES, Math.min(outgoing.window, outgoing.body.readableBytes()));
+            final boolean last = chunk == outgoing.body.readableBytes();
+            outgoing.window -= chunk;
+            ctx.write(new BinaryWebSocketFrame(FrameCodec.encodeData(ctx.alloc(), outgoing.streamId,
+                    outgoing.body.readRetainedSlice(chunk), last)));
+        }
+        if (!outgoing.body.isReadable()) {
+            responses.remove(outgoing.streamId);
+            outgoing.body.release();
+        }
+        ctx.flush();
+    }
+
+    private void later(final ChannelHandlerContext ctx, final Runnable task) {
+        if (options.backendLatencyMillis > 0) {
+            ctx.executor().schedule(task, options.backendLatencyMillis, TimeUnit.MILLISECONDS);
+        } else {
+            task.run();
+        }
+    }
+
+    /** A response body still being sent. */
+    private static final class Outgoing {
+        private final long streamId;
+        private final ByteBuf body;
+        private int window;
+
+        private Outgoing(final long streamId, final ByteBuf body, final int window) {
+            this.streamId = streamId;
+            this.body = body;
+            this.window = window;
+        }
+    }
+}
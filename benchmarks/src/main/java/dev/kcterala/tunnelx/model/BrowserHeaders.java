@@ -0,0 +1,22 @@
+package dev.kcterala.tunnelx.model;
+
+import io.netty.handler.codec.http.HttpHeaders;
+
+/** The headers a typical browser request carries, so benchmarks work on realistic header blocks. */
+public final class BrowserHeaders {
+    private BrowserHeaders() {
+    }
+
+    public static void addTo(final HttpHeaders headers) {
+        headers.set("Host", "bench.tunnel.example.com");
+        headers.set("User-Agent", "Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0");
+        headers.set("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
+        headers.set("Accept-Language", "en-US,en;q=0.5");
+        headers.set("Accept-Encoding", "gzip, deflate, br");
+        headers.set("Content-Type", "application/json");
+        headers.set("Cookie", "session=4f1c2a9e8b7d6c5e4f3a2b1c0d9e8f7a; theme=dark");
+        headers.set("Referer", "https://bench.tunnel.example.com/items");
+        headers.set("Sec-Fetch-Mode", "cors");
+        headers.set("Connection", "keep-alive");
+    }
+}
@@ -0,0 +1,83 @@
+package dev.kcterala.tunnelx.model;
+
+import dev.kcterala.tunnelx.BenchmarkMain;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building a {@link TunnelRequest} from an aggregated Netty request, as {@code HttpRequestHandler}
+ * does, and the conversions the JSON protocol needs on top of that.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = BenchmarkMain.QUIET_LOGGING)
+public class TunnelRequestBenchmark {
+    @Param({"0", "1024", "65536"})
+    public int bodySize;
+
+    private FullHttpRequest request;
+
+    @Setup
+    public void setUp() {
+        final ByteBuf body = PooledByteBufAllocator.DEFAULT.directBuffer(bodySize);
+        body.writeZero(bodySize);
+        request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/api/items?page=2&sort=desc", body);
+        BrowserHeaders.addTo(request.headers());
+        request.headers().set("Content-Length", bodySize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        request.release();
+    }
+
+    @Benchmark
+    public TunnelRequest construct() {
+        final TunnelRequest tunnelRequest = newTunnelRequest();
+        tunnelRequest.getContent().release();
+        return tunnelRequest;
+    }
+
+    @Benchmark
+    public Map<String, String> headersAsMap() {
+        final TunnelRequest tunnelRequest = newTunnelRequest();
+        final Map<String, String> headers = tunnelRequest.getHeaders();
+        tunnelRequest.getContent().release();
+        return headers;
+    }
+
+    @Benchmark
+    public byte[] bodyAsBytes() {
+        final TunnelRequest tunnelRequest = newTunnelRequest();
+        final byte[] body = tunnelRequest.getBody();
+        tunnelRequest.getContent().release();
+        return body;
+    }
+
+    private TunnelRequest newTunnelRequest() {
+        return new TunnelRequest(request.method().name(), request.uri(), request.headers(),
+                request.content().retainedDuplicate());
+    }
+}
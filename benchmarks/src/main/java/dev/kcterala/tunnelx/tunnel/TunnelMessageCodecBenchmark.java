@@ -0,0 +1,120 @@
+package dev.kcterala.tunnelx.tunnel;
+
+import dev.kcterala.tunnelx.BenchmarkMain;
+import dev.kcterala.tunnelx.model.BrowserHeaders;
+import dev.kcterala.tunnelx.model.TunnelFrame;
+import dev.kcterala.tunnelx.model.TunnelMessage;
+import dev.kcterala.tunnelx.model.TunnelRequest;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message encoding on the forwarding path: the JSON protocol as {@code TunnelConnection} writes
+ * requests and {@code WebSocketHandler} reads responses, next to the binary frame codec doing the
+ * same work.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = BenchmarkMain.QUIET_LOGGING)
+public class TunnelMessageCodecBenchmark {
+    private static final Map<String, String> RESPONSE_HEADERS = Map.of(
+            "Content-Type", "application/json",
+            "Cache-Control", "no-store",
+            "Date", "Sun, 18 Oct 2026 12:00:00 GMT",
+            "Server", "uvicorn");
+
+    @Param({"0", "1024", "65536"})
+    public int bodySize;
+
+    private final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+    private HttpHeaders headers;
+    private ByteBuf body;
+    private ByteBuf responseJson;
+    private ByteBuf responseFrame;
+
+    @Setup
+    public void setUp() throws Exception {
+        headers = new DefaultHttpHeaders();
+        BrowserHeaders.addTo(headers);
+        body = alloc.directBuffer(bodySize);
+        body.writeZero(bodySize);
+
+        final TunnelMessage response = new TunnelMessage();
+        response.setType("response");
+        response.setRequestId(42);
+        response.setStatusCode(200);
+        response.setHeaders(RESPONSE_HEADERS);
+        response.setBody(new byte[bodySize]);
+        responseJson = MessageCodec.encode(alloc, response);
+
+        responseFrame = FrameCodec.encodeResponse(alloc, 42, 200, RESPONSE_HEADERS, body.retainedDuplicate(), true);
+    }
+
+    @TearDown
+    public void tearDown() {
+        body.release();
+        responseJson.release();
+        responseFrame.release();
+    }
+
+    /** What {@code TunnelConnection.forwardJsonRequest} does for every request. */
+    @Benchmark
+    public int encodeJsonRequest() throws Exception {
+        final TunnelRequest request = new TunnelRequest("POST", "/api/items", headers, body.retainedDuplicate());
+        final TunnelMessage message = new TunnelMessage();
+        message.setType("request");
+        message.setRequestId(42);
+        message.setMethod(request.getMethod());
+        message.setPath(request.getPath());
+        message.setHeaders(request.getHeaders());
+        message.setBody(request.getBody());
+        request.getContent().release();
+        final ByteBuf json = MessageCodec.encode(alloc, message);
+        final int length = json.readableBytes();
+        json.release();
+        return length;
+    }
+
+    /** What {@code WebSocketHandler} does for every JSON response. */
+    @Benchmark
+    public TunnelMessage decodeJsonResponse() throws Exception {
+        return MessageCodec.decode(responseJson);
+    }
+
+    @Benchmark
+    public int encodeBinaryRequest() {
+        final ByteBuf frame = FrameCodec.encodeRequest(alloc, 42, "POST", "/api/items", headers,
+                body.retainedDuplicate(), true);
+        final int length = frame.readableBytes();
+        frame.release();
+        return length;
+    }
+
+    @Benchmark
+    public TunnelFrame decodeBinaryResponse() {
+        final TunnelFrame frame = FrameCodec.decode(responseFrame.duplicate());
+        frame.getBody().release();
+        return frame;
+    }
+}
@@ -0,0 +1,104 @@
+package dev.kcterala.tunnelx.tunnel;
+
+import dev.kcterala.tunnelx.BenchmarkMain;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link TunnelManager} lookups, alone and while other threads register and remove tunnels, the
+ * way request routing competes with clients connecting and disconnecting.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = BenchmarkMain.QUIET_LOGGING)
+public class TunnelRegistryBenchmark {
+    private static final int TUNNELS = 1024;
+
+    private TunnelManager tunnelManager;
+    private String[] subdomains;
+
+    @Setup
+    public void setUp() {
+        tunnelManager = new TunnelManager();
+        subdomains = new String[TUNNELS];
+        for (int i = 0; i < TUNNELS; i++) {
+            subdomains[i] = "app" + i;
+            // Every tenth subdomain is served by a pool of three connections
+            final int members = i % 10 == 0 ? 3 : 1;
+            for (int m = 0; m < members; m++) {
+                tunnelManager.registerTunnel(subdomains[i],
+                        new TunnelConnection(subdomains[i], new EmbeddedChannel(), tunnelManager));
+            }
+        }
+    }
+
+    /** Per-thread cursor over the subdomains, so threads do not share a counter. */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        String nextSubdomain(final String[] subdomains) {
+            next = (next + 1) & (TUNNELS - 1);
+            return subdomains[next];
+        }
+    }
+
+    /** A client of its own that keeps connecting and disconnecting. */
+    @State(Scope.Thread)
+    public static class Churn {
+        private EmbeddedChannel channel;
+        private int next;
+
+        @Setup
+        public void setUp() {
+            channel = new EmbeddedChannel();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public TunnelConnection lookup(final Cursor cursor) {
+        return tunnelManager.getTunnel(cursor.nextSubdomain(subdomains));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public TunnelConnection lookupShared(final Cursor cursor) {
+        return tunnelManager.getTunnel(cursor.nextSubdomain(subdomains));
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public TunnelConnection contendedLookup(final Cursor cursor) {
+        return tunnelManager.getTunnel(cursor.nextSubdomain(subdomains));
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void contendedRegisterRemove(final Churn churn) {
+        // Joins an existing pool, as a second replica of a live subdomain would
+        churn.next = (churn.next + 1) & (TUNNELS - 1);
+        final String subdomain = subdomains[churn.next];
+        tunnelManager.registerTunnel(subdomain, new TunnelConnection(subdomain, churn.channel, tunnelManager));
+        tunnelManager.removeChannel(churn.channel);
+    }
+}
@@ -0,0 +1,164 @@
+package dev.kcterala.tunnelx;
+
+import dev.kcterala.tunnelx.cluster.ClusterNode;
+import dev.kcterala.tunnelx.tcp.TcpTunnels;
+import dev.kcterala.tunnelx.tunnel.TunnelManager;
+import dev.kcterala.tunnelx.tunnel.TunnelPool;
+import dev.kcterala.tunnelx.utils.SSEManager;
+import io.netty.channel.Channel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.util.concurrent.EventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Takes a server out of service without cutting off what it is doing. Once started, the listening
+ * sockets close, so with {@code SO_REUSEPORT} new connections go to a process bound to the same
+ * port. Tunnel clients are asked to reconnect, and so move to that process. Connections already
+ * open finish their current requests and close: HTTP/1.1 ones after their last response, HTTP/2
+ * ones after a GOAWAY once their streams are done.
+ *
+ * <p>The drain is over when no connection but the tunnels' is left and no tunnel has a request in
+ * flight, or when the timeout runs out, whichever comes first.
+ */
+public final class Drain {
+    /** Fired on every accepted connection when the drain starts. */
+    public static final Object EVENT = new Object();
+
+    private static final Logger logger = LoggerFactory.getLogger(Drain.class);
+    private static final long CHECK_INTERVAL_MILLIS = 100;
+    private static final long LOG_INTERVAL_MILLIS = 5000;
+
+    private final TunnelManager tunnelManager;
+    private final List<Channel> listeners;
+    private final ChannelGroup connections;
+    private final EventExecutor executor;
+    private final long timeoutMillis;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile long startNanos;
+    private volatile boolean timedOut;
+    // Executor only
+    private long lastLogMillis;
+
+    /**
+     * @param listeners   the sockets to stop accepting on
+     * @param connections every connection accepted on them
+     * @param executor    where progress is checked
+     */
+    public Drain(final TunnelManager tunnelManager, final List<Channel> listeners, final ChannelGroup connections,
+                 final EventExecutor executor, final long timeoutMillis) {
+        this.tunnelManager = tunnelManager;
+        this.listeners = List.copyOf(listeners);
+        this.connections = connections;
+        this.executor = executor;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /** Starts draining; later calls do nothing. */
+    public void start() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        startNanos = System.nanoTime();
+        logger.info("Draining: {} connections and {} tunnels open, {} ms to finish",
+                getOpenConnections(), tunnelManager.getActiveTunnelCount(), timeoutMillis);
+
+        // Nothing new comes in from here on
+        for (final Channel listener : listeners) {
+            listener.close().syncUninterruptibly();
+        }
+        final TcpTunnels tcpTunnels = tunnelManager.getTcpTunnels();
+        if (tcpTunnels != null) {
+            tcpTunnels.closeAll();
+        }
+        // Lets the tunnels register on another node
+        final ClusterNode cluster = tunnelManager.getCluster();
+        if (cluster != null) {
+            cluster.leave();
+        }
+
+        // Dashboards reconnect to whoever listens now; their streams never end on their own
+        SSEManager.closeAll();
+        for (final Channel channel : connections) {
+            channel.pipeline().fireUserEventTriggered(EVENT);
+        }
+        executor.execute(this::check);
+    }
+
+    public boolean isStarted() {
+        return started.get();
+    }
+
+    public boolean isFinished() {
+        return finished.getCount() == 0;
+    }
+
+    /** Whether the drain ended because the timeout ran out. */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /** Waits for the drain to finish; returns at once if it never started. */
+    public void awaitFinished() throws InterruptedException {
+        if (started.get()) {
+            finished.await();
+        }
+    }
+
+    public long getElapsedMillis() {
+        return started.get() ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) : 0;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /** Accepted connections still open, not counting those of tunnel clients. */
+    public int getOpenConnections() {
+        int open = 0;
+        for (final Channel channel : connections) {
+            if (!tunnelManager.isTunnelChannel(channel)) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    /** Requests forwarded to tunnels and not yet answered, or waiting for a slot. */
+    public int getInFlightRequests() {
+        int total = 0;
+        for (final TunnelPool pool : tunnelManager.getActiveTunnels().values()) {
+            total += pool.getInFlightRequests() + pool.getQueuedRequests();
+        }
+        return total;
+    }
+
+    private void check() {
+        final long elapsed = getElapsedMillis();
+        final int open = getOpenConnections();
+        final int inFlight = getInFlightRequests();
+        if (open == 0 && inFlight == 0) {
+            logger.info("Drained in {} ms", elapsed);
+            finished.countDown();
+            return;
+        }
+        if (elapsed >= timeoutMillis) {
+            timedOut = true;
+            logger.warn("Drain timed out with {} connections and {} requests still open", open, inFlight);
+            finished.countDown();
+            return;
+        }
+        if (elapsed - lastLogMillis >= LOG_INTERVAL_MILLIS) {
+            lastLogMillis = elapsed;
+            logger.info("Draining for {} ms: {} connections and {} requests open, {} tunnels connected",
+                    elapsed, open, inFlight, tunnelManager.getActiveTunnelCount());
+        }
+        executor.schedule(this::check, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,99 @@
+package dev.kcterala.tunnelx;
+
+/**
+ * Tuning knobs read from environment variables, with defaults suitable for a single small server.
+ */
+public final class ServerConfig {
+    /** Base domain; tunnels are served from its subdomains. */
+    public static final String DOMAIN = stringEnv("TUNNEL_DOMAIN", "localhost");
+    /** Seconds a keep-alive connection may sit idle between requests before it is closed. */
+    public static final int IDLE_TIMEOUT_SECONDS = intEnv("TUNNEL_IDLE_TIMEOUT_SECONDS", 60);
+    /** Seconds a tunneled request may wait for the response head before it is answered with 504. */
+    public static final int REQUEST_TIMEOUT_SECONDS = intEnv("TUNNEL_REQUEST_TIMEOUT_SECONDS", 30);
+    /** Upper bound for the request timeout a tunnel client may ask for when registering. */
+    public static final int MAX_REQUEST_TIMEOUT_SECONDS = intEnv("TUNNEL_MAX_REQUEST_TIMEOUT_SECONDS", 300);
+    /** Tunnel channel outbound bytes above which it counts as unwritable and public reads pause. */
+    public static final int WRITE_BUFFER_HIGH_BYTES = intEnv("TUNNEL_WRITE_BUFFER_HIGH_BYTES", 1024 * 1024);
+    /** Outbound bytes below which a tunnel channel is writable again. */
+    public static final int WRITE_BUFFER_LOW_BYTES = intEnv("TUNNEL_WRITE_BUFFER_LOW_BYTES", 256 * 1024);
+    /** Requests a single tunnel connection may have in flight. */
+    public static final int MAX_IN_FLIGHT = intEnv("TUNNEL_MAX_IN_FLIGHT", 256);
+    /** Requests that may wait for a slot per tunnel connection before new ones are shed with 503. */
+    public static final int MAX_QUEUED = intEnv("TUNNEL_MAX_QUEUED", 512);
+    /** Seconds a request may wait for a slot before it is shed with 503. */
+    public static final int QUEUE_TIMEOUT_SECONDS = intEnv("TUNNEL_QUEUE_TIMEOUT_SECONDS", 5);
+    /** {@code Retry-After} sent with 503s for shed requests. */
+    public static final int RETRY_AFTER_SECONDS = intEnv("TUNNEL_RETRY_AFTER_SECONDS", 1);
+    /** Deflate level (1-9) for {@code permessage-deflate} on tunnel connections, 0 to turn it off. */
+    public static final int COMPRESSION_LEVEL = intEnv("TUNNEL_COMPRESSION_LEVEL", 6);
+    /** Tunnel frames smaller than this are sent uncompressed. */
+    public static final int COMPRESSION_MIN_BYTES = intEnv("TUNNEL_COMPRESSION_MIN_BYTES", 256);
+    /** Minimum gap between two dashboard update events; changes in between are merged. */
+    public static final int SSE_MIN_INTERVAL_MILLIS = intEnv("TUNNEL_SSE_MIN_INTERVAL_MILLIS", 250);
+    /** Dashboard clients that cannot take writes for this long are disconnected. */
+    public static final int SSE_MAX_UNWRITABLE_MILLIS = intEnv("TUNNEL_SSE_MAX_UNWRITABLE_MILLIS", 10000);
+    /** Edge cache budget per tunnel for response bodies and headers, 0 to turn the cache off. */
+    public static final int CACHE_MAX_BYTES = intEnv("TUNNEL_CACHE_MAX_BYTES", 0);
+    /** Response bodies larger than this are never cached. */
+    public static final int CACHE_MAX_ENTRY_BYTES = intEnv("TUNNEL_CACHE_MAX_ENTRY_BYTES", 1024 * 1024);
+    /** Identical GET and HEAD requests that may wait on one forwarded request, 0 to turn coalescing off. */
+    public static final int COALESCE_MAX_WAITERS = intEnv("TUNNEL_COALESCE_MAX_WAITERS", 0);
+    /** Request headers whose values must match for two requests to be coalesced. */
+    public static final String COALESCE_HEADERS = stringEnv("TUNNEL_COALESCE_HEADERS",
+            "accept,accept-encoding,accept-language,authorization,cookie,range");
+    /** File the access log of tunneled requests is appended to; empty turns access logging off. */
+    public static final String ACCESS_LOG = stringEnv("TUNNEL_ACCESS_LOG", "");
+    /** Access log records buffered for the writer thread; more are dropped and counted. */
+    public static final int ACCESS_LOG_BUFFER = intEnv("TUNNEL_ACCESS_LOG_BUFFER", 65536);
+    /** Log one in this many successful requests per tunnel; errors are always logged. */
+    public static final int ACCESS_LOG_SAMPLE = intEnv("TUNNEL_ACCESS_LOG_SAMPLE", 1);
+    /** Access log records per tunnel per second, 0 for no limit. */
+    public static final int ACCESS_LOG_MAX_PER_SECOND = intEnv("TUNNEL_ACCESS_LOG_MAX_PER_SECOND", 1000);
+    /** Whether the public listener offers HTTP/2: through ALPN with TLS, as h2c without. */
+    public static final boolean HTTP2_ENABLED = intEnv("TUNNEL_HTTP2", 1) != 0;
+    /** Streams a single HTTP/2 connection may have open at once. */
+    public static final int HTTP2_MAX_STREAMS = intEnv("TUNNEL_HTTP2_MAX_STREAMS", 256);
+    /** PEM certificate chain for TLS on the public listener; TLS is off unless both files are set. */
+    public static final String TLS_CERT = stringEnv("TUNNEL_TLS_CERT", "");
+    /** PEM private key (PKCS#8) matching {@link #TLS_CERT}. */
+    public static final String TLS_KEY = stringEnv("TUNNEL_TLS_KEY", "");
+    /** First public port handed out to TCP tunnels; TCP tunnels are off unless both bounds are set. */
+    public static final int TCP_PORT_MIN = intEnv("TUNNEL_TCP_PORT_MIN", 0);
+    /** Last public port handed out to TCP tunnels, inclusive. */
+    public static final int TCP_PORT_MAX = intEnv("TUNNEL_TCP_PORT_MAX", 0);
+    /** Port other cluster nodes connect to; cluster mode is off while it is 0. */
+    public static final int CLUSTER_PORT = intEnv("TUNNEL_CLUSTER_PORT", 0);
+    /** Host or IP other nodes reach this one at; with the cluster port it is the node's name. */
+    public static final String CLUSTER_HOST = stringEnv("TUNNEL_CLUSTER_HOST", "127.0.0.1");
+    /** Comma-separated {@code host:port} cluster addresses of the other nodes; may list this one too. */
+    public static final String CLUSTER_PEERS = stringEnv("TUNNEL_CLUSTER_PEERS", "");
+    /** Shared secret nodes must present to update each other's directory; empty accepts any node. */
+    public static final String CLUSTER_SECRET = stringEnv("TUNNEL_CLUSTER_SECRET", "");
+    /** Seconds between directory announcements; a node silent for three of them is forgotten. */
+    public static final int CLUSTER_HEARTBEAT_SECONDS = intEnv("TUNNEL_CLUSTER_HEARTBEAT_SECONDS", 5);
+    /** Seconds a draining server waits for open connections and requests before it stops anyway. */
+    public static final int DRAIN_TIMEOUT_SECONDS = intEnv("TUNNEL_DRAIN_TIMEOUT_SECONDS", 30);
+    /** Socket transport: {@code auto}, {@code io_uring}, {@code epoll} or {@code nio}. */
+    public static final String TRANSPORT = stringEnv("TUNNEL_TRANSPORT", "auto");
+    /**
+     * Listening sockets bound with {@code SO_REUSEPORT}, each with its own acceptor thread. Only
+     * native transports support it; NIO always uses one.
+     */
+    public static final int ACCEPTOR_THREADS = intEnv("TUNNEL_ACCEPTOR_THREADS",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+    /** I/O threads for accepted connections, 0 for Netty's default of two per core. */
+    public static final int WORKER_THREADS = intEnv("TUNNEL_WORKER_THREADS", 0);
+
+    private ServerConfig() {
+    }
+
+    static String stringEnv(final String name, final String defaultValue) {
+        final String value = System.getenv(name);
+        return value != null && !value.isBlank() ? value.trim() : defaultValue;
+    }
+
+    static int intEnv(final String name, final int defaultValue) {
+        final String value = System.getenv(name);
+        return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+}
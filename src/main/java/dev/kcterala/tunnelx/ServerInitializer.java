@@ -1,39 +1,274 @@
 package dev.kcterala.tunnelx;
 
+import dev.kcterala.tunnelx.cluster.ClusterEndpoint;
+import dev.kcterala.tunnelx.cluster.ClusterNode;
+import dev.kcterala.tunnelx.handler.ClusterProxyHandler;
+import dev.kcterala.tunnelx.handler.Http2IdleHandler;
+import dev.kcterala.tunnelx.handler.HttpPipeliningHandler;
 import dev.kcterala.tunnelx.handler.HttpRequestHandler;
+import dev.kcterala.tunnelx.handler.StreamingProxyHandler;
 import dev.kcterala.tunnelx.handler.WebSocketHandler;
+import dev.kcterala.tunnelx.tunnel.TunnelCompression;
 import dev.kcterala.tunnelx.tunnel.TunnelManager;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerAdapter;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerExpectContinueHandler;
+import io.netty.handler.codec.http.HttpServerKeepAliveHandler;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
 import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandler;
+import io.netty.handler.codec.http2.CleartextHttp2ServerUpgradeHandler;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
 import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AsciiString;
+import io.netty.util.concurrent.GlobalEventExecutor;
 
-public class ServerInitializer extends ChannelInitializer<SocketChannel> {
+import javax.net.ssl.SSLException;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the pipeline of every accepted connection. Typed on {@link Channel} rather than a socket
+ * channel, so benchmarks can build the same pipeline on an {@code EmbeddedChannel}.
+ *
+ * <p>Connections speak HTTP/1.1 or HTTP/2. With TLS the protocol is negotiated through ALPN;
+ * in cleartext a connection switches to h2c when it opens with the HTTP/2 preface (prior
+ * knowledge) or asks for {@code Upgrade: h2c}. Every HTTP/2 stream gets a child channel whose
+ * pipeline turns its frames back into HTTP/1.1 objects, so the same handlers serve both.
+ * Tunnel clients always connect over HTTP/1.1, as WebSockets are not carried over HTTP/2.
+ *
+ * <p>In a cluster, {@link #peerInitializer} builds the pipeline of connections other nodes open
+ * to the cluster port: HTTP/2 with prior knowledge for forwarded requests, HTTP/1.1 for
+ * forwarded upgrades. Requests taken there are never forwarded again.
+ *
+ * <p>Every connection either builds is kept in {@link #getConnections}, which is what a
+ * {@link Drain} goes through.
+ */
+public class ServerInitializer extends ChannelInitializer<Channel> {
     /** Maximum payload size (8 MiB) allowed for HTTP aggregation and WebSocket frames. */
     private static final int MAX_MESSAGE_SIZE_BYTES = 8 * 1024 * 1024;
+    
+    /** Handlers that only make sense for HTTP exchanges, removed once a tunnel WebSocket is up. */
+    public static final String IDLE_HANDLER = "idle";
+    public static final String KEEP_ALIVE_HANDLER = "keepAlive";
+    public static final String PIPELINING_HANDLER = "pipelining";
+    /** Where tunnel clients open their WebSocket, on any host. */
+    public static final String TUNNEL_PATH = "/tunnel";
+    
+    /** Drops the {@code x-http2-*} headers the stream codec adds, which mean nothing to the tunneled app. */
+    private static final ChannelHandler STRIP_EXTENSION_HEADERS = new StripExtensionHeaders();
+    
     private final TunnelManager tunnelManager;
+    private final SslContext sslContext;
+    private final HttpRequestHandler requestHandler;
+    private final ClusterEndpoint clusterEndpoint;
+    private final ChannelGroup connections = new DefaultChannelGroup("tunnelx-connections", GlobalEventExecutor.INSTANCE);
     
     public ServerInitializer(final TunnelManager tunnelManager) {
+        this(tunnelManager, null);
+    }
+    
+    /** With a non-null {@code sslContext} every connection is TLS. */
+    public ServerInitializer(final TunnelManager tunnelManager, final SslContext sslContext) {
         this.tunnelManager = tunnelManager;
+        this.sslContext = sslContext;
+        this.requestHandler = new HttpRequestHandler(tunnelManager);
+        final ClusterNode cluster = tunnelManager.getCluster();
+        this.clusterEndpoint = cluster != null ? new ClusterEndpoint(cluster.getDirectory(), ServerConfig.CLUSTER_SECRET) : null;
+    }
+    
+    /** The TLS context configured by {@code TUNNEL_TLS_CERT} and {@code TUNNEL_TLS_KEY}, or null for cleartext. */
+    public static SslContext sslContextFromConfig() throws SSLException {
+        if (ServerConfig.TLS_CERT.isEmpty() || ServerConfig.TLS_KEY.isEmpty()) {
+            return null;
+        }
+        final ApplicationProtocolConfig alpn = ServerConfig.HTTP2_ENABLED
+                ? new ApplicationProtocolConfig(ApplicationProtocolConfig.Protocol.ALPN,
+                        ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                        ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                        ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1)
+                : ApplicationProtocolConfig.DISABLED;
+        return SslContextBuilder.forServer(new File(ServerConfig.TLS_CERT), new File(ServerConfig.TLS_KEY))
+                .ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+                .applicationProtocolConfig(alpn)
+                .build();
+    }
+    
+    /** The connections accepted so far and still open. */
+    public ChannelGroup getConnections() {
+        return connections;
     }
     
     @Override
-    protected void initChannel(final SocketChannel ch) {
+    protected void initChannel(final Channel ch) {
+        connections.add(ch);
         final ChannelPipeline pipeline = ch.pipeline();
+        pipeline.addLast(IDLE_HANDLER, new IdleStateHandler(0, 0, ServerConfig.IDLE_TIMEOUT_SECONDS));
         
-        // HTTP codec
-        pipeline.addLast(new HttpServerCodec());
+        if (sslContext != null) {
+            pipeline.addLast(sslContext.newHandler(ch.alloc()));
+            pipeline.addLast(new ApplicationProtocolNegotiationHandler(ApplicationProtocolNames.HTTP_1_1) {
+                @Override
+                protected void configurePipeline(final ChannelHandlerContext ctx, final String protocol) {
+                    if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                        ctx.pipeline().addLast(newFrameCodec(), newMultiplexHandler(false), new Http2IdleHandler());
+                    } else {
+                        ctx.pipeline().addLast(new HttpServerCodec());
+                        addHttp1Handlers(ctx.pipeline(), false);
+                    }
+                }
+            });
+            return;
+        }
+        
+        final HttpServerCodec codec = new HttpServerCodec();
+        if (ServerConfig.HTTP2_ENABLED) {
+            final HttpServerUpgradeHandler upgradeHandler = new HttpServerUpgradeHandler(codec, protocol ->
+                    AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)
+                            ? new Http2ServerUpgradeCodec(newFrameCodec(), newMultiplexHandler(false), new Http2IdleHandler())
+                            : null,
+                    MAX_MESSAGE_SIZE_BYTES);
+            // Prior knowledge puts the last argument where the HTTP/1.1 codec was
+            pipeline.addLast(new CleartextHttp2ServerUpgradeHandler(codec, upgradeHandler, new ChannelHandlerAdapter() {
+                @Override
+                public void handlerAdded(final ChannelHandlerContext ctx) {
+                    final Http2FrameCodec frameCodec = newFrameCodec();
+                    ctx.pipeline().replace(this, null, frameCodec);
+                    final String name = ctx.pipeline().context(frameCodec).name();
+                    ctx.pipeline().addAfter(name, null, new Http2IdleHandler());
+                    ctx.pipeline().addAfter(name, null, newMultiplexHandler(false));
+                }
+            }));
+        } else {
+            pipeline.addLast(codec);
+        }
+        addHttp1Handlers(pipeline, false);
+    }
+    
+    /** Builds connections accepted on the cluster port. Only for servers that joined a cluster. */
+    public ChannelInitializer<Channel> peerInitializer() {
+        return new ChannelInitializer<>() {
+            @Override
+            protected void initChannel(final Channel ch) {
+                connections.add(ch);
+                final HttpServerCodec codec = new HttpServerCodec();
+                // Forwarded upgrades pass through it aggregated; h2c is only spoken with prior knowledge
+                final HttpServerUpgradeHandler noUpgrade = new HttpServerUpgradeHandler(codec, protocol -> null,
+                        MAX_MESSAGE_SIZE_BYTES);
+                ch.pipeline().addLast(new CleartextHttp2ServerUpgradeHandler(codec, noUpgrade, new ChannelHandlerAdapter() {
+                    @Override
+                    public void handlerAdded(final ChannelHandlerContext ctx) {
+                        // No stream limit, as every public connection of the other node may share this one
+                        final Http2FrameCodec frameCodec = Http2FrameCodecBuilder.forServer()
+                                .gracefulShutdownTimeoutMillis(TimeUnit.SECONDS.toMillis(ServerConfig.DRAIN_TIMEOUT_SECONDS))
+                                .build();
+                        ctx.pipeline().replace(this, null, frameCodec);
+                        final String name = ctx.pipeline().context(frameCodec).name();
+                        ctx.pipeline().addAfter(name, null, new Http2IdleHandler());
+                        ctx.pipeline().addAfter(name, null, newMultiplexHandler(true));
+                    }
+                }));
+                addHttp1Handlers(ch.pipeline(), true);
+            }
+        };
+    }
+    
+    /** Everything after the HTTP/1.1 codec. */
+    private void addHttp1Handlers(final ChannelPipeline pipeline, final boolean fromPeer) {
+        // Persistent connections; responses to pipelined requests stay in order
+        pipeline.addLast(KEEP_ALIVE_HANDLER, new HttpServerKeepAliveHandler());
+        pipeline.addLast(PIPELINING_HANDLER, new HttpPipeliningHandler());
+        addRequestHandlers(pipeline, fromPeer);
+        if (fromPeer) {
+            return;
+        }
+        
+        // WebSocket handler for tunnel connections only, compressed if the client offers it
+        final WebSocketServerExtensionHandler compression = TunnelCompression.newExtensionHandler();
+        if (compression != null) {
+            pipeline.addLast(compression);
+        }
+        pipeline.addLast(new WebSocketServerProtocolHandler(TUNNEL_PATH, null, true, MAX_MESSAGE_SIZE_BYTES));
+        pipeline.addLast(new WebSocketHandler(tunnelManager));
+    }
+    
+    /** The handlers shared by HTTP/1.1 connections and HTTP/2 streams, from decoded request objects on. */
+    private void addRequestHandlers(final ChannelPipeline pipeline, final boolean fromPeer) {
+        pipeline.addLast(new HttpServerExpectContinueHandler());
+        
+        // Requests for tunnels on other nodes go there, unless another node sent them here
+        final ClusterNode cluster = tunnelManager.getCluster();
+        if (cluster != null && !fromPeer) {
+            pipeline.addLast(new ClusterProxyHandler(tunnelManager, cluster));
+        }
+        
+        // Binary tunnel traffic is streamed, everything else is aggregated
+        pipeline.addLast(new StreamingProxyHandler(tunnelManager));
         pipeline.addLast(new HttpObjectAggregator(MAX_MESSAGE_SIZE_BYTES));
         pipeline.addLast(new ChunkedWriteHandler());
+        if (fromPeer) {
+            pipeline.addLast(clusterEndpoint);
+        }
         
         // Custom handler for routing
-        pipeline.addLast(new HttpRequestHandler(tunnelManager));
-        
-        // WebSocket handler for tunnel connections only
-        pipeline.addLast(new WebSocketServerProtocolHandler("/tunnel", null, true, MAX_MESSAGE_SIZE_BYTES));
-        pipeline.addLast(new WebSocketHandler(tunnelManager));
+        pipeline.addLast(requestHandler);
+    }
+    
+    private static Http2FrameCodec newFrameCodec() {
+        // A draining server closes connections with streams still open; they get as long as the drain
+        return Http2FrameCodecBuilder.forServer()
+                .gracefulShutdownTimeoutMillis(TimeUnit.SECONDS.toMillis(ServerConfig.DRAIN_TIMEOUT_SECONDS))
+                .initialSettings(Http2Settings.defaultSettings().maxConcurrentStreams(ServerConfig.HTTP2_MAX_STREAMS))
+                .build();
+    }
+    
+    private Http2MultiplexHandler newMultiplexHandler(final boolean fromPeer) {
+        return new Http2MultiplexHandler(new ChannelInitializer<Http2StreamChannel>() {
+            @Override
+            protected void initChannel(final Http2StreamChannel stream) {
+                stream.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(true));
+                stream.pipeline().addLast(STRIP_EXTENSION_HEADERS);
+                addRequestHandlers(stream.pipeline(), fromPeer);
+            }
+        });
+    }
+    
+    @ChannelHandler.Sharable
+    private static final class StripExtensionHeaders extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+            if (msg instanceof HttpRequest request) {
+                request.headers()
+                        .remove(HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text())
+                        .remove(HttpConversionUtil.ExtensionHeaderNames.SCHEME.text());
+            }
+            ctx.fireChannelRead(msg);
+        }
     }
 }
@@ -0,0 +1,149 @@
+package dev.kcterala.tunnelx;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.Channel;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.incubator.channel.uring.IOUring;
+import io.netty.incubator.channel.uring.IOUringEventLoopGroup;
+import io.netty.incubator.channel.uring.IOUringServerSocketChannel;
+import io.netty.incubator.channel.uring.IOUringSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+
+/**
+ * The socket transport the server runs on. The native transports need Linux and their JNI
+ * library; {@link #select(String)} falls back towards NIO when one is not usable.
+ */
+public enum Transport {
+    IO_URING {
+        @Override
+        boolean isAvailable() {
+            return IOUring.isAvailable();
+        }
+
+        @Override
+        public EventLoopGroup newGroup(final int threads, final String name) {
+            return new IOUringEventLoopGroup(threads, new DefaultThreadFactory(name));
+        }
+
+        @Override
+        public Class<? extends ServerChannel> serverChannelClass() {
+            return IOUringServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends Channel> socketChannelClass() {
+            return IOUringSocketChannel.class;
+        }
+    },
+    EPOLL {
+        @Override
+        boolean isAvailable() {
+            return Epoll.isAvailable();
+        }
+
+        @Override
+        public EventLoopGroup newGroup(final int threads, final String name) {
+            return new EpollEventLoopGroup(threads, new DefaultThreadFactory(name));
+        }
+
+        @Override
+        public Class<? extends ServerChannel> serverChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends Channel> socketChannelClass() {
+            return EpollSocketChannel.class;
+        }
+    },
+    NIO {
+        @Override
+        boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public EventLoopGroup newGroup(final int threads, final String name) {
+            return new NioEventLoopGroup(threads, new DefaultThreadFactory(name));
+        }
+
+        @Override
+        public Class<? extends ServerChannel> serverChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends Channel> socketChannelClass() {
+            return NioSocketChannel.class;
+        }
+
+        @Override
+        public boolean supportsReusePort() {
+            return false;
+        }
+    };
+
+    private static final Logger logger = LoggerFactory.getLogger(Transport.class);
+
+    abstract boolean isAvailable();
+
+    /** Creates an event loop group; {@code threads} of 0 means Netty's default of two per core. */
+    public abstract EventLoopGroup newGroup(int threads, String name);
+
+    public abstract Class<? extends ServerChannel> serverChannelClass();
+
+    /** For connections this server opens itself, e.g. to other cluster nodes. */
+    public abstract Class<? extends Channel> socketChannelClass();
+
+    /** Whether several listening sockets may share a port through {@code SO_REUSEPORT}. */
+    public boolean supportsReusePort() {
+        return true;
+    }
+
+    /**
+     * Resolves a configured transport name ({@code auto}, {@code io_uring}, {@code epoll} or
+     * {@code nio}). {@code auto} prefers epoll; io_uring has to be asked for. A transport that is
+     * not usable on this host falls back to the next one down.
+     */
+    public static Transport select(final String name) {
+        final String normalized = name.trim().toLowerCase(Locale.ROOT);
+        final Transport requested = switch (normalized) {
+            case "auto", "epoll" -> EPOLL;
+            case "io_uring", "iouring" -> IO_URING;
+            case "nio" -> NIO;
+            default -> throw new IllegalArgumentException("Unknown transport: " + name);
+        };
+        for (final Transport candidate : values()) {
+            if (candidate.ordinal() < requested.ordinal()) {
+                continue;
+            }
+            if (usable(candidate)) {
+                return candidate;
+            }
+            if (!"auto".equals(normalized)) {
+                logger.warn("Transport {} is not available here, trying the next one", candidate);
+            }
+        }
+        return NIO;
+    }
+
+    private static boolean usable(final Transport transport) {
+        try {
+            return transport.isAvailable();
+        } catch (final Throwable t) {
+            // Missing native classes on this platform
+            return false;
+        }
+    }
+}
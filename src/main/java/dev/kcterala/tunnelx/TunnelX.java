@@ -1,48 +1,146 @@
 package dev.kcterala.tunnelx;
 
+import dev.kcterala.tunnelx.cluster.ClusterDirectory;
+import dev.kcterala.tunnelx.cluster.ClusterNode;
+import dev.kcterala.tunnelx.cluster.GossipDirectory;
+import dev.kcterala.tunnelx.cluster.InProcessDirectory;
+import dev.kcterala.tunnelx.logging.AccessLog;
+import dev.kcterala.tunnelx.tcp.TcpTunnels;
 import dev.kcterala.tunnelx.tunnel.TunnelManager;
+import dev.kcterala.tunnelx.utils.SSEManager;
+import dev.kcterala.tunnelx.utils.StaticFileServer;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.unix.UnixChannelOption;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.net.ssl.SSLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 public class TunnelX {
     private static final Logger logger = LoggerFactory.getLogger(TunnelX.class);
     private final int port;
     private final TunnelManager tunnelManager;
+    private final int clusterPort;
+    private final ClusterDirectory directory;
+    private final CountDownLatch stopped = new CountDownLatch(1);
 
     public TunnelX(final int port) {
+        this(port, ServerConfig.CLUSTER_PORT, null);
+    }
+
+    /**
+     * A server that joins a cluster when {@code clusterPort} is not 0. Its entries go to
+     * {@code directory}, or are announced to {@code TUNNEL_CLUSTER_PEERS} if that is null; nodes
+     * in one process can share an {@link InProcessDirectory} instead.
+     */
+    public TunnelX(final int port, final int clusterPort, final ClusterDirectory directory) {
         this.port = port;
         this.tunnelManager = new TunnelManager();
+        this.clusterPort = clusterPort;
+        this.directory = directory;
     }
 
-    public void start() throws InterruptedException {
-        final EventLoopGroup bossGroup = new NioEventLoopGroup(1);
-        final EventLoopGroup workerGroup = new NioEventLoopGroup();
+    public void start() throws InterruptedException, SSLException {
+        StaticFileServer.preload();
+        AccessLog.start(ServerConfig.ACCESS_LOG, ServerConfig.ACCESS_LOG_BUFFER);
+        SSEManager.attach(tunnelManager);
+        final Transport transport = Transport.select(ServerConfig.TRANSPORT);
+        // With SO_REUSEPORT the kernel spreads new connections over several listening sockets
+        final int acceptors = transport.supportsReusePort() ? Math.max(1, ServerConfig.ACCEPTOR_THREADS) : 1;
+        final EventLoopGroup bossGroup = transport.newGroup(acceptors, "tunnelx-accept");
+        final EventLoopGroup workerGroup = transport.newGroup(ServerConfig.WORKER_THREADS, "tunnelx-io");
+        if (ServerConfig.TCP_PORT_MIN > 0 && ServerConfig.TCP_PORT_MAX >= ServerConfig.TCP_PORT_MIN) {
+            tunnelManager.enableTcp(new TcpTunnels(tunnelManager, transport, bossGroup, workerGroup,
+                    ServerConfig.TCP_PORT_MIN, ServerConfig.TCP_PORT_MAX));
+            logger.info("TCP tunnels get ports {}-{}", ServerConfig.TCP_PORT_MIN, ServerConfig.TCP_PORT_MAX);
+        }
+        final ClusterNode cluster = clusterPort > 0 ? newClusterNode(transport, workerGroup) : null;
+        if (cluster != null) {
+            tunnelManager.enableCluster(cluster);
+        }
 
         try {
+            final ServerInitializer initializer = new ServerInitializer(tunnelManager, ServerInitializer.sslContextFromConfig());
             final ServerBootstrap b = new ServerBootstrap();
             b.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(transport.serverChannelClass())
                     .handler(new LoggingHandler(LogLevel.INFO))
-                    .childHandler(new ServerInitializer(tunnelManager));
+                    .childHandler(initializer);
+            // Also lets the next process bind the port while this one drains
+            if (transport.supportsReusePort()) {
+                b.option(UnixChannelOption.SO_REUSEPORT, true);
+            }
 
-            final Channel ch = b.bind(port).sync().channel();
-            logger.info("Tunnel server started on port {}", port);
+            // Each bind registers on the next boss loop, so every acceptor gets its own thread
+            final List<Channel> listeners = new ArrayList<>(acceptors);
+            for (int i = 0; i < acceptors; i++) {
+                listeners.add(b.bind(port).sync().channel());
+            }
+            logger.info("Tunnel server started on port {} ({} transport, {} acceptors)", port, transport, acceptors);
 
-            ch.closeFuture().sync();
+            if (cluster != null) {
+                final ServerBootstrap peers = new ServerBootstrap()
+                        .group(bossGroup, workerGroup)
+                        .channel(transport.serverChannelClass())
+                        .childOption(ChannelOption.TCP_NODELAY, true)
+                        .childHandler(initializer.peerInitializer());
+                if (transport.supportsReusePort()) {
+                    peers.option(UnixChannelOption.SO_REUSEPORT, true);
+                }
+                listeners.add(peers.bind(clusterPort).sync().channel());
+                cluster.start();
+            }
+
+            // SIGTERM drains; the JVM exits once the hook returns, so it waits for everything to stop
+            final Drain drain = new Drain(tunnelManager, listeners, initializer.getConnections(), workerGroup.next(),
+                    TimeUnit.SECONDS.toMillis(ServerConfig.DRAIN_TIMEOUT_SECONDS));
+            tunnelManager.enableDrain(drain);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                drain.start();
+                try {
+                    stopped.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "tunnelx-drain"));
+
+            for (final Channel listener : listeners) {
+                listener.closeFuture().sync();
+            }
+            drain.awaitFinished();
         } finally {
             bossGroup.shutdownGracefully();
             workerGroup.shutdownGracefully();
+            bossGroup.terminationFuture().awaitUninterruptibly();
+            workerGroup.terminationFuture().awaitUninterruptibly();
+            stopped.countDown();
+        }
+    }
+
+    private ClusterNode newClusterNode(final Transport transport, final EventLoopGroup workerGroup) {
+        ClusterDirectory shared = directory;
+        if (shared == null) {
+            final List<String> peers = Arrays.stream(ServerConfig.CLUSTER_PEERS.split(","))
+                    .map(String::trim)
+                    .filter(peer -> !peer.isEmpty())
+                    .toList();
+            shared = new GossipDirectory(peers, TimeUnit.SECONDS.toMillis(ServerConfig.CLUSTER_HEARTBEAT_SECONDS));
         }
+        return new ClusterNode(tunnelManager, shared, ServerConfig.CLUSTER_HOST + ":" + clusterPort,
+                ServerConfig.CLUSTER_SECRET, transport, workerGroup);
     }
 
-    public static void main(final String[] args) throws InterruptedException {
+    public static void main(final String[] args) throws InterruptedException, SSLException {
         final int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
         new TunnelX(port).start();
     }
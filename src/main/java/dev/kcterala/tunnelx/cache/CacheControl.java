@@ -0,0 +1,54 @@
+package dev.kcterala.tunnelx.cache;
+
+import java.util.Locale;
+
+/**
+ * The {@code Cache-Control} directives a shared cache acts on. Ages are in seconds, -1 when absent.
+ * Field-qualified {@code no-cache="..."} and {@code private="..."} apply to the whole response.
+ */
+record CacheControl(boolean noStore, boolean noCache, boolean isPrivate, boolean isPublic,
+                    boolean mustRevalidate, long maxAge, long sMaxAge) {
+    static final CacheControl NONE = new CacheControl(false, false, false, false, false, -1, -1);
+
+    static CacheControl parse(final String value) {
+        if (value == null || value.isBlank()) {
+            return NONE;
+        }
+        boolean noStore = false;
+        boolean noCache = false;
+        boolean isPrivate = false;
+        boolean isPublic = false;
+        boolean mustRevalidate = false;
+        long maxAge = -1;
+        long sMaxAge = -1;
+        for (final String directive : value.split(",")) {
+            final int equals = directive.indexOf('=');
+            final String name = (equals < 0 ? directive : directive.substring(0, equals)).trim().toLowerCase(Locale.ROOT);
+            final String argument = equals < 0 ? null : directive.substring(equals + 1).trim().replace("\"", "");
+            switch (name) {
+                case "no-store" -> noStore = true;
+                case "no-cache" -> noCache = true;
+                case "private" -> isPrivate = true;
+                case "public" -> isPublic = true;
+                case "must-revalidate", "proxy-revalidate" -> mustRevalidate = true;
+                case "max-age" -> maxAge = seconds(argument);
+                case "s-maxage" -> sMaxAge = seconds(argument);
+                default -> {
+                }
+            }
+        }
+        return new CacheControl(noStore, noCache, isPrivate, isPublic, mustRevalidate, maxAge, sMaxAge);
+    }
+
+    /** A delta-seconds argument; malformed values count as 0, which makes the response stale. */
+    private static long seconds(final String argument) {
+        if (argument == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(argument));
+        } catch (final NumberFormatException e) {
+            return 0;
+        }
+    }
+}
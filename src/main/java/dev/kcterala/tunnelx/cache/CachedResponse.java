@@ -0,0 +1,215 @@
+package dev.kcterala.tunnelx.cache;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stored response: status, end-to-end headers and a direct body buffer the cache holds one
+ * reference to. Entries are immutable; revalidation replaces them with a refreshed copy sharing
+ * the same body.
+ *
+ * <p>The cache's reference is guarded by a pin count so a lookup can retain the body without a
+ * lock: eviction drops the cache's pin, and the body reference goes once no lookup holds one.
+ */
+final class CachedResponse {
+    /** Per-entry bookkeeping charged against the budget on top of the body and headers. */
+    private static final int OVERHEAD_BYTES = 256;
+
+    final int statusCode;
+    final Map<String, String> headers;
+    final ByteBuf body;
+    /** Lowercase request header names from {@code Vary}, with the values this variant was stored for. */
+    final String[] varyNames;
+    final String[] varyValues;
+    final String etag;
+    final String lastModified;
+    /** {@link System#nanoTime()} when the response arrived, less the age it already had. */
+    final long bornNanos;
+    /** How long the entry stays fresh after {@link #bornNanos}; 0 means every use revalidates. */
+    final long freshNanos;
+    final int size;
+
+    /** The cache's pin plus one per lookup in progress; 0 once the cache reference is released. */
+    private final AtomicInteger pins = new AtomicInteger(1);
+    /** Set on hits and cleared by the eviction clock, which passes over referenced entries once. */
+    volatile boolean referenced;
+
+    private CachedResponse(final int statusCode, final Map<String, String> headers, final ByteBuf body,
+                           final String[] varyNames, final String[] varyValues, final long bornNanos,
+                           final long freshNanos) {
+        this.statusCode = statusCode;
+        this.headers = headers;
+        this.body = body;
+        this.varyNames = varyNames;
+        this.varyValues = varyValues;
+        this.etag = header(headers, "etag");
+        this.lastModified = header(headers, "last-modified");
+        this.bornNanos = bornNanos;
+        this.freshNanos = freshNanos;
+        int headerBytes = 0;
+        for (final Map.Entry<String, String> header : headers.entrySet()) {
+            headerBytes += header.getKey().length() + header.getValue().length();
+        }
+        this.size = body.capacity() + headerBytes + OVERHEAD_BYTES;
+    }
+
+    /** Builds an entry for a response to {@code requestHeaders}, taking ownership of {@code body}. */
+    static CachedResponse create(final int statusCode, final Map<String, String> responseHeaders, final ByteBuf body,
+                                 final HttpHeaders requestHeaders, final long nowNanos) {
+        final Map<String, String> headers = endToEnd(responseHeaders);
+        headers.put(HttpHeaderNames.CONTENT_LENGTH.toString(), String.valueOf(body.readableBytes()));
+        final String vary = header(headers, "vary");
+        final String[] varyNames = vary == null || vary.isBlank()
+                ? new String[0]
+                : vary.trim().toLowerCase(Locale.ROOT).split("\\s*,\\s*");
+        final String[] varyValues = new String[varyNames.length];
+        for (int i = 0; i < varyNames.length; i++) {
+            varyValues[i] = requestValue(requestHeaders, varyNames[i]);
+        }
+        return new CachedResponse(statusCode, headers, body, varyNames, varyValues,
+                nowNanos - initialAgeNanos(responseHeaders), freshnessNanos(headers));
+    }
+
+    /** A copy with the headers of a {@code 304 Not Modified} merged in and its freshness reset. */
+    CachedResponse refresh(final Map<String, String> notModifiedHeaders, final long nowNanos) {
+        final Map<String, String> merged = new HashMap<>(headers);
+        for (final Map.Entry<String, String> header : endToEnd(notModifiedHeaders).entrySet()) {
+            merged.keySet().removeIf(name -> name.equalsIgnoreCase(header.getKey()));
+            merged.put(header.getKey(), header.getValue());
+        }
+        return new CachedResponse(statusCode, merged, body.retain(), varyNames, varyValues,
+                nowNanos - initialAgeNanos(notModifiedHeaders), freshnessNanos(merged));
+    }
+
+    /** Retains the body for the caller unless the entry has already left the cache. */
+    boolean tryRetain() {
+        int current;
+        do {
+            current = pins.get();
+            if (current == 0) {
+                return false;
+            }
+        } while (!pins.compareAndSet(current, current + 1));
+        body.retain();
+        unpin();
+        return true;
+    }
+
+    /** Drops the cache's reference, or a lookup's pin; the last one releases the body. */
+    void unpin() {
+        if (pins.decrementAndGet() == 0) {
+            body.release();
+        }
+    }
+
+    boolean isFresh(final long nowNanos) {
+        return nowNanos - bornNanos < freshNanos;
+    }
+
+    long ageSeconds(final long nowNanos) {
+        return TimeUnit.NANOSECONDS.toSeconds(Math.max(0, nowNanos - bornNanos));
+    }
+
+    boolean hasValidators() {
+        return etag != null || lastModified != null;
+    }
+
+    /** Whether this variant was stored for a request with the same values of the {@code Vary} headers. */
+    boolean matches(final HttpHeaders requestHeaders) {
+        for (int i = 0; i < varyNames.length; i++) {
+            if (!varyValues[i].equals(requestValue(requestHeaders, varyNames[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean sameVariant(final CachedResponse other) {
+        return Arrays.equals(varyNames, other.varyNames) && Arrays.equals(varyValues, other.varyValues);
+    }
+
+    /** Case-insensitive lookup in a header map as tunnel clients send it. */
+    static String header(final Map<String, String> headers, final String name) {
+        if (headers == null) {
+            return null;
+        }
+        for (final Map.Entry<String, String> header : headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /** Freshness lifetime from {@code s-maxage}, {@code max-age} or {@code Expires}; 0 if none applies. */
+    static long freshnessNanos(final Map<String, String> headers) {
+        final CacheControl control = CacheControl.parse(header(headers, "cache-control"));
+        if (control.noCache()) {
+            return 0;
+        }
+        if (control.sMaxAge() >= 0) {
+            return TimeUnit.SECONDS.toNanos(control.sMaxAge());
+        }
+        if (control.maxAge() >= 0) {
+            return TimeUnit.SECONDS.toNanos(control.maxAge());
+        }
+        final Date expires = parseDate(header(headers, "expires"));
+        if (expires == null) {
+            // A missing or invalid Expires means already expired
+            return 0;
+        }
+        final Date date = parseDate(header(headers, "date"));
+        final long base = date != null ? date.getTime() : System.currentTimeMillis();
+        return TimeUnit.MILLISECONDS.toNanos(Math.max(0, expires.getTime() - base));
+    }
+
+    private static long initialAgeNanos(final Map<String, String> headers) {
+        final String age = header(headers, "age");
+        if (age == null) {
+            return 0;
+        }
+        try {
+            return TimeUnit.SECONDS.toNanos(Math.max(0, Long.parseLong(age.trim())));
+        } catch (final NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static Date parseDate(final String value) {
+        return value != null ? DateFormatter.parseHttpDate(value) : null;
+    }
+
+    private static String requestValue(final HttpHeaders headers, final String name) {
+        final List<String> values = headers.getAll(name);
+        return values.isEmpty() ? "" : String.join(",", values);
+    }
+
+    /** The headers worth storing: everything but hop-by-hop and framing headers. */
+    private static Map<String, String> endToEnd(final Map<String, String> headers) {
+        final Map<String, String> kept = new HashMap<>();
+        if (headers == null) {
+            return kept;
+        }
+        for (final Map.Entry<String, String> header : headers.entrySet()) {
+            final String name = header.getKey().toLowerCase(Locale.ROOT);
+            switch (name) {
+                case "connection", "keep-alive", "transfer-encoding", "proxy-connection", "te", "trailer",
+                     "upgrade", "content-length", "age" -> {
+                }
+                default -> kept.put(header.getKey(), header.getValue());
+            }
+        }
+        return kept;
+    }
+}
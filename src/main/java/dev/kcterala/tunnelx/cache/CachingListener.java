@@ -0,0 +1,148 @@
+package dev.kcterala.tunnelx.cache;
+
+import dev.kcterala.tunnelx.model.TunnelResponse;
+import dev.kcterala.tunnelx.tunnel.ResponseListener;
+import dev.kcterala.tunnelx.tunnel.ResponseStream;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaders;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+
+/**
+ * Sits between a forwarded cache miss and the public client's writer. Storable responses are
+ * copied into the cache as they pass through; a {@code 304} to a revalidation refreshes the stale
+ * entry and sends its body instead.
+ *
+ * <p>Callbacks for one exchange never overlap, so the fields need no locking.
+ */
+final class CachingListener implements ResponseListener {
+    private final ResponseCache cache;
+    private final String key;
+    private final HttpHeaders requestHeaders;
+    private final boolean head;
+    private final ResponseListener downstream;
+    /** The entry being revalidated, holding a body reference until the response head arrives. */
+    private CachedResponse stale;
+    /** Set when a 304 was answered from the cache before its stream ended; the rest is dropped. */
+    private boolean answered;
+
+    // A streamed body being collected; on the heap, so an abandoned capture is simply dropped
+    private ByteArrayOutputStream captured;
+    private int capturedStatus;
+    private Map<String, String> capturedHeaders;
+
+    CachingListener(final ResponseCache cache, final String key, final HttpHeaders requestHeaders, final boolean head,
+                    final CachedResponse stale, final ResponseListener downstream) {
+        this.cache = cache;
+        this.key = key;
+        this.requestHeaders = requestHeaders;
+        this.head = head;
+        this.stale = stale;
+        this.downstream = downstream;
+    }
+
+    @Override
+    public void onResponse(final TunnelResponse response, final boolean endOfStream) {
+        final CachedResponse revalidated = stale;
+        stale = null;
+        final long now = System.nanoTime();
+        if (revalidated != null && response.getStatusCode() == 304) {
+            response.getBody().release();
+            final CachedResponse refreshed = revalidated.refresh(response.getHeaders(), now);
+            cache.store(key, refreshed);
+            cache.metrics().recordCacheRevalidation();
+            answered = !endOfStream;
+            // The client asked unconditionally, so it gets the whole stored response
+            downstream.onResponse(ResponseCache.respond(refreshed, null, head, now), true);
+            return;
+        }
+        ResponseCache.release(revalidated);
+
+        if (!head && ResponseCache.isStorable(response.getStatusCode(), response.getHeaders(), requestHeaders)) {
+            final ByteBuf body = response.getBody();
+            if (endOfStream) {
+                if (body.readableBytes() <= cache.maxEntryBytes()) {
+                    cache.store(key, CachedResponse.create(response.getStatusCode(), response.getHeaders(),
+                            ResponseCache.copyOf(body), requestHeaders, now));
+                }
+            } else if (declaredLength(response.getHeaders()) <= cache.maxEntryBytes()) {
+                captured = new ByteArrayOutputStream(Math.max(body.readableBytes(), 1024));
+                capturedStatus = response.getStatusCode();
+                capturedHeaders = response.getHeaders();
+                capture(body);
+            }
+        }
+        downstream.onResponse(response, endOfStream);
+    }
+
+    @Override
+    public void onContent(final ResponseStream stream, final ByteBuf content, final boolean endOfStream) {
+        if (answered) {
+            // The public client already has its complete response
+            ResponseListener.super.onContent(stream, content, endOfStream);
+            return;
+        }
+        if (captured != null) {
+            capture(content);
+            if (endOfStream && captured != null) {
+                final byte[] bytes = captured.toByteArray();
+                captured = null;
+                final ByteBuf body = ResponseCache.copyOf(Unpooled.wrappedBuffer(bytes));
+                cache.store(key, CachedResponse.create(capturedStatus, capturedHeaders, body, requestHeaders,
+                        System.nanoTime()));
+            }
+        }
+        downstream.onContent(stream, content, endOfStream);
+    }
+
+    @Override
+    public void onTimeout() {
+        downstream.onTimeout();
+    }
+
+    @Override
+    public void onReset() {
+        if (answered) {
+            return;
+        }
+        captured = null;
+        ResponseCache.release(stale);
+        stale = null;
+        downstream.onReset();
+    }
+
+    @Override
+    public void onComplete() {
+        downstream.onComplete();
+    }
+
+    private void capture(final ByteBuf content) {
+        final int length = content.readableBytes();
+        if (captured.size() + length > cache.maxEntryBytes()) {
+            captured = null;
+            return;
+        }
+        try {
+            content.getBytes(content.readerIndex(), captured, length);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** The {@code Content-Length} the tunnel client declared, or 0 if it streams without one. */
+    private static long declaredLength(final Map<String, String> headers) {
+        final String length = CachedResponse.header(headers, "content-length");
+        if (length == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(length.trim());
+        } catch (final NumberFormatException e) {
+            return 0;
+        }
+    }
+}
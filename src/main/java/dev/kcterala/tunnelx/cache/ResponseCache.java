@@ -0,0 +1,371 @@
+package dev.kcterala.tunnelx.cache;
+
+import dev.kcterala.tunnelx.metrics.TrafficMetrics;
+import dev.kcterala.tunnelx.model.TunnelResponse;
+import dev.kcterala.tunnelx.tunnel.ResponseListener;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A shared HTTP cache for one tunnel's GET and HEAD responses, consulted before a request is
+ * forwarded.
+ *
+ * <p>Responses are stored when their {@code Cache-Control} or {@code Expires} allows a shared
+ * cache to keep them, or when they carry a validator. Fresh hits are answered on the public
+ * channel's event loop without touching the tunnel. Stale entries with an {@code ETag} or
+ * {@code Last-Modified} are revalidated with a conditional request, and a {@code 304} serves the
+ * stored body again. Each {@code Vary} combination is its own variant.
+ *
+ * <p>Bodies live in direct buffers, and every hit shares them through a retained duplicate. The
+ * total size stays under a byte budget with clock eviction: a hit marks its variant, and the clock
+ * hand evicts the first URL it finds unmarked, clearing marks as it passes. Unsafe requests
+ * invalidate the stored responses for their URL.
+ *
+ * <p>Lookups take no lock. Each URL maps to an immutable list of variants that writers replace
+ * whole, and only a store that pushes the cache over budget serializes, to advance the clock.
+ */
+public final class ResponseCache {
+    /** Statuses that are cacheable by default, as far as a tunnel needs them. */
+    private static final Set<Integer> CACHEABLE_STATUS = Set.of(200, 203, 204, 300, 301, 308, 404, 410);
+    /** Headers a {@code 304} carries over from the stored response. */
+    private static final Set<String> NOT_MODIFIED_HEADERS = Set.of(
+            "cache-control", "content-location", "date", "etag", "expires", "last-modified", "vary");
+
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    private final TrafficMetrics metrics;
+
+    private final ConcurrentHashMap<String, List<CachedResponse>> entries = new ConcurrentHashMap<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile boolean closed;
+    // Guarded by this; the clock hand, resumed where the last eviction stopped
+    private Iterator<Map.Entry<String, List<CachedResponse>>> hand;
+
+    public ResponseCache(final long maxBytes, final int maxEntryBytes, final TrafficMetrics metrics) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Answers {@code request} from the cache if it can, in which case {@code downstream} has
+     * already received the response and null is returned. Otherwise returns the listener the
+     * forwarded response should go to, and may have added validators to the request's headers.
+     */
+    public ResponseListener handle(final HttpRequest request, final ResponseListener downstream) {
+        final HttpMethod method = request.method();
+        final boolean head = HttpMethod.HEAD.equals(method);
+        if (!head && !HttpMethod.GET.equals(method)) {
+            invalidate(request);
+            return downstream;
+        }
+        final HttpHeaders headers = request.headers();
+        final CacheControl requestControl = CacheControl.parse(headers.get(HttpHeaderNames.CACHE_CONTROL));
+        if (requestControl.noStore()) {
+            return downstream;
+        }
+
+        final String key = key(request);
+        final long now = System.nanoTime();
+        CachedResponse cached = acquire(key, headers);
+        if (cached != null && cached.isFresh(now) && acceptsAge(cached, requestControl, headers, now)) {
+            metrics.recordCacheHit();
+            downstream.onResponse(respond(cached, headers, head, now), true);
+            return null;
+        }
+        metrics.recordCacheMiss();
+
+        if (headers.contains(HttpHeaderNames.IF_NONE_MATCH) || headers.contains(HttpHeaderNames.IF_MODIFIED_SINCE)) {
+            // The client validates its own copy, so a 304 would carry nothing for us to store
+            release(cached);
+            return downstream;
+        }
+        if (cached != null && cached.hasValidators()) {
+            if (cached.etag != null) {
+                headers.set(HttpHeaderNames.IF_NONE_MATCH, cached.etag);
+            }
+            if (cached.lastModified != null) {
+                headers.set(HttpHeaderNames.IF_MODIFIED_SINCE, cached.lastModified);
+            }
+        } else {
+            release(cached);
+            cached = null;
+            if (head) {
+                return downstream;
+            }
+        }
+        return new CachingListener(this, key, headers, head, cached, downstream);
+    }
+
+    /** Drops the stored responses for the URL of an unsafe request; safe methods change nothing. */
+    public void invalidate(final HttpRequest request) {
+        final HttpMethod method = request.method();
+        if (HttpMethod.GET.equals(method) || HttpMethod.HEAD.equals(method)
+                || HttpMethod.OPTIONS.equals(method) || HttpMethod.TRACE.equals(method)) {
+            return;
+        }
+        drop(entries.remove(key(request)));
+    }
+
+    /** Releases every body; later responses are no longer stored. */
+    public void close() {
+        closed = true;
+        clear();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public int getEntries() {
+        int count = 0;
+        for (final List<CachedResponse> variants : entries.values()) {
+            count += variants.size();
+        }
+        return count;
+    }
+
+    TrafficMetrics metrics() {
+        return metrics;
+    }
+
+    int maxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    /** Whether a shared cache may keep a response to a request with {@code requestHeaders}. */
+    static boolean isStorable(final int statusCode, final Map<String, String> headers, final HttpHeaders requestHeaders) {
+        if (!CACHEABLE_STATUS.contains(statusCode)) {
+            return false;
+        }
+        final CacheControl control = CacheControl.parse(CachedResponse.header(headers, "cache-control"));
+        if (control.noStore() || control.isPrivate() || CachedResponse.header(headers, "set-cookie") != null) {
+            return false;
+        }
+        final String vary = CachedResponse.header(headers, "vary");
+        if (vary != null && vary.contains("*")) {
+            return false;
+        }
+        if (requestHeaders.contains(HttpHeaderNames.AUTHORIZATION)
+                && !control.isPublic() && control.sMaxAge() < 0 && !control.mustRevalidate()) {
+            return false;
+        }
+        // Only worth keeping if it can be served fresh or at least revalidated
+        return CachedResponse.freshnessNanos(headers) > 0
+                || CachedResponse.header(headers, "etag") != null
+                || CachedResponse.header(headers, "last-modified") != null;
+    }
+
+    /** Copies {@code body} into a direct buffer sized to fit, leaving {@code body} untouched. */
+    static ByteBuf copyOf(final ByteBuf body) {
+        final int length = body.readableBytes();
+        final ByteBuf copy = PooledByteBufAllocator.DEFAULT.directBuffer(length, length);
+        copy.writeBytes(body, body.readerIndex(), length);
+        return copy;
+    }
+
+    /**
+     * Builds the response for a hit, using up the body reference the caller holds. Pass null
+     * {@code requestHeaders} to skip the client's own conditions.
+     */
+    static TunnelResponse respond(final CachedResponse cached, final HttpHeaders requestHeaders, final boolean head,
+                                  final long nowNanos) {
+        final String age = String.valueOf(cached.ageSeconds(nowNanos));
+        if (requestHeaders != null && isNotModified(cached, requestHeaders)) {
+            cached.body.release();
+            final Map<String, String> headers = new HashMap<>();
+            cached.headers.forEach((name, value) -> {
+                if (NOT_MODIFIED_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+                    headers.put(name, value);
+                }
+            });
+            headers.put("Age", age);
+            return new TunnelResponse(304, headers, Unpooled.EMPTY_BUFFER);
+        }
+        final Map<String, String> headers = new HashMap<>(cached.headers);
+        headers.put("Age", age);
+        if (head) {
+            cached.body.release();
+            return new TunnelResponse(cached.statusCode, headers, Unpooled.EMPTY_BUFFER);
+        }
+        return new TunnelResponse(cached.statusCode, headers, cached.body.duplicate());
+    }
+
+    /** Stores {@code entry}, replacing the same variant, and takes over its body reference. */
+    void store(final String key, final CachedResponse entry) {
+        if (closed || entry.size > maxBytes) {
+            entry.unpin();
+            return;
+        }
+        final List<CachedResponse> replaced = new ArrayList<>(1);
+        entries.compute(key, (k, variants) -> {
+            replaced.clear();
+            final List<CachedResponse> updated = new ArrayList<>(variants == null ? 1 : variants.size() + 1);
+            if (variants != null) {
+                for (final CachedResponse variant : variants) {
+                    if (variant.sameVariant(entry)) {
+                        replaced.add(variant);
+                    } else {
+                        updated.add(variant);
+                    }
+                }
+            }
+            updated.add(entry);
+            return List.copyOf(updated);
+        });
+        bytes.addAndGet(entry.size - totalSize(replaced));
+        unpinAll(replaced);
+        if (bytes.get() > maxBytes) {
+            evict();
+        }
+        if (closed) {
+            // Raced with close, which may have swept the table before this entry went in
+            clear();
+        }
+    }
+
+    static void release(final CachedResponse cached) {
+        if (cached != null) {
+            cached.body.release();
+        }
+    }
+
+    /** Finds the variant for {@code headers} and retains its body for the caller. */
+    private CachedResponse acquire(final String key, final HttpHeaders headers) {
+        final List<CachedResponse> variants = entries.get(key);
+        if (variants == null) {
+            return null;
+        }
+        for (final CachedResponse variant : variants) {
+            if (variant.matches(headers)) {
+                if (!variant.tryRetain()) {
+                    // Evicted or replaced since the lookup; treat it as a miss
+                    return null;
+                }
+                if (!variant.referenced) {
+                    variant.referenced = true;
+                }
+                return variant;
+            }
+        }
+        return null;
+    }
+
+    /** Advances the clock hand until the cache is back under budget. */
+    private synchronized void evict() {
+        while (bytes.get() > maxBytes) {
+            if (hand == null || !hand.hasNext()) {
+                hand = entries.entrySet().iterator();
+                if (!hand.hasNext()) {
+                    return;
+                }
+            }
+            final Map.Entry<String, List<CachedResponse>> next = hand.next();
+            final List<CachedResponse> variants = next.getValue();
+            boolean referenced = false;
+            for (final CachedResponse variant : variants) {
+                if (variant.referenced) {
+                    variant.referenced = false;
+                    referenced = true;
+                }
+            }
+            if (!referenced && entries.remove(next.getKey(), variants)) {
+                bytes.addAndGet(-totalSize(variants));
+                unpinAll(variants);
+            }
+        }
+    }
+
+    private void clear() {
+        for (final String key : entries.keySet()) {
+            drop(entries.remove(key));
+        }
+    }
+
+    /** Takes a URL's removed variants off the budget and drops the cache's references. */
+    private void drop(final List<CachedResponse> removed) {
+        if (removed != null) {
+            bytes.addAndGet(-totalSize(removed));
+            unpinAll(removed);
+        }
+    }
+
+    /** Whether the client's {@code Cache-Control} or {@code Pragma} lets it take a stored response this old. */
+    private static boolean acceptsAge(final CachedResponse cached, final CacheControl requestControl,
+                                      final HttpHeaders headers, final long nowNanos) {
+        if (requestControl.noCache()) {
+            return false;
+        }
+        if (requestControl.maxAge() >= 0) {
+            return cached.ageSeconds(nowNanos) <= requestControl.maxAge();
+        }
+        return !headers.contains(HttpHeaderNames.PRAGMA, "no-cache", true)
+                || headers.contains(HttpHeaderNames.CACHE_CONTROL);
+    }
+
+    private static boolean isNotModified(final CachedResponse cached, final HttpHeaders requestHeaders) {
+        final String ifNoneMatch = requestHeaders.get(HttpHeaderNames.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            if (cached.etag == null) {
+                return ifNoneMatch.trim().equals("*");
+            }
+            final String etag = weak(cached.etag);
+            for (final String tag : ifNoneMatch.split(",")) {
+                final String candidate = tag.trim();
+                if (candidate.equals("*") || weak(candidate).equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        final String ifModifiedSince = requestHeaders.get(HttpHeaderNames.IF_MODIFIED_SINCE);
+        if (ifModifiedSince == null || cached.lastModified == null) {
+            return false;
+        }
+        final Date since = DateFormatter.parseHttpDate(ifModifiedSince);
+        final Date modified = DateFormatter.parseHttpDate(cached.lastModified);
+        return since != null && modified != null && !modified.after(since);
+    }
+
+    /** If-None-Match compares entity tags weakly. */
+    private static String weak(final String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    private static String key(final HttpRequest request) {
+        // Custom domains may point several hosts at one tunnel, and the app may tell them apart
+        final String host = request.headers().get(HttpHeaderNames.HOST);
+        return (host != null ? host.toLowerCase(Locale.ROOT) : "") + ' ' + request.uri();
+    }
+
+    private static long totalSize(final List<CachedResponse> variants) {
+        long total = 0;
+        for (final CachedResponse variant : variants) {
+            total += variant.size;
+        }
+        return total;
+    }
+
+    private static void unpinAll(final List<CachedResponse> variants) {
+        for (final CachedResponse variant : variants) {
+            variant.unpin();
+        }
+    }
+}
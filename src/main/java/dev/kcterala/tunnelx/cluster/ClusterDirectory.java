@@ -0,0 +1,36 @@
+package dev.kcterala.tunnelx.cluster;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Which cluster node serves which public names. A name is a full host, either a tunnel's
+ * {@code <subdomain>.<TUNNEL_DOMAIN>} or a custom domain it claimed, or a wildcard claim as
+ * {@code *.suffix}; nodes are named by their cluster address.
+ *
+ * <p>Each node only ever writes its own entry, replacing it as a whole. When two nodes list the
+ * same name, the node whose address sorts first wins, so every node resolves it the same way.
+ */
+public interface ClusterDirectory {
+    /** Called once by the local node before it publishes anything. */
+    default void start(final ClusterNode self) {
+    }
+
+    /**
+     * Replaces everything {@code node} serves with {@code names}. Versions only grow per node; an
+     * update older than the last one seen is ignored.
+     */
+    void update(String node, long version, Collection<String> names);
+
+    /** Forgets {@code node} and everything it served. */
+    void remove(String node);
+
+    /** The node serving {@code name}, or null. */
+    String lookup(String name);
+
+    /** Nodes that currently have an entry, including the local one. */
+    Set<String> nodes();
+
+    /** Runs {@code listener} after every change. Called on the thread that made the change. */
+    void addListener(Runnable listener);
+}
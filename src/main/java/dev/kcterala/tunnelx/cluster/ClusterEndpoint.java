@@ -0,0 +1,77 @@
+package dev.kcterala.tunnelx.cluster;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Takes directory announcements from other nodes on the cluster port. Only installed on
+ * connections accepted there; every other request passes on to be handled as usual.
+ */
+@ChannelHandler.Sharable
+public final class ClusterEndpoint extends ChannelInboundHandlerAdapter {
+    /** Where nodes post their directory entries. */
+    public static final String DIRECTORY_PATH = "/_cluster/directory";
+
+    private static final Logger logger = LoggerFactory.getLogger(ClusterEndpoint.class);
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final ClusterDirectory directory;
+    private final byte[] secret;
+
+    public ClusterEndpoint(final ClusterDirectory directory, final String secret) {
+        this.directory = directory;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+        if (!(msg instanceof FullHttpRequest request) || !DIRECTORY_PATH.equals(request.uri())
+                || !HttpMethod.POST.equals(request.method())) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        try {
+            final String presented = request.headers().get(PeerLink.SECRET_HEADER, "");
+            if (secret.length > 0 && !MessageDigest.isEqual(secret, presented.getBytes(StandardCharsets.UTF_8))) {
+                logger.warn("Rejected a directory update from {} with a wrong secret", ctx.channel().remoteAddress());
+                respond(ctx, HttpResponseStatus.FORBIDDEN);
+                return;
+            }
+            final JsonNode message = objectMapper.readTree(new ByteBufInputStream(request.content()));
+            final List<String> names = new ArrayList<>();
+            message.path("names").forEach(name -> names.add(name.asText()));
+            directory.update(message.path("node").asText(), message.path("version").asLong(), names);
+            respond(ctx, HttpResponseStatus.NO_CONTENT);
+        } catch (final Exception e) {
+            logger.warn("Bad directory update from {}", ctx.channel().remoteAddress(), e);
+            respond(ctx, HttpResponseStatus.BAD_REQUEST);
+        } finally {
+            request.release();
+        }
+    }
+
+    private static void respond(final ChannelHandlerContext ctx, final HttpResponseStatus status) {
+        final FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, Unpooled.EMPTY_BUFFER);
+        HttpUtil.setContentLength(response, 0);
+        ctx.writeAndFlush(response);
+    }
+}
@@ -0,0 +1,183 @@
+package dev.kcterala.tunnelx.cluster;
+
+import dev.kcterala.tunnelx.ServerConfig;
+import dev.kcterala.tunnelx.Transport;
+import dev.kcterala.tunnelx.tunnel.TunnelListener;
+import dev.kcterala.tunnelx.tunnel.TunnelManager;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This server's place in a cluster. Tunnels stay on the node they connected to; the node lists
+ * their names in the shared {@link ClusterDirectory}, and public requests that arrive at another
+ * node are forwarded here over a {@link PeerLink}.
+ *
+ * <p>Host lookups are cached per {@code Host} header value, misses included, and the cache is
+ * dropped whenever the directory changes.
+ */
+public final class ClusterNode implements TunnelListener {
+    private static final Logger logger = LoggerFactory.getLogger(ClusterNode.class);
+    /** Cached hosts beyond which the cache starts over, so random Host headers cannot grow it. */
+    private static final int MAX_CACHED_HOSTS = 65536;
+    /** Cached for hosts nobody serves. */
+    private static final String NOBODY = "";
+
+    private final TunnelManager tunnelManager;
+    private final ClusterDirectory directory;
+    private final String address;
+    private final String secret;
+    private final Bootstrap bootstrap;
+    private final EventExecutor executor;
+    private final Map<String, PeerLink> links = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong(System.currentTimeMillis());
+    private final AtomicBoolean publishQueued = new AtomicBoolean();
+    private final LongAdder forwarded = new LongAdder();
+    // Guarded by this
+    private boolean left;
+    private volatile Map<String, String> owners = new ConcurrentHashMap<>();
+
+    /**
+     * @param address how other nodes reach this one, {@code host:port}; also its name
+     * @param group   event loops for the links to other nodes
+     */
+    public ClusterNode(final TunnelManager tunnelManager, final ClusterDirectory directory, final String address,
+                       final String secret, final Transport transport, final EventLoopGroup group) {
+        this.tunnelManager = tunnelManager;
+        this.directory = directory;
+        this.address = address;
+        this.secret = secret;
+        this.executor = group.next();
+        this.bootstrap = new Bootstrap()
+                .group(group)
+                .channel(transport.socketChannelClass())
+                .option(ChannelOption.TCP_NODELAY, true);
+    }
+
+    /** Starts listening for tunnel changes and publishes this node's entry. */
+    public void start() {
+        directory.addListener(() -> owners = new ConcurrentHashMap<>());
+        directory.start(this);
+        tunnelManager.addListener(this);
+        publish();
+        logger.info("Cluster node {} started", address);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public ClusterDirectory getDirectory() {
+        return directory;
+    }
+
+    /** The executor heartbeats and publishing run on. */
+    public EventExecutor executor() {
+        return executor;
+    }
+
+    /** The other node serving {@code host}, or null if it is served here or nowhere. */
+    public String ownerOf(final String host) {
+        final Map<String, String> cache = owners;
+        String owner = cache.get(host);
+        if (owner == null) {
+            if (cache.size() >= MAX_CACHED_HOSTS) {
+                cache.clear();
+            }
+            owner = resolve(normalize(host));
+            cache.put(host, owner);
+        }
+        return owner.isEmpty() || owner.equals(address) ? null : owner;
+    }
+
+    /** Whether {@code name}, a host or {@code *.suffix} claim, is held by another node. */
+    public boolean isServedElsewhere(final String name) {
+        final String owner = directory.lookup(normalize(name));
+        return owner != null && !owner.equals(address);
+    }
+
+    /** The link to {@code node}, created on first use. */
+    public PeerLink link(final String node) {
+        return links.computeIfAbsent(node, key -> new PeerLink(key, bootstrap, secret));
+    }
+
+    public Collection<PeerLink> getLinks() {
+        return links.values();
+    }
+
+    /** Counts a public request sent on to another node. */
+    public void recordForwarded() {
+        forwarded.increment();
+    }
+
+    public long getForwarded() {
+        return forwarded.sum();
+    }
+
+    /**
+     * Withdraws every name this node serves, for a node that is draining, so its tunnels can
+     * register elsewhere. Tunnel changes are no longer published afterwards.
+     */
+    public synchronized void leave() {
+        left = true;
+        directory.update(address, version.incrementAndGet(), List.of());
+    }
+
+    @Override
+    public void onTunnelChanged(final String subdomain) {
+        // Bursts of registrations go out as one update
+        if (publishQueued.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                publishQueued.set(false);
+                publish();
+            });
+        }
+    }
+
+    private synchronized void publish() {
+        if (left) {
+            return;
+        }
+        final List<String> names = new ArrayList<>();
+        for (final String subdomain : tunnelManager.getActiveTunnels().keySet()) {
+            names.add(normalize(subdomain + "." + ServerConfig.DOMAIN));
+            names.addAll(tunnelManager.getRouter().claimsOf(subdomain));
+        }
+        directory.update(address, version.incrementAndGet(), names);
+    }
+
+    /** The exact name first, then wildcard claims from the longest suffix down. */
+    private String resolve(final String name) {
+        String owner = directory.lookup(name);
+        for (int dot = name.indexOf('.'); owner == null && dot > 0; dot = name.indexOf('.', dot + 1)) {
+            owner = directory.lookup("*" + name.substring(dot));
+        }
+        return owner != null ? owner : NOBODY;
+    }
+
+    /** Lowercase, without a port or a trailing dot. */
+    private static String normalize(final String host) {
+        String name = host.trim().toLowerCase(Locale.ROOT);
+        final int colon = name.lastIndexOf(':');
+        if (colon > 0 && name.indexOf(']') < colon) {
+            name = name.substring(0, colon);
+        }
+        if (name.endsWith(".")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        return name;
+    }
+}
@@ -0,0 +1,98 @@
+package dev.kcterala.tunnelx.cluster;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.netty.buffer.Unpooled;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A directory every node keeps a full copy of. Each node announces its own entry to every peer
+ * whenever it changes and again on every heartbeat, over the peer links; the announcements arrive
+ * at {@link ClusterEndpoint}. A node that has not been heard from for three heartbeats, or that
+ * cannot be reached, is dropped until its next announcement.
+ */
+public final class GossipDirectory extends InProcessDirectory {
+    private static final Logger logger = LoggerFactory.getLogger(GossipDirectory.class);
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final List<String> peers;
+    private final long heartbeatMillis;
+    private final Map<String, Long> lastHeard = new ConcurrentHashMap<>();
+    private volatile ClusterNode self;
+
+    public GossipDirectory(final List<String> peers, final long heartbeatMillis) {
+        this.peers = List.copyOf(peers);
+        this.heartbeatMillis = heartbeatMillis;
+    }
+
+    @Override
+    public void start(final ClusterNode self) {
+        this.self = self;
+        self.executor().scheduleAtFixedRate(this::heartbeat, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void update(final String node, final long version, final Collection<String> names) {
+        final ClusterNode local = self;
+        if (local != null && node.equals(local.getAddress())) {
+            super.update(node, version, names);
+            announce(local, version, names);
+            return;
+        }
+        // A repeated version still shows the node is alive
+        lastHeard.put(node, System.currentTimeMillis());
+        super.update(node, version, names);
+    }
+
+    @Override
+    public void remove(final String node) {
+        lastHeard.remove(node);
+        super.remove(node);
+    }
+
+    private void heartbeat() {
+        final ClusterNode local = self;
+        final List<String> names = namesOf(local.getAddress());
+        if (names != null) {
+            announce(local, versionOf(local.getAddress()), names);
+        }
+        final long cutoff = System.currentTimeMillis() - 3 * heartbeatMillis;
+        lastHeard.forEach((node, heard) -> {
+            if (heard < cutoff) {
+                logger.info("Cluster node {} went quiet, forgetting its tunnels", node);
+                remove(node);
+            }
+        });
+    }
+
+    private void announce(final ClusterNode local, final long version, final Collection<String> names) {
+        final ObjectNode message = objectMapper.createObjectNode();
+        message.put("node", local.getAddress());
+        message.put("version", version);
+        final ArrayNode array = message.putArray("names");
+        names.forEach(array::add);
+        final byte[] body = message.toString().getBytes(StandardCharsets.UTF_8);
+
+        for (final String peer : peers) {
+            if (peer.equals(local.getAddress())) {
+                continue;
+            }
+            local.link(peer).post(ClusterEndpoint.DIRECTORY_PATH, Unpooled.wrappedBuffer(body)).addListener(f -> {
+                if (!f.isSuccess() && nodes().contains(peer)) {
+                    // Its tunnels cannot be reached from here either, so let them register elsewhere
+                    logger.warn("Cluster node {} unreachable, forgetting its tunnels: {}", peer, f.cause().toString());
+                    remove(peer);
+                }
+            });
+        }
+    }
+}
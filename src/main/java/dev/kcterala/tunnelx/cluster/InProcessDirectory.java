@@ -0,0 +1,93 @@
+package dev.kcterala.tunnelx.cluster;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A directory held in memory. Several nodes in one process can share an instance, which is how a
+ * cluster is run on loopback without any networking between directories.
+ *
+ * <p>Lookups read an immutable name-to-node map published with one volatile write; every update
+ * rebuilds it under a lock, as updates are rare next to lookups.
+ */
+public class InProcessDirectory implements ClusterDirectory {
+    // Guarded by this
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    private volatile Map<String, String> owners = Map.of();
+
+    private record Entry(long version, List<String> names) {
+    }
+
+    @Override
+    public void update(final String node, final long version, final Collection<String> names) {
+        synchronized (this) {
+            final Entry existing = entries.get(node);
+            if (existing != null && existing.version() >= version) {
+                return;
+            }
+            entries.put(node, new Entry(version, List.copyOf(names)));
+            publish();
+        }
+        fireChanged();
+    }
+
+    @Override
+    public void remove(final String node) {
+        synchronized (this) {
+            if (entries.remove(node) == null) {
+                return;
+            }
+            publish();
+        }
+        fireChanged();
+    }
+
+    @Override
+    public String lookup(final String name) {
+        return owners.get(name);
+    }
+
+    @Override
+    public synchronized Set<String> nodes() {
+        return Set.copyOf(entries.keySet());
+    }
+
+    /** What {@code node} last published, or null if it has no entry. */
+    synchronized List<String> namesOf(final String node) {
+        final Entry entry = entries.get(node);
+        return entry != null ? entry.names() : null;
+    }
+
+    /** The version of {@code node}'s entry, or 0 if it has none. */
+    synchronized long versionOf(final String node) {
+        final Entry entry = entries.get(node);
+        return entry != null ? entry.version() : 0;
+    }
+
+    @Override
+    public void addListener(final Runnable listener) {
+        listeners.add(listener);
+    }
+
+    private void publish() {
+        final Map<String, String> next = new HashMap<>();
+        entries.forEach((node, entry) -> {
+            for (final String name : entry.names()) {
+                next.merge(name, node, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+            }
+        });
+        owners = next;
+    }
+
+    private void fireChanged() {
+        for (final Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package dev.kcterala.tunnelx.cluster;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+
+import java.io.IOException;
+
+/**
+ * The connection to one other cluster node. Requests go out as streams of a single HTTP/2
+ * connection, opened on first use and again whenever it has closed, so any number of exchanges
+ * share one socket and each keeps its own flow control.
+ *
+ * <p>Protocol upgrades cannot be carried by an HTTP/2 stream; {@link #connectHttp1} opens a
+ * connection of their own.
+ */
+public final class PeerLink {
+    /** Carries the {@code TUNNEL_CLUSTER_SECRET} on directory updates. */
+    static final String SECRET_HEADER = "x-tunnelx-cluster-secret";
+
+    private final String address;
+    private final String host;
+    private final int port;
+    private final Bootstrap bootstrap;
+    private final String secret;
+
+    // Guarded by this
+    private Promise<Channel> connection;
+
+    PeerLink(final String address, final Bootstrap bootstrap, final String secret) {
+        final int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Cluster address needs a port: " + address);
+        }
+        this.address = address;
+        this.host = address.substring(0, colon);
+        this.port = Integer.parseInt(address.substring(colon + 1));
+        this.bootstrap = bootstrap;
+        this.secret = secret;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public synchronized boolean isConnected() {
+        return connection != null && connection.isSuccess() && connection.getNow().isActive();
+    }
+
+    /**
+     * Opens a stream whose pipeline turns HTTP/1.1 objects into HTTP/2 frames and back, followed by
+     * {@code handler}.
+     */
+    public Future<Http2StreamChannel> openStream(final ChannelHandler handler) {
+        final Promise<Http2StreamChannel> promise = ImmediateEventExecutor.INSTANCE.newPromise();
+        connect().addListener(f -> {
+            if (!f.isSuccess()) {
+                promise.tryFailure(f.cause());
+                return;
+            }
+            new Http2StreamChannelBootstrap((Channel) f.getNow())
+                    .handler(new ChannelInitializer<Http2StreamChannel>() {
+                        @Override
+                        protected void initChannel(final Http2StreamChannel stream) {
+                            stream.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(false), handler);
+                        }
+                    })
+                    .open(((Channel) f.getNow()).eventLoop().newPromise())
+                    .addListener(opened -> {
+                        if (opened.isSuccess()) {
+                            promise.trySuccess((Http2StreamChannel) opened.getNow());
+                        } else {
+                            promise.tryFailure(opened.cause());
+                        }
+                    });
+        });
+        return promise;
+    }
+
+    /** Opens a separate HTTP/1.1 connection to the node, with {@code handler} after the client codec. */
+    public ChannelFuture connectHttp1(final ChannelHandler handler) {
+        return bootstrap.clone()
+                .handler(new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(final Channel ch) {
+                        ch.pipeline().addLast(new HttpClientCodec(), handler);
+                    }
+                })
+                .connect(host, port);
+    }
+
+    /** Posts {@code body} as JSON to {@code path}; the future fails unless the node answers 2xx. */
+    Future<Void> post(final String path, final ByteBuf body) {
+        final Promise<Void> result = ImmediateEventExecutor.INSTANCE.newPromise();
+        final FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, path, body);
+        request.headers().set(HttpHeaderNames.HOST, address);
+        request.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON);
+        HttpUtil.setContentLength(request, body.readableBytes());
+        if (!secret.isEmpty()) {
+            request.headers().set(SECRET_HEADER, secret);
+        }
+
+        openStream(new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+                if (msg instanceof HttpResponse response) {
+                    if (response.status().codeClass() == HttpStatusClass.SUCCESS) {
+                        result.trySuccess(null);
+                    } else {
+                        result.tryFailure(new IOException(address + " answered " + response.status()));
+                    }
+                    ctx.close();
+                }
+                ReferenceCountUtil.release(msg);
+            }
+
+            @Override
+            public void channelInactive(final ChannelHandlerContext ctx) {
+                result.tryFailure(new IOException(address + " closed the stream"));
+            }
+        }).addListener(f -> {
+            if (f.isSuccess()) {
+                ((Channel) f.getNow()).writeAndFlush(request);
+            } else {
+                request.release();
+                result.tryFailure(f.cause());
+            }
+        });
+        return result;
+    }
+
+    /** The open HTTP/2 connection, or one being opened. */
+    private synchronized Future<Channel> connect() {
+        if (connection != null && (!connection.isDone() || connection.isSuccess() && connection.getNow().isActive())) {
+            return connection;
+        }
+        final Promise<Channel> promise = ImmediateEventExecutor.INSTANCE.newPromise();
+        connection = promise;
+        bootstrap.clone()
+                .handler(new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(final Channel ch) {
+                        // Peers never push, so no stream is ever opened towards us
+                        ch.pipeline().addLast(Http2FrameCodecBuilder.forClient().build(),
+                                new Http2MultiplexHandler(new ChannelInboundHandlerAdapter()),
+                                new ChannelInboundHandlerAdapter() {
+                                    @Override
+                                    public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+                                        // Only now has the codec sent the preface, which must precede any stream
+                                        promise.trySuccess(ctx.channel());
+                                        super.channelActive(ctx);
+                                    }
+                                });
+                    }
+                })
+                .connect(host, port)
+                .addListener((ChannelFuture f) -> {
+                    if (!f.isSuccess()) {
+                        promise.tryFailure(f.cause());
+                    }
+                });
+        return promise;
+    }
+}
@@ -0,0 +1,300 @@
+package dev.kcterala.tunnelx.handler;
+
+import dev.kcterala.tunnelx.cluster.ClusterNode;
+import dev.kcterala.tunnelx.cluster.PeerLink;
+import dev.kcterala.tunnelx.tunnel.TunnelManager;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends requests for tunnels connected to another cluster node on to that node, ahead of every
+ * local handler. Each request becomes a stream of the node's {@link PeerLink}: the head goes out
+ * as soon as it is decoded, the body follows as it arrives, and the response is written back the
+ * same way. Reads on either side pause while the other cannot take more.
+ *
+ * <p>HTTP/1.1 upgrades go over a connection of their own, see {@link PeerUpgradeProxy}. The node
+ * the request lands on handles it like any other, and never forwards it again.
+ */
+public class ClusterProxyHandler extends ChannelInboundHandlerAdapter {
+    private final TunnelManager tunnelManager;
+    private final ClusterNode cluster;
+    private final List<Exchange> exchanges = new ArrayList<>();
+    private boolean forwarding;
+    private Exchange uploading;
+
+    public ClusterProxyHandler(final TunnelManager tunnelManager, final ClusterNode cluster) {
+        this.tunnelManager = tunnelManager;
+        this.cluster = cluster;
+    }
+
+    @Override
+    public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+        if (msg instanceof HttpRequest request) {
+            final String node = targetNode(request);
+            if (node == null) {
+                forwarding = false;
+                ctx.fireChannelRead(msg);
+                return;
+            }
+            cluster.recordForwarded();
+            forwarding = true;
+            if (HttpRequestHandler.isUpgrade(request) && ctx.pipeline().get(HttpServerCodec.class) != null) {
+                uploading = null;
+                PeerUpgradeProxy.start(ctx, request, cluster.link(node));
+            } else {
+                startExchange(ctx, request, cluster.link(node));
+            }
+            if (request instanceof LastHttpContent) {
+                forwarding = false;
+            }
+            return;
+        }
+
+        if (forwarding && msg instanceof HttpContent content) {
+            final boolean last = content instanceof LastHttpContent;
+            if (uploading != null) {
+                uploading.send(content);
+            } else {
+                content.release();
+            }
+            if (last) {
+                forwarding = false;
+                uploading = null;
+            }
+            return;
+        }
+
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelWritabilityChanged(final ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            for (final Exchange exchange : exchanges) {
+                exchange.resumeDownload();
+            }
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+        for (final Exchange exchange : exchanges) {
+            exchange.cancel();
+        }
+        exchanges.clear();
+        super.channelInactive(ctx);
+    }
+
+    /** The node {@code request} should go to, or null to handle it here. */
+    private String targetNode(final HttpRequest request) {
+        if (!request.decoderResult().isSuccess() || HttpRequestHandler.isServerPath(request.uri())
+                || HttpRequestHandler.isTunnelEndpoint(request)) {
+            return null;
+        }
+        final String host = request.headers().get(HttpHeaderNames.HOST);
+        if (host == null || tunnelManager.serves(host)) {
+            return null;
+        }
+        return cluster.ownerOf(host);
+    }
+
+    private void startExchange(final ChannelHandlerContext ctx, final HttpRequest request, final PeerLink link) {
+        exchanges.removeIf(Exchange::isDone);
+        final Exchange exchange = new Exchange(ctx, request);
+        exchanges.add(exchange);
+        uploading = request instanceof LastHttpContent ? null : exchange;
+
+        // The public connection already answered any 100-continue
+        request.headers().remove(HttpHeaderNames.EXPECT);
+        exchange.send(request);
+        link.openStream(exchange).addListener(f -> ctx.executor().execute(() -> exchange.opened(f)));
+    }
+
+    /**
+     * One forwarded request. Its public side runs on the public channel's event loop, the stream
+     * side on the peer link's.
+     */
+    private static final class Exchange extends ChannelInboundHandlerAdapter {
+        private final ChannelHandlerContext ctx;
+        private final int sequence;
+        private final boolean head;
+
+        // Public side only
+        private final List<HttpObject> queued = new ArrayList<>();
+        private Http2StreamChannel stream;
+        private boolean failed;
+
+        private volatile boolean responseStarted;
+        private volatile boolean done;
+
+        Exchange(final ChannelHandlerContext ctx, final HttpRequest request) {
+            this.ctx = ctx;
+            this.sequence = HttpPipeliningHandler.currentSequence(ctx);
+            this.head = HttpMethod.HEAD.equals(request.method());
+        }
+
+        boolean isDone() {
+            return done;
+        }
+
+        /** Sends part of the request, or holds it until the stream is open. */
+        void send(final HttpObject msg) {
+            if (failed) {
+                ReferenceCountUtil.release(msg);
+            } else if (stream == null) {
+                queued.add(msg);
+            } else {
+                stream.writeAndFlush(msg);
+                pauseUploadIfFull();
+            }
+        }
+
+        void opened(final Future<? super Http2StreamChannel> future) {
+            if (!future.isSuccess() || done) {
+                failed = true;
+                queued.forEach(ReferenceCountUtil::release);
+                queued.clear();
+                if (future.isSuccess()) {
+                    // The public client left while the stream was being opened
+                    ((Http2StreamChannel) future.getNow()).close();
+                } else {
+                    fail();
+                }
+                return;
+            }
+            stream = (Http2StreamChannel) future.getNow();
+            for (final HttpObject msg : queued) {
+                stream.write(msg);
+            }
+            queued.clear();
+            stream.flush();
+            pauseUploadIfFull();
+        }
+
+        void resumeDownload() {
+            final Http2StreamChannel current = stream;
+            if (current != null) {
+                current.config().setAutoRead(true);
+            }
+        }
+
+        /** The public client went away. */
+        void cancel() {
+            done = true;
+            if (stream != null) {
+                stream.close();
+            }
+        }
+
+        private void pauseUploadIfFull() {
+            final Http2StreamChannel current = stream;
+            // Checked on the stream's loop, so it cannot overtake the writability change that resumes reads
+            current.eventLoop().execute(() -> {
+                if (!current.isWritable()) {
+                    ctx.channel().config().setAutoRead(false);
+                }
+            });
+        }
+
+        @Override
+        public void channelRead(final ChannelHandlerContext streamCtx, final Object msg) {
+            if (done) {
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            if (msg instanceof HttpResponse response) {
+                prepare(response);
+                responseStarted = true;
+            }
+            if (msg instanceof LastHttpContent) {
+                done = true;
+            }
+            ctx.writeAndFlush(HttpPipeliningHandler.sequenced(sequence, msg));
+            // Likewise checked on the public channel's loop
+            ctx.executor().execute(() -> {
+                if (!ctx.channel().isWritable()) {
+                    streamCtx.channel().config().setAutoRead(false);
+                }
+            });
+        }
+
+        @Override
+        public void channelWritabilityChanged(final ChannelHandlerContext streamCtx) throws Exception {
+            if (streamCtx.channel().isWritable()) {
+                ctx.channel().config().setAutoRead(true);
+            }
+            super.channelWritabilityChanged(streamCtx);
+        }
+
+        @Override
+        public void channelInactive(final ChannelHandlerContext streamCtx) {
+            // Reads may have been paused on our account
+            ctx.channel().config().setAutoRead(true);
+            if (!done) {
+                done = true;
+                if (responseStarted) {
+                    // Part of the response is already out, the only honest signal left is closing
+                    ctx.close();
+                } else {
+                    fail();
+                }
+            }
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext streamCtx, final Throwable cause) {
+            streamCtx.close();
+        }
+
+        /** Turns the peer's HTTP/2 response head into one for the public connection. */
+        private void prepare(final HttpResponse response) {
+            response.headers().remove(HttpConversionUtil.ExtensionHeaderNames.STREAM_ID.text());
+            if (HttpUtil.isContentLengthSet(response)) {
+                return;
+            }
+            if (response instanceof FullHttpResponse full) {
+                if (!head && full.status().code() != HttpResponseStatus.NO_CONTENT.code()
+                        && full.status().code() != HttpResponseStatus.NOT_MODIFIED.code()) {
+                    HttpUtil.setContentLength(full, full.content().readableBytes());
+                }
+            } else {
+                HttpUtil.setTransferEncodingChunked(response, true);
+            }
+        }
+
+        private void fail() {
+            done = true;
+            final FullHttpResponse response = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1,
+                HttpResponseStatus.BAD_GATEWAY,
+                Unpooled.copiedBuffer("Cluster node unavailable", CharsetUtil.UTF_8)
+            );
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
+            HttpUtil.setContentLength(response, response.content().readableBytes());
+            ctx.writeAndFlush(HttpPipeliningHandler.sequenced(sequence, response));
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package dev.kcterala.tunnelx.handler;
+
+import dev.kcterala.tunnelx.Drain;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.timeout.IdleStateEvent;
+
+import java.util.List;
+
+/**
+ * Goes last on a connection that has switched to HTTP/2, after the frame codec and the stream
+ * multiplexer.
+ *
+ * <p>When added it drops whatever HTTP/1.1 handlers the connection started with, since requests
+ * now arrive on stream child channels. Afterwards it closes the connection on an
+ * {@link IdleStateEvent} once no stream is open, which is what {@link HttpPipeliningHandler} does
+ * for HTTP/1.1. On {@link Drain#EVENT} it closes the connection right away, which the frame codec
+ * turns into a GOAWAY followed by the close once the open streams are done.
+ */
+public class Http2IdleHandler extends ChannelInboundHandlerAdapter {
+
+    @Override
+    public void handlerAdded(final ChannelHandlerContext ctx) {
+        final List<String> names = ctx.pipeline().names();
+        for (int i = names.indexOf(ctx.name()) + 1; i < names.size(); i++) {
+            // The pipeline's tail shows up in names() but cannot be removed
+            if (ctx.pipeline().get(names.get(i)) != null) {
+                ctx.pipeline().remove(names.get(i));
+            }
+        }
+    }
+
+    @Override
+    public void userEventTriggered(final ChannelHandlerContext ctx, final Object evt) throws Exception {
+        if (evt == Drain.EVENT) {
+            ctx.close();
+            return;
+        }
+        if (evt instanceof IdleStateEvent) {
+            final Http2FrameCodec codec = ctx.pipeline().get(Http2FrameCodec.class);
+            if (codec == null || codec.connection().numActiveStreams() == 0) {
+                ctx.close();
+            }
+            return;
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+}
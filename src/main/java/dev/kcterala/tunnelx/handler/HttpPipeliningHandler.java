@@ -0,0 +1,167 @@
+package dev.kcterala.tunnelx.handler;
+
+import dev.kcterala.tunnelx.Drain;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.ReferenceCountUtil;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps responses of pipelined HTTP/1.1 requests in request order.
+ *
+ * <p>Every request read on the connection gets a sequence number. Handlers that answer
+ * asynchronously capture {@link #currentSequence(ChannelHandlerContext)} while handling the
+ * request and write {@link Sequenced} messages; plain writes belong to the most recently read
+ * request. Writes for a later request are held back, with their promises, until every earlier
+ * response has been written in full.
+ *
+ * <p>Also closes the connection on an {@link IdleStateEvent} when no response is outstanding. On
+ * {@link Drain#EVENT} it does the same, and otherwise marks the responses still to come
+ * {@code Connection: close}, so the connection ends after the last of them.
+ */
+public class HttpPipeliningHandler extends ChannelDuplexHandler {
+    private final Map<Integer, ArrayDeque<HeldWrite>> held = new HashMap<>();
+    private int readSequence = -1;
+    private int writeSequence;
+    private boolean draining;
+
+    /** A message that belongs to the response of a specific request. */
+    public record Sequenced(int sequence, Object message) {
+    }
+
+    private record HeldWrite(Object message, ChannelPromise promise) {
+    }
+
+    /**
+     * Returns the sequence number of the request currently being handled on {@code ctx}'s channel,
+     * or -1 if the channel does not pipeline (e.g. an HTTP/2 stream).
+     */
+    public static int currentSequence(final ChannelHandlerContext ctx) {
+        final HttpPipeliningHandler handler = ctx.pipeline().get(HttpPipeliningHandler.class);
+        return handler != null ? handler.readSequence : -1;
+    }
+
+    /**
+     * Whether every response before the one for {@code sequence} has been written, so that a write
+     * for it goes straight through. Always true if the channel does not pipeline.
+     */
+    public static boolean isNext(final ChannelHandlerContext ctx, final int sequence) {
+        final HttpPipeliningHandler handler = ctx.pipeline().get(HttpPipeliningHandler.class);
+        return handler == null || handler.writeSequence == sequence;
+    }
+
+    /** Wraps {@code message} for {@code sequence}, or returns it unchanged if there is no sequence. */
+    public static Object sequenced(final int sequence, final Object message) {
+        return sequence >= 0 ? new Sequenced(sequence, message) : message;
+    }
+
+    @Override
+    public void channelRead(final ChannelHandlerContext ctx, final Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            readSequence++;
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void write(final ChannelHandlerContext ctx, final Object msg, final ChannelPromise promise) {
+        final int sequence;
+        final Object message;
+        if (msg instanceof Sequenced sequenced) {
+            sequence = sequenced.sequence();
+            message = sequenced.message();
+        } else {
+            sequence = readSequence;
+            message = msg;
+        }
+
+        if (draining && message instanceof HttpResponse response
+                && response.status().codeClass() != HttpStatusClass.INFORMATIONAL) {
+            HttpUtil.setKeepAlive(response, false);
+        }
+        if (sequence > writeSequence) {
+            held.computeIfAbsent(sequence, s -> new ArrayDeque<>()).add(new HeldWrite(message, promise));
+            return;
+        }
+
+        ctx.write(message, promise);
+        if (sequence == writeSequence && completesResponse(message)) {
+            advance(ctx);
+        }
+    }
+
+    @Override
+    public void userEventTriggered(final ChannelHandlerContext ctx, final Object evt) throws Exception {
+        if (evt == Drain.EVENT) {
+            draining = true;
+        }
+        if ((evt instanceof IdleStateEvent || evt == Drain.EVENT) && writeSequence > readSequence) {
+            // Nothing in flight, the connection is just sitting idle between requests
+            ctx.close();
+            return;
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    public void handlerRemoved(final ChannelHandlerContext ctx) {
+        releaseHeld();
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+        releaseHeld();
+        super.channelInactive(ctx);
+    }
+
+    private void advance(final ChannelHandlerContext ctx) {
+        boolean wrote = false;
+        writeSequence++;
+        ArrayDeque<HeldWrite> writes;
+        while ((writes = held.remove(writeSequence)) != null) {
+            boolean completed = false;
+            for (final HeldWrite write : writes) {
+                ctx.write(write.message(), write.promise());
+                completed |= completesResponse(write.message());
+            }
+            wrote = true;
+            if (!completed) {
+                break;
+            }
+            writeSequence++;
+        }
+        if (wrote) {
+            ctx.flush();
+        }
+    }
+
+    private void releaseHeld() {
+        for (final ArrayDeque<HeldWrite> writes : held.values()) {
+            for (final HeldWrite write : writes) {
+                ReferenceCountUtil.release(write.message());
+                write.promise().tryFailure(new ClosedChannelException());
+            }
+        }
+        held.clear();
+    }
+
+    private static boolean completesResponse(final Object msg) {
+        if (!(msg instanceof LastHttpContent)) {
+            return false;
+        }
+        // 100 Continue and friends are followed by the real response
+        return !(msg instanceof HttpResponse response)
+                || response.status().codeClass() != HttpStatusClass.INFORMATIONAL;
+    }
+}
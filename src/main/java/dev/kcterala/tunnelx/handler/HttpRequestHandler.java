@@ -2,9 +2,19 @@ package dev.kcterala.tunnelx.handler;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import dev.kcterala.tunnelx.Drain;
+import dev.kcterala.tunnelx.ServerConfig;
+import dev.kcterala.tunnelx.ServerInitializer;
+import dev.kcterala.tunnelx.cache.ResponseCache;
+import dev.kcterala.tunnelx.cluster.ClusterNode;
+import dev.kcterala.tunnelx.cluster.PeerLink;
 import dev.kcterala.tunnelx.model.TunnelRequest;
+import dev.kcterala.tunnelx.tcp.TcpTunnels;
+import dev.kcterala.tunnelx.tunnel.RequestCoalescer;
+import dev.kcterala.tunnelx.tunnel.ResponseListener;
 import dev.kcterala.tunnelx.tunnel.TunnelConnection;
 import dev.kcterala.tunnelx.tunnel.TunnelManager;
+import dev.kcterala.tunnelx.utils.MetricsExporter;
 import dev.kcterala.tunnelx.utils.SSEManager;
 import dev.kcterala.tunnelx.utils.StaticFileServer;
 import io.netty.buffer.Unpooled;
@@ -35,7 +45,8 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
         final String host = request.headers().get("Host");
         final String path = request.uri();
         
-        logger.info("Received request: {} {} from host: {}", request.method(), path, host);
+        // Tunneled requests go to the access log; this is only for debugging
+        logger.debug("Received request: {} {} from host: {}", request.method(), path, host);
         
         // Health check endpoint
         if ("/ping".equals(path)) {
@@ -46,8 +57,12 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
         // Server-Sent Events endpoint for real-time updates
         if ("/events".equals(path)) {
             SSEManager.addClient(ctx);
-            // Send initial stats
-            SSEManager.broadcastStats(tunnelManager);
+            return;
+        }
+        
+        // Prometheus scrape endpoint
+        if ("/metrics".equals(path)) {
+            sendMetricsResponse(ctx);
             return;
         }
         
@@ -63,29 +78,32 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
             return;
         }
         
-        // Check if this is a WebSocket upgrade request
-        if (request.headers().get("Upgrade") != null && 
-            request.headers().get("Upgrade").equalsIgnoreCase("websocket")) {
+        // A tunnel client opening its WebSocket
+        if (isTunnelEndpoint(request)) {
             // Let WebSocket routing handler deal with it
             ctx.fireChannelRead(request.retain());
             return;
         }
         
-        // Extract subdomain for tunnel routing
-        if (host != null && host.contains(".")) {
-            final String subdomain = extractSubdomain(host);
-            final TunnelConnection tunnel = tunnelManager.getTunnel(subdomain);
-            
-            if (tunnel != null) {
-                // Forward request to tunnel
-                forwardToTunnel(ctx, request, tunnel);
+        // Picked by the StreamingProxyHandler; again if it has gone away while the body was aggregated
+        TunnelConnection tunnel = StreamingProxyHandler.routedTunnel(ctx);
+        if (tunnel != null && !tunnel.getChannel().isActive()) {
+            tunnel = findTunnel(tunnelManager, request);
+        }
+        if (tunnel != null) {
+            if (isUpgrade(request)) {
+                // Upgrades binary tunnels can carry were taken by the StreamingProxyHandler
+                sendUpgradeUnsupported(ctx);
                 return;
             }
+            // Forward request to tunnel
+            forwardToTunnel(ctx, request, tunnel);
+            return;
         }
         
         // Check if this is the main domain (no subdomain) - serve static files
-        if (host != null && isMainDomain(host)) {
-            StaticFileServer.serveStaticFile(ctx, path);
+        if (host != null && tunnelManager.getRouter().isMainDomain(host)) {
+            StaticFileServer.serveStaticFile(ctx, request, path);
             return;
         }
         
@@ -93,53 +111,70 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
         sendDefaultResponse(ctx, request);
     }
     
-    private String extractSubdomain(final String host) {
-        final String[] parts = host.split("\\.");
-        return parts[0];
+    /** Paths the server answers itself, whatever the Host header says. */
+    static boolean isServerPath(final String path) {
+        return "/ping".equals(path) || "/events".equals(path) || "/api/stats".equals(path)
+                || "/metrics".equals(path) || path.startsWith("/api/check/");
     }
     
-    private boolean isMainDomain(final String host) {
-        // Check if host is the main domain (no subdomain prefix for tunnels)
-        // For localhost:8080, this would be exactly "localhost:8080"
-        // For deployment domains, check if there's a tunnel subdomain prefix
-        if (host.contains("localhost")) {
-            return true; // Always serve static files for localhost
+    /** Returns the tunnel a request should be forwarded to, or null if it is not a tunnel request. */
+    static TunnelConnection findTunnel(final TunnelManager tunnelManager, final HttpRequest request) {
+        if (isTunnelEndpoint(request)) {
+            return null;
         }
         
-        // Extract potential subdomain
-        final String subdomain = extractSubdomain(host);
-        
-        // If no subdomain or subdomain is empty, this is the main domain
-        // Also check if subdomain matches common deployment prefixes that should serve static files
-        return subdomain == null || subdomain.isEmpty() || 
-               subdomain.equals("www") || subdomain.equals("app") || 
-               subdomain.equals("tunnel") || subdomain.equals("api");
+        final String host = request.headers().get(HttpHeaderNames.HOST);
+        return host != null ? tunnelManager.route(host) : null;
+    }
+    
+    /** Whether {@code request} asks to switch the connection to another protocol, e.g. a WebSocket. */
+    static boolean isUpgrade(final HttpRequest request) {
+        final HttpHeaders headers = request.headers();
+        return headers.contains(HttpHeaderNames.UPGRADE)
+                && headers.containsValue(HttpHeaderNames.CONNECTION, HttpHeaderValues.UPGRADE, true);
+    }
+    
+    /** Whether {@code request} is a tunnel client's WebSocket handshake, which the server handles on any host. */
+    static boolean isTunnelEndpoint(final HttpRequest request) {
+        final String upgrade = request.headers().get(HttpHeaderNames.UPGRADE);
+        if (upgrade == null || !HttpHeaderValues.WEBSOCKET.contentEqualsIgnoreCase(upgrade)) {
+            return false;
+        }
+        final String uri = request.uri();
+        return uri.equals(ServerInitializer.TUNNEL_PATH) || uri.startsWith(ServerInitializer.TUNNEL_PATH + "?");
     }
     
     private void forwardToTunnel(final ChannelHandlerContext ctx, final FullHttpRequest request, final TunnelConnection tunnel) {
-        // Create tunnel request object
+        // The writer sends the response back to the client
+        ResponseListener listener = new ProxyResponseWriter(ctx, request, tunnel.getAccessLog());
+        final ResponseCache cache = tunnel.getCache();
+        if (cache != null) {
+            listener = cache.handle(request, listener);
+            if (listener == null) {
+                // Answered from the cache
+                return;
+            }
+        }
+        // After the cache, whose validators become part of the key
+        final RequestCoalescer coalescer = tunnel.getCoalescer();
+        if (coalescer != null) {
+            listener = coalescer.join(request, listener);
+            if (listener == null) {
+                // Waiting on an identical request already in flight
+                return;
+            }
+        }
+        
+        // Create tunnel request object, after the cache may have added validators
         final TunnelRequest tunnelRequest = new TunnelRequest(
             request.method().name(),
             request.uri(),
             request.headers(),
-            request.content().copy()
+            request.content().retainedDuplicate()
         );
         
-        // Send to tunnel connection
-        tunnel.forwardRequest(tunnelRequest, response -> {
-            // Send response back to client
-            final FullHttpResponse httpResponse = new DefaultFullHttpResponse(
-                HttpVersion.HTTP_1_1,
-                HttpResponseStatus.valueOf(response.getStatusCode()),
-                Unpooled.wrappedBuffer(response.getBody())
-            );
-            
-            // Copy headers
-            response.getHeaders().forEach((key, value) -> 
-                httpResponse.headers().set(key, value));
-            
-            ctx.writeAndFlush(httpResponse).addListener(ChannelFutureListener.CLOSE);
-        });
+        tunnel.forwardRequest(tunnelRequest, listener);
+        tunnel.throttle(ctx.channel());
     }
     
     private void sendDefaultResponse(final ChannelHandlerContext ctx, final FullHttpRequest request) {
@@ -158,7 +193,7 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
         response.headers().set("Content-Type", "text/html; charset=UTF-8");
         response.headers().set("Content-Length", response.content().readableBytes());
         
-        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        ctx.writeAndFlush(response);
     }
     
     private void sendPongResponse(final ChannelHandlerContext ctx) {
@@ -173,7 +208,21 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
         response.headers().set("Content-Type", "text/plain; charset=UTF-8");
         response.headers().set("Content-Length", response.content().readableBytes());
         
-        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        ctx.writeAndFlush(response);
+    }
+    
+    /** JSON tunnels and HTTP/2 streams cannot carry a switched protocol. */
+    private void sendUpgradeUnsupported(final ChannelHandlerContext ctx) {
+        final FullHttpResponse response = new DefaultFullHttpResponse(
+            HttpVersion.HTTP_1_1,
+            HttpResponseStatus.NOT_IMPLEMENTED,
+            Unpooled.copiedBuffer("Upgrades need a binary tunnel and HTTP/1.1", CharsetUtil.UTF_8)
+        );
+        
+        response.headers().set("Content-Type", "text/plain; charset=UTF-8");
+        response.headers().set("Content-Length", response.content().readableBytes());
+        
+        ctx.writeAndFlush(response);
     }
     
     private void sendStatsResponse(final ChannelHandlerContext ctx) {
@@ -182,6 +231,7 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
             stats.put("totalTunnels", tunnelManager.getTotalTunnelCount());
             stats.put("activeTunnels", tunnelManager.getActiveTunnelCount());
             stats.put("uptime", tunnelManager.getUptimeSeconds());
+            MetricsExporter.putTraffic(stats, tunnelManager.getMetrics());
             
             // Add tunnel details
             final var tunnelsArray = stats.putArray("tunnels");
@@ -189,9 +239,52 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
                 final ObjectNode tunnelInfo = objectMapper.createObjectNode();
                 tunnelInfo.put("subdomain", subdomain);
                 tunnelInfo.put("connectedTime", formatTime(tunnel.getConnectedTime()));
+                tunnelInfo.put("connections", tunnel.size());
+                tunnelInfo.put("inFlight", tunnel.getInFlightRequests());
+                tunnelInfo.put("queued", tunnel.getQueuedRequests());
+                MetricsExporter.putTraffic(tunnelInfo, tunnel.getMetrics());
+                if (tunnel.getCache() != null) {
+                    final ObjectNode cache = (ObjectNode) tunnelInfo.get("cache");
+                    cache.put("bytes", tunnel.getCache().getBytes());
+                    cache.put("entries", tunnel.getCache().getEntries());
+                }
+                if (tunnel.getCoalescer() != null) {
+                    tunnelInfo.put("coalescedWaiting", tunnel.getCoalescer().getWaiting());
+                }
+                final TcpTunnels tcpTunnels = tunnelManager.getTcpTunnels();
+                final int tcpPort = tcpTunnels != null ? tcpTunnels.getPort(subdomain) : 0;
+                if (tcpPort != 0) {
+                    tunnelInfo.put("tcpPort", tcpPort);
+                }
                 tunnelsArray.add(tunnelInfo);
             });
             
+            final ClusterNode cluster = tunnelManager.getCluster();
+            if (cluster != null) {
+                final ObjectNode clusterInfo = stats.putObject("cluster");
+                clusterInfo.put("node", cluster.getAddress());
+                clusterInfo.put("nodes", cluster.getDirectory().nodes().size());
+                clusterInfo.put("forwarded", cluster.getForwarded());
+                final var peersArray = clusterInfo.putArray("peers");
+                for (final PeerLink link : cluster.getLinks()) {
+                    final ObjectNode peerInfo = objectMapper.createObjectNode();
+                    peerInfo.put("address", link.getAddress());
+                    peerInfo.put("connected", link.isConnected());
+                    peersArray.add(peerInfo);
+                }
+            }
+            
+            final Drain drain = tunnelManager.getDrain();
+            if (drain != null && drain.isStarted()) {
+                final ObjectNode drainInfo = stats.putObject("drain");
+                drainInfo.put("state", !drain.isFinished() ? "draining" : drain.isTimedOut() ? "timedOut" : "drained");
+                drainInfo.put("elapsedMs", drain.getElapsedMillis());
+                drainInfo.put("timeoutMs", drain.getTimeoutMillis());
+                drainInfo.put("connections", drain.getOpenConnections());
+                drainInfo.put("inFlight", drain.getInFlightRequests());
+                drainInfo.put("tunnels", tunnelManager.getActiveTunnelCount());
+            }
+            
             sendJsonResponse(ctx, stats.toString());
         } catch (final Exception e) {
             logger.error("Error sending stats", e);
@@ -199,11 +292,26 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
         }
     }
     
+    private void sendMetricsResponse(final ChannelHandlerContext ctx) {
+        final FullHttpResponse response = new DefaultFullHttpResponse(
+            HttpVersion.HTTP_1_1,
+            HttpResponseStatus.OK,
+            Unpooled.copiedBuffer(MetricsExporter.prometheus(tunnelManager), CharsetUtil.UTF_8)
+        );
+        
+        response.headers().set("Content-Type", MetricsExporter.CONTENT_TYPE);
+        response.headers().set("Content-Length", response.content().readableBytes());
+        
+        ctx.writeAndFlush(response);
+    }
+    
     private void sendAvailabilityResponse(final ChannelHandlerContext ctx, final String subdomain) {
         try {
             final ObjectNode response = objectMapper.createObjectNode();
             response.put("subdomain", subdomain);
-            response.put("available", !tunnelManager.isSubdomainTaken(subdomain));
+            final ClusterNode cluster = tunnelManager.getCluster();
+            response.put("available", !tunnelManager.isSubdomainTaken(subdomain)
+                    && (cluster == null || !cluster.isServedElsewhere(subdomain + "." + ServerConfig.DOMAIN)));
             
             sendJsonResponse(ctx, response.toString());
         } catch (final Exception e) {
@@ -223,7 +331,7 @@ public class HttpRequestHandler extends SimpleChannelInboundHandler<FullHttpRequ
         response.headers().set("Content-Length", response.content().readableBytes());
         response.headers().set("Access-Control-Allow-Origin", "*");
         
-        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        ctx.writeAndFlush(response);
     }
     
     private String formatTime(final long timestamp) {
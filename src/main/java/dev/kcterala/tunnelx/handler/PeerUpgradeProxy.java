@@ -0,0 +1,191 @@
+package dev.kcterala.tunnelx.handler;
+
+import dev.kcterala.tunnelx.cluster.PeerLink;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Carries a protocol upgrade for a tunnel on another cluster node. An HTTP/2 stream of the peer
+ * link cannot switch protocols, so the request goes to the node's cluster port over an HTTP/1.1
+ * connection of its own, where it is proxied like a local upgrade.
+ *
+ * <p>If the node answers 101, both connections drop their HTTP handlers and bytes are relayed
+ * between them as they are. Any other response is passed on and the connection to the node closed.
+ */
+final class PeerUpgradeProxy extends ChannelInboundHandlerAdapter {
+    private final ChannelHandlerContext ctx;
+    private final int sequence;
+    private final FullHttpRequest request;
+
+    // Peer connection's event loop only
+    private boolean responseStarted;
+    private boolean switched;
+    private boolean complete;
+
+    private PeerUpgradeProxy(final ChannelHandlerContext ctx, final FullHttpRequest request) {
+        this.ctx = ctx;
+        this.sequence = HttpPipeliningHandler.currentSequence(ctx);
+        this.request = request;
+    }
+
+    /** Forwards the upgrade {@code request}; whatever body it has is dropped, as nobody sends one. */
+    static void start(final ChannelHandlerContext ctx, final HttpRequest request, final PeerLink link) {
+        final FullHttpRequest copy = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, request.method(), request.uri(),
+                Unpooled.EMPTY_BUFFER);
+        copy.headers().set(request.headers());
+        HttpUtil.setContentLength(copy, 0);
+        ReferenceCountUtil.release(request);
+
+        // Nothing more is read from the client until the node has answered
+        ctx.channel().config().setAutoRead(false);
+        final PeerUpgradeProxy proxy = new PeerUpgradeProxy(ctx, copy);
+        link.connectHttp1(proxy).addListener((ChannelFuture f) -> {
+            if (!f.isSuccess()) {
+                copy.release();
+                ctx.executor().execute(proxy::fail);
+            }
+        });
+    }
+
+    @Override
+    public void channelActive(final ChannelHandlerContext peerCtx) throws Exception {
+        peerCtx.writeAndFlush(request);
+        super.channelActive(peerCtx);
+    }
+
+    @Override
+    public void channelRead(final ChannelHandlerContext peerCtx, final Object msg) {
+        if (switched) {
+            // Raw bytes the codec read after the 101; they queue up behind the switch
+            ctx.channel().writeAndFlush(msg);
+            return;
+        }
+        if (msg instanceof HttpResponse response && !responseStarted) {
+            responseStarted = true;
+            if (response.status().code() == HttpResponseStatus.SWITCHING_PROTOCOLS.code()) {
+                switched = true;
+                ReferenceCountUtil.release(msg);
+                final FullHttpResponse head = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                        HttpResponseStatus.SWITCHING_PROTOCOLS, Unpooled.EMPTY_BUFFER);
+                head.headers().set(response.headers());
+                ctx.executor().execute(() -> switchProtocols(peerCtx.channel(), head));
+                return;
+            }
+        }
+        if (msg instanceof LastHttpContent) {
+            complete = true;
+            ctx.writeAndFlush(HttpPipeliningHandler.sequenced(sequence, msg));
+            ctx.channel().config().setAutoRead(true);
+            peerCtx.close();
+            return;
+        }
+        ctx.writeAndFlush(HttpPipeliningHandler.sequenced(sequence, msg));
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext peerCtx) {
+        if (!responseStarted) {
+            ctx.executor().execute(this::fail);
+        } else if (!complete) {
+            // Cut short, or closed before the relay took over
+            ctx.channel().writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(final ChannelHandlerContext peerCtx, final Throwable cause) {
+        peerCtx.close();
+    }
+
+    /** Runs on the public channel's event loop. */
+    private void switchProtocols(final Channel peer, final FullHttpResponse head) {
+        final Channel channel = ctx.channel();
+        // Gone already, or pipelined behind responses that are not out yet and would have to be sent as HTTP
+        if (!channel.isActive() || !peer.isActive() || !HttpPipeliningHandler.isNext(ctx, sequence)) {
+            channel.close();
+            peer.close();
+            return;
+        }
+        ctx.writeAndFlush(HttpPipeliningHandler.sequenced(sequence, head));
+        final Relay relay = new Relay(peer);
+        channel.pipeline().addLast(relay);
+        UpgradeProxy.removeHttpHandlers(channel.pipeline(), relay);
+
+        // The codec passes on whatever it read after the 101
+        peer.eventLoop().execute(() -> {
+            peer.pipeline().addLast(new Relay(channel));
+            peer.pipeline().remove(this);
+            peer.pipeline().remove(HttpClientCodec.class);
+            channel.config().setAutoRead(true);
+        });
+    }
+
+    private void fail() {
+        ctx.channel().config().setAutoRead(true);
+        final FullHttpResponse response = new DefaultFullHttpResponse(
+            HttpVersion.HTTP_1_1,
+            HttpResponseStatus.BAD_GATEWAY,
+            Unpooled.copiedBuffer("Cluster node unavailable", CharsetUtil.UTF_8)
+        );
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
+        HttpUtil.setContentLength(response, response.content().readableBytes());
+        ctx.writeAndFlush(HttpPipeliningHandler.sequenced(sequence, response));
+    }
+
+    /** Writes whatever is read to the other connection, pausing reads while it cannot keep up. */
+    private static final class Relay extends ChannelInboundHandlerAdapter {
+        private final Channel other;
+
+        Relay(final Channel other) {
+            this.other = other;
+        }
+
+        @Override
+        public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+            other.writeAndFlush(msg);
+            // The two connections may be on different loops; checking on the other's keeps the pause
+            // in order with the writability change that lifts it
+            other.eventLoop().execute(() -> {
+                if (!other.isWritable()) {
+                    ctx.channel().config().setAutoRead(false);
+                }
+            });
+        }
+
+        @Override
+        public void channelWritabilityChanged(final ChannelHandlerContext ctx) throws Exception {
+            if (ctx.channel().isWritable()) {
+                other.config().setAutoRead(true);
+            }
+            super.channelWritabilityChanged(ctx);
+        }
+
+        @Override
+        public void channelInactive(final ChannelHandlerContext ctx) {
+            other.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) {
+            ctx.close();
+        }
+    }
+}
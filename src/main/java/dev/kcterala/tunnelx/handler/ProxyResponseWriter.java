@@ -0,0 +1,172 @@
+package dev.kcterala.tunnelx.handler;
+
+import dev.kcterala.tunnelx.logging.AccessLog;
+import dev.kcterala.tunnelx.logging.TunnelAccessLog;
+import dev.kcterala.tunnelx.model.TunnelResponse;
+import dev.kcterala.tunnelx.tunnel.ResponseListener;
+import dev.kcterala.tunnelx.tunnel.ResponseStream;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.*;
+import io.netty.util.AsciiString;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Writes a tunneled response to the public client. Complete responses go out as a single
+ * {@link FullHttpResponse}; streamed responses are written chunk by chunk, using chunked transfer
+ * encoding unless the tunnel client supplied a {@code Content-Length}.
+ *
+ * <p>Must be created while the request is being handled, so that writes are tagged with the
+ * request's pipelining sequence and keep their place on a persistent connection.
+ *
+ * <p>Given a {@link TunnelAccessLog}, it records the exchange once the last of the response has
+ * been handed to the channel.
+ */
+public class ProxyResponseWriter implements ResponseListener {
+    // Netty only has deprecated constants for these two
+    private static final AsciiString KEEP_ALIVE = AsciiString.cached("keep-alive");
+    private static final AsciiString PROXY_CONNECTION = AsciiString.cached("proxy-connection");
+
+    private final ChannelHandlerContext ctx;
+    private final int sequence;
+    private volatile boolean headWritten;
+
+    // Access log fields; the callbacks for one exchange never overlap
+    private final TunnelAccessLog accessLog;
+    private final String method;
+    private final String uri;
+    private final long bytesIn;
+    private final long startNanos;
+    private int statusCode;
+    private long bytesOut;
+
+    public ProxyResponseWriter(final ChannelHandlerContext ctx) {
+        this(ctx, null, null);
+    }
+
+    public ProxyResponseWriter(final ChannelHandlerContext ctx, final HttpRequest request,
+                               final TunnelAccessLog accessLog) {
+        this.ctx = ctx;
+        this.sequence = HttpPipeliningHandler.currentSequence(ctx);
+        this.accessLog = request != null ? accessLog : null;
+        this.method = request != null ? request.method().name() : null;
+        this.uri = request != null ? request.uri() : null;
+        this.bytesIn = request != null ? HttpUtil.getContentLength(request, 0L) : 0;
+        this.startNanos = this.accessLog != null ? System.nanoTime() : 0;
+    }
+
+    @Override
+    public void onResponse(final TunnelResponse response, final boolean endOfStream) {
+        if (headWritten) {
+            // The encoder would reject a second head, leaving the client waiting on the first
+            response.getBody().release();
+            ctx.close();
+            log(AccessLog.FLAG_RESET);
+            return;
+        }
+        headWritten = true;
+        final HttpResponseStatus status = HttpResponseStatus.valueOf(response.getStatusCode());
+        final ByteBuf body = response.getBody();
+        statusCode = response.getStatusCode();
+        bytesOut += body.readableBytes();
+
+        if (endOfStream) {
+            final FullHttpResponse httpResponse = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, body);
+            copyHeaders(response, httpResponse.headers());
+            if (body.isReadable() || !httpResponse.headers().contains(HttpHeaderNames.CONTENT_LENGTH)) {
+                HttpUtil.setContentLength(httpResponse, body.readableBytes());
+            }
+            ctx.writeAndFlush(sequenced(httpResponse));
+            log(0);
+            return;
+        }
+
+        final HttpResponse head = new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+        copyHeaders(response, head.headers());
+        if (!HttpUtil.isContentLengthSet(head)) {
+            HttpUtil.setTransferEncodingChunked(head, true);
+        }
+        ctx.write(sequenced(head));
+        if (body.isReadable()) {
+            ctx.write(sequenced(new DefaultHttpContent(body)));
+        } else {
+            body.release();
+        }
+        ctx.flush();
+    }
+
+    @Override
+    public void onContent(final ResponseStream stream, final ByteBuf content, final boolean endOfStream) {
+        final int bytes = content.readableBytes();
+        bytesOut += bytes;
+        final HttpContent chunk = endOfStream ? new DefaultLastHttpContent(content) : new DefaultHttpContent(content);
+
+        // Credit goes back to the tunnel client only once the bytes have left for the public client
+        final ChannelFuture future = ctx.writeAndFlush(sequenced(chunk));
+        future.addListener(f -> {
+            if (f.isSuccess()) {
+                stream.consumeBytes(bytes);
+            } else {
+                stream.reset();
+            }
+        });
+        if (endOfStream) {
+            log(0);
+        }
+    }
+
+    @Override
+    public void onReset() {
+        if (headWritten) {
+            // Part of the response is already out, the only honest signal left is closing
+            ctx.close();
+            log(AccessLog.FLAG_RESET);
+            return;
+        }
+        statusCode = HttpResponseStatus.BAD_GATEWAY.code();
+        final FullHttpResponse response = new DefaultFullHttpResponse(
+            HttpVersion.HTTP_1_1,
+            HttpResponseStatus.BAD_GATEWAY,
+            Unpooled.copiedBuffer("Tunnel stream reset", CharsetUtil.UTF_8)
+        );
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
+        HttpUtil.setContentLength(response, response.content().readableBytes());
+        ctx.writeAndFlush(sequenced(response));
+        log(AccessLog.FLAG_RESET);
+    }
+
+    private void log(final int flags) {
+        if (accessLog != null) {
+            accessLog.record(method, uri, ctx.channel().remoteAddress(), statusCode, flags, bytesIn, bytesOut,
+                    System.nanoTime() - startNanos);
+        }
+    }
+
+    private Object sequenced(final HttpObject msg) {
+        return HttpPipeliningHandler.sequenced(sequence, msg);
+    }
+
+    static void copyHeaders(final TunnelResponse response, final HttpHeaders headers) {
+        if (response.getHeaders() == null) {
+            return;
+        }
+        response.getHeaders().forEach((key, value) -> {
+            // Hop-by-hop headers describe the tunnel client's connection, not ours
+            if (!isHopByHop(key)) {
+                headers.set(key, value);
+            }
+        });
+    }
+
+    private static boolean isHopByHop(final String name) {
+        return HttpHeaderNames.CONNECTION.contentEqualsIgnoreCase(name)
+                || KEEP_ALIVE.contentEqualsIgnoreCase(name)
+                || HttpHeaderNames.TRANSFER_ENCODING.contentEqualsIgnoreCase(name)
+                || PROXY_CONNECTION.contentEqualsIgnoreCase(name)
+                || HttpHeaderNames.TE.contentEqualsIgnoreCase(name)
+                || HttpHeaderNames.TRAILER.contentEqualsIgnoreCase(name)
+                || HttpHeaderNames.UPGRADE.contentEqualsIgnoreCase(name);
+    }
+}
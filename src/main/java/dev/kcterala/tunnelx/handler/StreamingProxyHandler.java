@@ -0,0 +1,166 @@
+package dev.kcterala.tunnelx.handler;
+
+import dev.kcterala.tunnelx.tunnel.TunnelConnection;
+import dev.kcterala.tunnelx.tunnel.TunnelManager;
+import dev.kcterala.tunnelx.tunnel.TunnelStream;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.AttributeKey;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sits in front of the {@code HttpObjectAggregator} and streams requests for binary tunnels
+ * straight through: the request head is forwarded as soon as it is decoded and every
+ * {@link HttpContent} follows as a data frame. Protocol upgrades on HTTP/1.1 connections go to an
+ * {@link UpgradeProxy}. Everything else passes on to be aggregated.
+ *
+ * <p>The pool member a request goes to is picked here, once. Requests passed on carry it to the
+ * {@link HttpRequestHandler} in a channel attribute, see {@link #routedTunnel}.
+ */
+public class StreamingProxyHandler extends ChannelInboundHandlerAdapter {
+    /** The member picked for the request being aggregated; heads and their aggregates arrive in order. */
+    private static final AttributeKey<TunnelConnection> ROUTED = AttributeKey.valueOf("routedTunnel");
+
+    private final TunnelManager tunnelManager;
+    private final List<TunnelStream> openStreams = new ArrayList<>();
+    private boolean streaming;
+    private TunnelStream uploading;
+
+    public StreamingProxyHandler(final TunnelManager tunnelManager) {
+        this.tunnelManager = tunnelManager;
+    }
+
+    @Override
+    public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+        if (msg instanceof HttpRequest request) {
+            final boolean upgrade = isStreamableUpgrade(ctx, request);
+            final TunnelConnection tunnel = route(request, upgrade);
+            // Upgrades may arrive aggregated, from the h2c upgrade handler
+            if (upgrade && tunnel != null && tunnel.isBinary()) {
+                startUpgrade(ctx, request, tunnel);
+                return;
+            }
+            if (!(msg instanceof FullHttpRequest) && tunnel != null && tunnel.isBinary()
+                    && !mustAggregate(request, tunnel)) {
+                startStream(ctx, request, tunnel);
+                return;
+            }
+            streaming = false;
+            ctx.channel().attr(ROUTED).set(tunnel);
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        if (streaming && msg instanceof HttpContent content) {
+            final boolean last = content instanceof LastHttpContent;
+            if (uploading != null) {
+                // Ownership of the chunk passes to the stream
+                uploading.sendData(content.content(), last);
+            } else {
+                content.release();
+            }
+            if (last) {
+                streaming = false;
+                uploading = null;
+            }
+            return;
+        }
+
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+        for (final TunnelStream stream : openStreams) {
+            stream.reset();
+        }
+        openStreams.clear();
+        super.channelInactive(ctx);
+    }
+
+    /**
+     * Takes the member {@link #channelRead} picked for the aggregated {@code request}, or null if
+     * it is not for a tunnel.
+     */
+    static TunnelConnection routedTunnel(final ChannelHandlerContext ctx) {
+        return ctx.channel().attr(ROUTED).getAndSet(null);
+    }
+
+    /** Picks the member to serve {@code request}, a binary one for upgrades if there is any. */
+    private TunnelConnection route(final HttpRequest request, final boolean upgrade) {
+        if (!request.decoderResult().isSuccess() || HttpRequestHandler.isServerPath(request.uri())
+                || HttpRequestHandler.isTunnelEndpoint(request)) {
+            return null;
+        }
+        final String host = request.headers().get(HttpHeaderNames.HOST);
+        if (host == null) {
+            return null;
+        }
+        if (upgrade) {
+            final TunnelConnection binary = tunnelManager.route(host, true);
+            if (binary != null) {
+                return binary;
+            }
+        }
+        return tunnelManager.route(host, false);
+    }
+
+    /** Upgrades on HTTP/1.1 connections can be proxied; HTTP/2 streams cannot switch protocols. */
+    private static boolean isStreamableUpgrade(final ChannelHandlerContext ctx, final HttpRequest request) {
+        return HttpRequestHandler.isUpgrade(request) && ctx.pipeline().get(HttpServerCodec.class) != null;
+    }
+
+    /**
+     * GET and HEAD are aggregated when the cache or the coalescer may answer them, so they see the
+     * whole request before it is forwarded.
+     */
+    private static boolean mustAggregate(final HttpRequest request, final TunnelConnection tunnel) {
+        return (tunnel.getCache() != null || tunnel.getCoalescer() != null)
+                && (HttpMethod.GET.equals(request.method()) || HttpMethod.HEAD.equals(request.method()));
+    }
+
+    /** Forwards an upgrade request; whatever body it has is dropped, as nobody sends one. */
+    private void startUpgrade(final ChannelHandlerContext ctx, final HttpRequest request, final TunnelConnection tunnel) {
+        final UpgradeProxy proxy = new UpgradeProxy(ctx, request, tunnel.getAccessLog());
+        final TunnelStream stream = tunnel.openStream(request, false, proxy, ctx.channel());
+        proxy.attach(tunnel, stream);
+        openStreams.removeIf(TunnelStream::isClosed);
+        openStreams.add(stream);
+        tunnel.throttle(ctx.channel());
+
+        if (request instanceof FullHttpRequest full) {
+            full.release();
+        } else {
+            streaming = true;
+            uploading = null;
+        }
+    }
+
+    private void startStream(final ChannelHandlerContext ctx, final HttpRequest request, final TunnelConnection tunnel) {
+        final boolean hasBody = HttpUtil.isTransferEncodingChunked(request)
+                || HttpUtil.getContentLength(request, 0L) > 0;
+
+        if (tunnel.getCache() != null) {
+            tunnel.getCache().invalidate(request);
+        }
+        // Bodyless requests go out as a single frame and their empty LastHttpContent is dropped
+        final TunnelStream stream = tunnel.openStream(request, !hasBody, new ProxyResponseWriter(ctx, request, tunnel.getAccessLog()),
+                ctx.channel());
+        openStreams.removeIf(TunnelStream::isClosed);
+        openStreams.add(stream);
+        tunnel.throttle(ctx.channel());
+
+        streaming = true;
+        uploading = hasBody ? stream : null;
+    }
+}
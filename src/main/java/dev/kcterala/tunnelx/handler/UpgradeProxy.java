@@ -0,0 +1,165 @@
+package dev.kcterala.tunnelx.handler;
+
+import dev.kcterala.tunnelx.ServerInitializer;
+import dev.kcterala.tunnelx.logging.TunnelAccessLog;
+import dev.kcterala.tunnelx.model.TunnelResponse;
+import dev.kcterala.tunnelx.tunnel.ResponseStream;
+import dev.kcterala.tunnelx.tunnel.StreamRelay;
+import dev.kcterala.tunnelx.tunnel.TunnelConnection;
+import dev.kcterala.tunnelx.tunnel.TunnelStream;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.util.List;
+
+/**
+ * Proxies a protocol upgrade, such as a WebSocket handshake, to a binary tunnel's local service.
+ *
+ * <p>The upgrade request goes out as a stream we never end. If the tunnel client answers 101, the
+ * response is written with its {@code Upgrade} header, the HTTP/1.1 handlers are removed and the
+ * connection becomes a {@link StreamRelay}: WebSocket frames pass through in both directions as
+ * they arrive, without being decoded. Any other answer is written as an ordinary response.
+ */
+final class UpgradeProxy extends StreamRelay {
+    private final ChannelHandlerContext ctx;
+    private final ProxyResponseWriter writer;
+    private final int sequence;
+    private final String upgrade;
+    private final String method;
+    private final String uri;
+    private final TunnelAccessLog accessLog;
+    private final long startNanos = System.nanoTime();
+    private volatile boolean switched;
+
+    UpgradeProxy(final ChannelHandlerContext ctx, final HttpRequest request, final TunnelAccessLog accessLog) {
+        super(ctx.channel());
+        this.ctx = ctx;
+        this.writer = new ProxyResponseWriter(ctx, request, accessLog);
+        this.sequence = HttpPipeliningHandler.currentSequence(ctx);
+        this.upgrade = request.headers().get(HttpHeaderNames.UPGRADE);
+        this.method = request.method().name();
+        this.uri = request.uri();
+        this.accessLog = accessLog;
+    }
+
+    /** Sets the stream the upgrade went out on; bytes read after the switch go there. */
+    void attach(final TunnelConnection tunnel, final TunnelStream stream) {
+        start(tunnel, stream);
+    }
+
+    @Override
+    public void onResponse(final TunnelResponse response, final boolean endOfStream) {
+        if (switched) {
+            // Our own 502 for a stream that is already relaying; the connection no longer speaks HTTP
+            response.getBody().release();
+            channel.close();
+            return;
+        }
+        if (response.getStatusCode() != HttpResponseStatus.SWITCHING_PROTOCOLS.code() || endOfStream) {
+            writer.onResponse(response, endOfStream);
+            return;
+        }
+        switched = true;
+        // Data frames that follow are written on the event loop too, so they queue up behind the switch
+        if (channel.eventLoop().inEventLoop()) {
+            switchProtocols(response);
+        } else {
+            channel.eventLoop().execute(() -> switchProtocols(response));
+        }
+    }
+
+    @Override
+    public void onContent(final ResponseStream stream, final ByteBuf content, final boolean endOfStream) {
+        if (switched) {
+            super.onContent(stream, content, endOfStream);
+        } else {
+            writer.onContent(stream, content, endOfStream);
+        }
+    }
+
+    @Override
+    public void onReset() {
+        if (switched) {
+            super.onReset();
+        } else {
+            writer.onReset();
+        }
+    }
+
+    @Override
+    protected void closed() {
+        if (accessLog != null) {
+            accessLog.record(method, uri, channel.remoteAddress(), HttpResponseStatus.SWITCHING_PROTOCOLS.code(), 0,
+                    bytesIn(), bytesOut(), System.nanoTime() - startNanos);
+        }
+    }
+
+    private void switchProtocols(final TunnelResponse response) {
+        final ByteBuf body = response.getBody();
+        // Gone already, or pipelined behind responses that are not out yet and would have to be sent as HTTP
+        if (!channel.isActive() || !HttpPipeliningHandler.isNext(ctx, sequence)) {
+            body.release();
+            channel.close();
+            return;
+        }
+
+        final FullHttpResponse head = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                HttpResponseStatus.SWITCHING_PROTOCOLS, Unpooled.EMPTY_BUFFER);
+        ProxyResponseWriter.copyHeaders(response, head.headers());
+        head.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.UPGRADE);
+        head.headers().set(HttpHeaderNames.UPGRADE, upgradeOf(response));
+        // Encoded on the way through, so the codec can go right after
+        ctx.write(HttpPipeliningHandler.sequenced(sequence, head));
+
+        final ChannelPipeline pipeline = channel.pipeline();
+        pipeline.addLast(this);
+        removeHttpHandlers(pipeline, this);
+        if (body.isReadable()) {
+            channel.write(body);
+        } else {
+            body.release();
+        }
+        channel.flush();
+    }
+
+    /**
+     * Removes the codec and everything after it but {@code keep}; the codec goes last so that any
+     * bytes it holds reach {@code keep}.
+     */
+    static void removeHttpHandlers(final ChannelPipeline pipeline, final ChannelHandler keep) {
+        final List<String> names = pipeline.names();
+        final int codec = names.indexOf(pipeline.context(HttpServerCodec.class).name());
+        for (int i = names.size() - 1; i >= codec; i--) {
+            final ChannelHandler handler = pipeline.get(names.get(i));
+            // The pipeline's tail shows up in names() but is not a handler
+            if (handler != null && handler != keep) {
+                pipeline.remove(handler);
+            }
+        }
+        if (pipeline.get(ServerInitializer.IDLE_HANDLER) != null) {
+            pipeline.remove(ServerInitializer.IDLE_HANDLER);
+        }
+    }
+
+    private String upgradeOf(final TunnelResponse response) {
+        if (response.getHeaders() != null) {
+            for (final var entry : response.getHeaders().entrySet()) {
+                if (HttpHeaderNames.UPGRADE.contentEqualsIgnoreCase(entry.getKey())) {
+                    return entry.getValue();
+                }
+            }
+        }
+        return upgrade;
+    }
+}
@@ -1,27 +1,38 @@
 package dev.kcterala.tunnelx.handler;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.kcterala.tunnelx.Drain;
+import dev.kcterala.tunnelx.ServerConfig;
+import dev.kcterala.tunnelx.ServerInitializer;
+import dev.kcterala.tunnelx.cluster.ClusterNode;
 import dev.kcterala.tunnelx.model.TunnelMessage;
+import dev.kcterala.tunnelx.tunnel.FrameCodec;
+import dev.kcterala.tunnelx.tunnel.MessageCodec;
 import dev.kcterala.tunnelx.tunnel.TunnelConnection;
 import dev.kcterala.tunnelx.tunnel.TunnelManager;
+import dev.kcterala.tunnelx.tunnel.TunnelStream;
 import dev.kcterala.tunnelx.utils.ResponseUtils;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import io.netty.util.concurrent.Future;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.TimeUnit;
+
 public class WebSocketHandler extends SimpleChannelInboundHandler<WebSocketFrame> {
     private static final Logger logger = LoggerFactory.getLogger(WebSocketHandler.class);
     private final TunnelManager tunnelManager;
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    
+    /** Protocol name a client sends in its register message to opt into binary framing. */
+    public static final String BINARY_PROTOCOL = "binary";
     
     // Environment variables with defaults
-    private static final String DOMAIN = System.getenv("TUNNEL_DOMAIN") != null
-            ? System.getenv("TUNNEL_DOMAIN")
-            : "localhost";
-
     private static final String HTTP_SCHEME = System.getenv("TUNNEL_HTTP_SCHEME") != null
             ? System.getenv("TUNNEL_HTTP_SCHEME")
             : "http";
@@ -37,11 +48,51 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<WebSocketFrame
     @Override
     protected void channelRead0(final ChannelHandlerContext ctx, final WebSocketFrame frame) {
         if (frame instanceof TextWebSocketFrame) {
-            final String text = ((TextWebSocketFrame) frame).text();
-            handleMessage(ctx, text);
+            handleMessage(ctx, (TextWebSocketFrame) frame);
+        } else if (frame instanceof BinaryWebSocketFrame) {
+            handleFrame(ctx, (BinaryWebSocketFrame) frame);
+        }
+    }
+    
+    private void handleFrame(final ChannelHandlerContext ctx, final BinaryWebSocketFrame frame) {
+        try {
+            tunnelManager.handleTunnelFrame(ctx.channel(), FrameCodec.decode(frame.content()));
+        } catch (final Exception e) {
+            logger.error("Error handling binary frame of {} bytes", frame.content().readableBytes(), e);
         }
     }
 
+    @Override
+    public void userEventTriggered(final ChannelHandlerContext ctx, final Object evt) throws Exception {
+        if (evt instanceof WebSocketServerProtocolHandler.HandshakeComplete) {
+            // A tunnel is long-lived and no longer speaks HTTP/1.1
+            ctx.channel().config().setWriteBufferWaterMark(new WriteBufferWaterMark(
+                    ServerConfig.WRITE_BUFFER_LOW_BYTES, ServerConfig.WRITE_BUFFER_HIGH_BYTES));
+            final ChannelPipeline pipeline = ctx.pipeline();
+            for (final String name : new String[] {
+                    ServerInitializer.IDLE_HANDLER, ServerInitializer.KEEP_ALIVE_HANDLER, ServerInitializer.PIPELINING_HANDLER}) {
+                if (pipeline.get(name) != null) {
+                    pipeline.remove(name);
+                }
+            }
+        } else if (evt == Drain.EVENT && tunnelManager.isTunnelChannel(ctx.channel())) {
+            // The client connects again, reaching whichever process listens now, and keeps
+            // answering here until this connection is closed
+            final TunnelMessage reconnect = new TunnelMessage();
+            reconnect.setType("reconnect");
+            ResponseUtils.sendMessage(ctx, reconnect);
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+    
+    @Override
+    public void channelWritabilityChanged(final ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            tunnelManager.onTunnelWritable(ctx.channel());
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+    
     @Override
     public void channelInactive(final ChannelHandlerContext ctx) {
         // Clean up tunnel when connection closes
@@ -53,9 +104,9 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<WebSocketFrame
         }
     }
     
-    private void handleMessage(final ChannelHandlerContext ctx, final String message) {
+    private void handleMessage(final ChannelHandlerContext ctx, final TextWebSocketFrame frame) {
         try {
-            final TunnelMessage tunnelMessage = objectMapper.readValue(message, TunnelMessage.class);
+            final TunnelMessage tunnelMessage = MessageCodec.decode(frame.content());
             
             switch (tunnelMessage.getType()) {
                 case "register" -> handleRegister(ctx, tunnelMessage);
@@ -63,7 +114,8 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<WebSocketFrame
                 default -> logger.warn("Unknown message type: {}", tunnelMessage.getType());
             }
         } catch (final Exception e) {
-            logger.error("Error handling message: {}", message, e);
+            // Never log the message itself, it may carry request bodies and auth tokens
+            logger.error("Error handling text message of {} bytes", frame.content().readableBytes(), e);
         }
     }
     
@@ -75,9 +127,45 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<WebSocketFrame
             ResponseUtils.sendError(ctx, "Invalid auth token");
             return;
         }
+        if (tunnelManager.isDraining()) {
+            ResponseUtils.sendError(ctx, "Server is restarting, connect again");
+            return;
+        }
         
-        // Register tunnel
-        final TunnelConnection tunnel = new TunnelConnection(subdomain, ctx.channel(), tunnelManager);
+        // Raw bytes can only travel in binary data frames
+        final boolean binary = BINARY_PROTOCOL.equals(message.getProtocol());
+        final boolean tcp = Boolean.TRUE.equals(message.getTcp());
+        if (tcp && (!binary || tunnelManager.getTcpTunnels() == null)) {
+            ResponseUtils.sendError(ctx, binary ? "TCP tunnels are not enabled" : "TCP tunnels need the binary protocol");
+            return;
+        }
+        
+        // A subdomain lives on one node of a cluster; its custom domains go with it
+        final ClusterNode cluster = tunnelManager.getCluster();
+        if (cluster != null) {
+            if (cluster.isServedElsewhere(subdomain + "." + ServerConfig.DOMAIN)) {
+                ResponseUtils.sendError(ctx, "Subdomain is connected to another cluster node");
+                return;
+            }
+            if (message.getDomains() != null) {
+                for (final String domain : message.getDomains()) {
+                    if (cluster.isServedElsewhere(domain)) {
+                        ResponseUtils.sendError(ctx, "Domain not available: " + domain);
+                        return;
+                    }
+                }
+            }
+        }
+        
+        final String unavailable = tunnelManager.getRouter().claim(subdomain, message.getDomains());
+        if (unavailable != null) {
+            ResponseUtils.sendError(ctx, "Domain not available: " + unavailable);
+            return;
+        }
+        
+        // Register tunnel, switching to binary framing if the client asked for it
+        final TunnelConnection tunnel = new TunnelConnection(subdomain, ctx.channel(), tunnelManager, binary,
+                requestTimeoutMillis(message));
         tunnelManager.registerTunnel(subdomain, tunnel);
         
         logger.info("Registered tunnel for subdomain: {}", subdomain);
@@ -86,14 +174,44 @@ public class WebSocketHandler extends SimpleChannelInboundHandler<WebSocketFrame
         final TunnelMessage response = new TunnelMessage();
         response.setType("registered");
         response.setSubdomain(subdomain);
-        response.setPublicUrl(HTTP_SCHEME + "://" + subdomain + "." + DOMAIN + PORT);
+        response.setPublicUrl(HTTP_SCHEME + "://" + subdomain + "." + ServerConfig.DOMAIN + PORT);
+        response.setDomains(message.getDomains());
+        if (binary) {
+            response.setProtocol(BINARY_PROTOCOL);
+            response.setInitialWindow(TunnelStream.INITIAL_WINDOW);
+        }
         
+        if (tcp) {
+            // The reply waits for the port, which is shared with the rest of the pool
+            final Future<Integer> port = tunnelManager.getTcpTunnels().open(subdomain);
+            port.addListener(f -> {
+                if (f.isSuccess()) {
+                    response.setTcpPort(port.getNow());
+                    ResponseUtils.sendMessage(ctx, response);
+                } else {
+                    logger.warn("No TCP port for tunnel {}: {}", subdomain, f.cause().toString());
+                    ResponseUtils.sendError(ctx, "No TCP port available");
+                    ctx.close();
+                }
+            });
+            return;
+        }
         ResponseUtils.sendMessage(ctx, response);
     }
     
     private void handleResponse(final ChannelHandlerContext ctx, final TunnelMessage message) {
         // Handle response from client back to original requester
-        tunnelManager.handleTunnelResponse(message);
+        tunnelManager.handleTunnelResponse(ctx.channel(), message);
+    }
+    
+    /** The client's requested timeout, capped by the server maximum, or the server default. */
+    private static long requestTimeoutMillis(final TunnelMessage message) {
+        final long max = TimeUnit.SECONDS.toMillis(ServerConfig.MAX_REQUEST_TIMEOUT_SECONDS);
+        final Integer requested = message.getRequestTimeoutMs();
+        if (requested == null || requested <= 0) {
+            return Math.min(TimeUnit.SECONDS.toMillis(ServerConfig.REQUEST_TIMEOUT_SECONDS), max);
+        }
+        return Math.min(requested, max);
     }
     
     private boolean isValidAuthToken(final String authToken) {
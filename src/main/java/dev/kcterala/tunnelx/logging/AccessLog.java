@@ -0,0 +1,243 @@
+package dev.kcterala.tunnelx.logging;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The access log of tunneled requests, written as JSON lines by a background thread.
+ *
+ * <p>Event loops never format or write anything. They claim a slot in a preallocated ring,
+ * fill in its fields and publish it; the writer drains published slots in batches and flushes
+ * after each. When the ring is full the record is dropped and counted, so a slow disk costs log
+ * lines instead of request latency.
+ */
+public final class AccessLog {
+    private static final Logger logger = LoggerFactory.getLogger(AccessLog.class);
+    /** How long the writer sleeps when the ring is empty. */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final int BATCH = 1024;
+
+    /** Set when the exchange ended with a reset instead of a complete response. */
+    public static final int FLAG_RESET = 1;
+
+    private static volatile AccessLog active;
+
+    private final int mask;
+    private final AtomicLongArray published;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    // One record per slot, written by the producer that claimed it before publishing
+    private final long[] timeMillis;
+    private final long[] durationNanos;
+    private final long[] bytesIn;
+    private final long[] bytesOut;
+    private final int[] status;
+    private final int[] flags;
+    private final String[] tunnel;
+    private final String[] method;
+    private final String[] uri;
+    private final SocketAddress[] remote;
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder limited = new LongAdder();
+    private final Writer out;
+
+    private AccessLog(final int capacity, final Writer out) {
+        final int size = Integer.highestOneBit(Math.max(2, capacity - 1) * 2);
+        this.mask = size - 1;
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+        this.timeMillis = new long[size];
+        this.durationNanos = new long[size];
+        this.bytesIn = new long[size];
+        this.bytesOut = new long[size];
+        this.status = new int[size];
+        this.flags = new int[size];
+        this.tunnel = new String[size];
+        this.method = new String[size];
+        this.uri = new String[size];
+        this.remote = new SocketAddress[size];
+        this.out = out;
+    }
+
+    /**
+     * Opens {@code path} for appending and starts the writer, unless {@code path} is empty. Until
+     * then, and if opening fails, nothing is logged.
+     */
+    public static synchronized void start(final String path, final int capacity) {
+        if (active != null || path == null || path.isEmpty()) {
+            return;
+        }
+        final Writer out;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path, true), StandardCharsets.UTF_8),
+                    64 * 1024);
+        } catch (final IOException e) {
+            logger.error("Cannot open access log {}, access logging is off", path, e);
+            return;
+        }
+        final AccessLog log = new AccessLog(capacity, out);
+        final Thread writer = new Thread(log::drainLoop, "access-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        active = log;
+        logger.info("Writing access log to {}", path);
+    }
+
+    /** The log a tunnel's requests go to, or null if access logging is off. */
+    public static TunnelAccessLog forTunnel(final String subdomain, final int sampleEvery, final int maxPerSecond) {
+        final AccessLog log = active;
+        return log != null ? new TunnelAccessLog(log, subdomain, sampleEvery, maxPerSecond) : null;
+    }
+
+    /** Records written, dropped because the ring was full, and left out by a tunnel's rate limit. */
+    public static long getWritten() {
+        final AccessLog log = active;
+        return log != null ? log.written.sum() : 0;
+    }
+
+    public static long getDropped() {
+        final AccessLog log = active;
+        return log != null ? log.dropped.sum() : 0;
+    }
+
+    public static long getLimited() {
+        final AccessLog log = active;
+        return log != null ? log.limited.sum() : 0;
+    }
+
+    void recordLimited() {
+        limited.increment();
+    }
+
+    /** Queues one record for the writer; never blocks. */
+    void append(final String tunnel, final String method, final String uri, final SocketAddress remote,
+                final int status, final int flags, final long bytesIn, final long bytesOut, final long durationNanos) {
+        final long sequence = claim();
+        if (sequence < 0) {
+            dropped.increment();
+            return;
+        }
+        final int slot = (int) sequence & mask;
+        this.timeMillis[slot] = System.currentTimeMillis();
+        this.durationNanos[slot] = durationNanos;
+        this.bytesIn[slot] = bytesIn;
+        this.bytesOut[slot] = bytesOut;
+        this.status[slot] = status;
+        this.flags[slot] = flags;
+        this.tunnel[slot] = tunnel;
+        this.method[slot] = method;
+        this.uri[slot] = uri;
+        this.remote[slot] = remote;
+        published.setRelease(slot, sequence);
+    }
+
+    private long claim() {
+        while (true) {
+            final long sequence = tail.get();
+            if (sequence - head > mask) {
+                return -1;
+            }
+            if (tail.compareAndSet(sequence, sequence + 1)) {
+                return sequence;
+            }
+        }
+    }
+
+    private void drainLoop() {
+        final StringBuilder line = new StringBuilder(256);
+        while (true) {
+            int drained = 0;
+            long next = head;
+            while (drained < BATCH) {
+                final int slot = (int) next & mask;
+                if (published.getAcquire(slot) != next) {
+                    break;
+                }
+                line.setLength(0);
+                format(slot, line);
+                // Let go of the strings before the slot can be claimed again
+                tunnel[slot] = null;
+                method[slot] = null;
+                uri[slot] = null;
+                remote[slot] = null;
+                head = ++next;
+                drained++;
+                try {
+                    out.append(line);
+                } catch (final IOException e) {
+                    dropped.increment();
+                    continue;
+                }
+                written.increment();
+            }
+            if (drained > 0) {
+                try {
+                    out.flush();
+                } catch (final IOException e) {
+                    logger.warn("Access log write failed", e);
+                }
+            } else {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    private void format(final int slot, final StringBuilder line) {
+        line.append("{\"time\":\"").append(Instant.ofEpochMilli(timeMillis[slot])).append('"');
+        appendString(line, "tunnel", tunnel[slot]);
+        appendString(line, "remote", remote[slot] instanceof InetSocketAddress address
+                ? address.getHostString() : null);
+        appendString(line, "method", method[slot]);
+        appendString(line, "uri", uri[slot]);
+        line.append(",\"status\":").append(status[slot])
+                .append(",\"bytesIn\":").append(bytesIn[slot])
+                .append(",\"bytesOut\":").append(bytesOut[slot])
+                .append(",\"durationMs\":").append(durationNanos[slot] / 1000 / 1000.0);
+        if ((flags[slot] & FLAG_RESET) != 0) {
+            line.append(",\"reset\":true");
+        }
+        line.append("}\n");
+    }
+
+    private static void appendString(final StringBuilder line, final String name, final String value) {
+        if (value == null) {
+            return;
+        }
+        line.append(",\"").append(name).append("\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"' -> line.append("\\\"");
+                case '\\' -> line.append("\\\\");
+                default -> {
+                    if (c < 0x20) {
+                        line.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        line.append(c);
+                    }
+                }
+            }
+        }
+        line.append('"');
+    }
+}
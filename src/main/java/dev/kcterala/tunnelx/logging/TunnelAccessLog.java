@@ -0,0 +1,51 @@
+package dev.kcterala.tunnelx.logging;
+
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One tunnel's view of the {@link AccessLog}: keeps one in {@code sampleEvery} successful
+ * requests and at most {@code maxPerSecond} records a second. Server errors and resets skip the
+ * sampling, but not the rate limit.
+ */
+public final class TunnelAccessLog {
+    private final AccessLog log;
+    private final String subdomain;
+    private final int sampleEvery;
+    private final int maxPerSecond;
+    private final AtomicLong requests = new AtomicLong();
+    // The rate limit window; racing threads may let a few extra records through at its edge
+    private volatile long windowSecond;
+    private final AtomicInteger windowCount = new AtomicInteger();
+
+    TunnelAccessLog(final AccessLog log, final String subdomain, final int sampleEvery, final int maxPerSecond) {
+        this.log = log;
+        this.subdomain = subdomain;
+        this.sampleEvery = Math.max(1, sampleEvery);
+        this.maxPerSecond = maxPerSecond;
+    }
+
+    /** Logs one finished exchange if it is sampled and the tunnel is under its rate limit. */
+    public void record(final String method, final String uri, final SocketAddress remote, final int status,
+                       final int flags, final long bytesIn, final long bytesOut, final long durationNanos) {
+        final boolean failed = status >= 500 || (flags & AccessLog.FLAG_RESET) != 0;
+        if (!failed && sampleEvery > 1 && requests.getAndIncrement() % sampleEvery != 0) {
+            return;
+        }
+        if (maxPerSecond > 0 && !acquire()) {
+            log.recordLimited();
+            return;
+        }
+        log.append(subdomain, method, uri, remote, status, flags, bytesIn, bytesOut, durationNanos);
+    }
+
+    private boolean acquire() {
+        final long second = System.nanoTime() / 1_000_000_000L;
+        if (second != windowSecond) {
+            windowSecond = second;
+            windowCount.set(0);
+        }
+        return windowCount.incrementAndGet() <= maxPerSecond;
+    }
+}
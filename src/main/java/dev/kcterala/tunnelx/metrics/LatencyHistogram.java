@@ -0,0 +1,100 @@
+package dev.kcterala.tunnelx.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear latency histogram in the style of HdrHistogram. Values are kept in microseconds;
+ * every power of two is split into {@value #SUB_BUCKETS} linear buckets, so any reported value is
+ * within 12.5% of the recorded one. Recording is a single atomic increment and never allocates.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** Powers of two above the linear range; 2^36 us is about 19 hours. */
+    private static final int MAX_MAGNITUDE = 36;
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sumNanos = new LongAdder();
+
+    public void record(final long nanos) {
+        final long value = Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(value / 1000));
+        sumNanos.add(value);
+    }
+
+    /** Copies the current counts; buckets may be a few increments apart from each other. */
+    public Snapshot snapshot() {
+        final long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total, sumNanos.sum());
+    }
+
+    static int indexOf(final long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        final int magnitude = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_MAGNITUDE);
+        if (magnitude == MAX_MAGNITUDE && micros >= 1L << (MAX_MAGNITUDE + 1)) {
+            return BUCKETS - 1;
+        }
+        final int sub = (int) (micros >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (magnitude - SUB_BUCKET_BITS) * SUB_BUCKETS + sub;
+    }
+
+    /** Exclusive upper bound of bucket {@code index}, in microseconds. */
+    static long upperBoundMicros(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index + 1;
+        }
+        final int magnitude = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        final int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub + 1) << (magnitude - SUB_BUCKET_BITS);
+    }
+
+    /** A point-in-time copy of the histogram. */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sumNanos;
+
+        private Snapshot(final long[] counts, final long count, final long sumNanos) {
+            this.counts = counts;
+            this.count = count;
+            this.sumNanos = sumNanos;
+        }
+
+        public long getCount() { return count; }
+        public long getSumNanos() { return sumNanos; }
+
+        /** The value below which {@code percentile} percent of samples fall, or 0 if there are none. */
+        public long percentileNanos(final double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperBoundMicros(i) * 1000;
+                }
+            }
+            return upperBoundMicros(counts.length - 1) * 1000;
+        }
+
+        /** Samples below {@code micros}, exact when it is a power of two. */
+        public long countBelow(final long micros) {
+            long below = 0;
+            for (int i = 0; i < counts.length && upperBoundMicros(i) <= micros; i++) {
+                below += counts[i];
+            }
+            return below;
+        }
+    }
+}
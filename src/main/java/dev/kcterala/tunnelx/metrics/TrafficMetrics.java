@@ -0,0 +1,150 @@
+package dev.kcterala.tunnelx.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request counters and latency histograms for one tunnel, or for the whole server. Everything is
+ * recorded with {@link LongAdder}s and atomic array increments, so the forwarding path neither
+ * locks nor allocates. Each update is also applied to the parent, if there is one.
+ */
+public final class TrafficMetrics {
+    private final TrafficMetrics parent;
+
+    private final LongAdder requests = new LongAdder();
+    /** Responses by status class, 1xx at index 0 through 5xx at index 4. */
+    private final LongAdder[] responses = new LongAdder[5];
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder cacheRevalidations = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    /** From sending the request to the tunnel client until its response head arrives. */
+    private final LatencyHistogram tunnelLatency = new LatencyHistogram();
+    /** From accepting the request until the exchange is over, including queueing and the body. */
+    private final LatencyHistogram totalLatency = new LatencyHistogram();
+
+    public TrafficMetrics() {
+        this(null);
+    }
+
+    public TrafficMetrics(final TrafficMetrics parent) {
+        this.parent = parent;
+        for (int i = 0; i < responses.length; i++) {
+            responses[i] = new LongAdder();
+        }
+    }
+
+    public void recordRequest() {
+        requests.increment();
+        if (parent != null) {
+            parent.recordRequest();
+        }
+    }
+
+    public void recordResponse(final int statusCode) {
+        final int statusClass = statusCode / 100;
+        if (statusClass >= 1 && statusClass <= 5) {
+            responses[statusClass - 1].increment();
+        }
+        if (parent != null) {
+            parent.recordResponse(statusCode);
+        }
+    }
+
+    public void recordTimeout() {
+        timeouts.increment();
+        if (parent != null) {
+            parent.recordTimeout();
+        }
+    }
+
+    /** A request shed with a 503 because the tunnel was saturated. */
+    public void recordRejected() {
+        rejected.increment();
+        if (parent != null) {
+            parent.recordRejected();
+        }
+    }
+
+    /** Body bytes sent to the tunnel client. */
+    public void recordBytesIn(final long bytes) {
+        bytesIn.add(bytes);
+        if (parent != null) {
+            parent.recordBytesIn(bytes);
+        }
+    }
+
+    /** Body bytes received from the tunnel client. */
+    public void recordBytesOut(final long bytes) {
+        bytesOut.add(bytes);
+        if (parent != null) {
+            parent.recordBytesOut(bytes);
+        }
+    }
+
+    /** A request answered from the edge cache without reaching the tunnel. */
+    public void recordCacheHit() {
+        cacheHits.increment();
+        if (parent != null) {
+            parent.recordCacheHit();
+        }
+    }
+
+    /** A cacheable request that had to be forwarded. */
+    public void recordCacheMiss() {
+        cacheMisses.increment();
+        if (parent != null) {
+            parent.recordCacheMiss();
+        }
+    }
+
+    /** A stale entry the tunnel client confirmed with a 304. */
+    public void recordCacheRevalidation() {
+        cacheRevalidations.increment();
+        if (parent != null) {
+            parent.recordCacheRevalidation();
+        }
+    }
+
+    /** A request that waited on an identical one instead of being forwarded itself. */
+    public void recordCoalesced() {
+        coalesced.increment();
+        if (parent != null) {
+            parent.recordCoalesced();
+        }
+    }
+
+    public void recordTunnelLatency(final long nanos) {
+        tunnelLatency.record(nanos);
+        if (parent != null) {
+            parent.recordTunnelLatency(nanos);
+        }
+    }
+
+    public void recordTotalLatency(final long nanos) {
+        totalLatency.record(nanos);
+        if (parent != null) {
+            parent.recordTotalLatency(nanos);
+        }
+    }
+
+    public long getRequests() { return requests.sum(); }
+    public long getTimeouts() { return timeouts.sum(); }
+    public long getRejected() { return rejected.sum(); }
+    public long getBytesIn() { return bytesIn.sum(); }
+    public long getBytesOut() { return bytesOut.sum(); }
+    public long getCacheHits() { return cacheHits.sum(); }
+    public long getCacheMisses() { return cacheMisses.sum(); }
+    public long getCacheRevalidations() { return cacheRevalidations.sum(); }
+    public long getCoalesced() { return coalesced.sum(); }
+    public LatencyHistogram getTunnelLatency() { return tunnelLatency; }
+    public LatencyHistogram getTotalLatency() { return totalLatency; }
+
+    /** Responses with status {@code statusClass}xx, e.g. 5 for server errors. */
+    public long getResponses(final int statusClass) {
+        return responses[statusClass - 1].sum();
+    }
+}
@@ -1,16 +1,27 @@
 package dev.kcterala.tunnelx.model;
 
-import java.util.function.Consumer;
+import dev.kcterala.tunnelx.tunnel.ResponseListener;
+import io.netty.util.Timeout;
 
 public class PendingRequest {
-    private final Consumer<TunnelResponse> callback;
+    private final ResponseListener listener;
     private final long timestamp;
+    private volatile Timeout timeout;
     
-    public PendingRequest(final Consumer<TunnelResponse> callback) {
-        this.callback = callback;
+    public PendingRequest(final ResponseListener listener) {
+        this.listener = listener;
         this.timestamp = System.currentTimeMillis();
     }
     
-    public Consumer<TunnelResponse> getCallback() { return callback; }
+    public ResponseListener getListener() { return listener; }
     public long getTimestamp() { return timestamp; }
+    
+    public void setTimeout(final Timeout timeout) { this.timeout = timeout; }
+    
+    public void cancelTimeout() {
+        final Timeout current = timeout;
+        if (current != null) {
+            current.cancel();
+        }
+    }
 }
\ No newline at end of file
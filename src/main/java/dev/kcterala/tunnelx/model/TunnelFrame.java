@@ -0,0 +1,61 @@
+package dev.kcterala.tunnelx.model;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.Map;
+
+/**
+ * A decoded frame of the binary tunnel protocol.
+ *
+ * <p>Every {@code BinaryWebSocketFrame} on a tunnel that negotiated the binary protocol carries a
+ * fixed 14 byte header followed by a header block and the raw body:
+ * <pre>
+ * +-----------------+--------+--------+-----------------------+--------------+------+
+ * | stream id (8)   | type(1)| flags(1)| header block len (4) | header block | body |
+ * +-----------------+--------+--------+-----------------------+--------------+------+
+ * </pre>
+ * The body is a retained slice of the inbound frame, so callers own it and must release it.
+ *
+ * <p>A request or response whose frame lacks {@link #FLAG_END_STREAM} continues with
+ * {@link #TYPE_DATA} frames. Each side starts every stream with a receive window of
+ * {@code initialWindow} bytes (advertised in the {@code registered} message) and replenishes the
+ * peer's credit with {@link #TYPE_WINDOW_UPDATE} as it consumes data.
+ */
+public class TunnelFrame {
+    public static final byte TYPE_REQUEST = 1;
+    public static final byte TYPE_RESPONSE = 2;
+    /** A chunk of a request or response body. Counts against the receiver's stream window. */
+    public static final byte TYPE_DATA = 3;
+    /** Grants the peer more send window on a stream; the body is a 4 byte increment. */
+    public static final byte TYPE_WINDOW_UPDATE = 4;
+    /** Aborts a stream in either direction. */
+    public static final byte TYPE_RESET = 5;
+
+    /** Set on the last frame of a stream. */
+    public static final byte FLAG_END_STREAM = 0x1;
+
+    private final long streamId;
+    private final byte type;
+    private final byte flags;
+    private final Map<String, String> headers;
+    private final ByteBuf body;
+
+    public TunnelFrame(final long streamId, final byte type, final byte flags,
+                       final Map<String, String> headers, final ByteBuf body) {
+        this.streamId = streamId;
+        this.type = type;
+        this.flags = flags;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    public long getStreamId() { return streamId; }
+    public byte getType() { return type; }
+    public byte getFlags() { return flags; }
+    public Map<String, String> getHeaders() { return headers; }
+    public ByteBuf getBody() { return body; }
+
+    public boolean isEndStream() {
+        return (flags & FLAG_END_STREAM) != 0;
+    }
+}
@@ -1,7 +1,9 @@
 package dev.kcterala.tunnelx.model;
 
+import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 
+import java.util.List;
 import java.util.Map;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
@@ -10,8 +12,17 @@ public class TunnelMessage {
     private String subdomain;
     private String authToken;
     private String publicUrl;
+    /** Custom domains ({@code shop.example.com}) or wildcards ({@code *.example.com}) to route here. */
+    private List<String> domains;
+    private String protocol;
+    private Integer initialWindow;
+    private Integer requestTimeoutMs;
+    private Boolean tcp;
+    private Integer tcpPort;
     private String error;
-    private String requestId;
+    /** Sent as a JSON string, so clients that treat ids as opaque strings keep working. */
+    @JsonFormat(shape = JsonFormat.Shape.STRING)
+    private long requestId;
     private String method;
     private String path;
     private Map<String, String> headers;
@@ -31,11 +42,29 @@ public class TunnelMessage {
     public String getPublicUrl() { return publicUrl; }
     public void setPublicUrl(final String publicUrl) { this.publicUrl = publicUrl; }
     
+    public List<String> getDomains() { return domains; }
+    public void setDomains(final List<String> domains) { this.domains = domains; }
+    
+    public String getProtocol() { return protocol; }
+    public void setProtocol(final String protocol) { this.protocol = protocol; }
+    
+    public Integer getInitialWindow() { return initialWindow; }
+    public void setInitialWindow(final Integer initialWindow) { this.initialWindow = initialWindow; }
+
+    public Integer getRequestTimeoutMs() { return requestTimeoutMs; }
+    public void setRequestTimeoutMs(final Integer requestTimeoutMs) { this.requestTimeoutMs = requestTimeoutMs; }
+
+    public Boolean getTcp() { return tcp; }
+    public void setTcp(final Boolean tcp) { this.tcp = tcp; }
+
+    public Integer getTcpPort() { return tcpPort; }
+    public void setTcpPort(final Integer tcpPort) { this.tcpPort = tcpPort; }
+    
     public String getError() { return error; }
     public void setError(final String error) { this.error = error; }
     
-    public String getRequestId() { return requestId; }
-    public void setRequestId(final String requestId) { this.requestId = requestId; }
+    public long getRequestId() { return requestId; }
+    public void setRequestId(final long requestId) { this.requestId = requestId; }
     
     public String getMethod() { return method; }
     public void setMethod(final String method) { this.method = method; }
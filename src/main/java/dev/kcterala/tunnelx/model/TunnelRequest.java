@@ -1,33 +1,44 @@
 package dev.kcterala.tunnelx.model;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.handler.codec.http.HttpHeaders;
 
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * A request on its way to a tunnel client. The request owns {@code content}; whoever forwards it
+ * must release it.
+ */
 public class TunnelRequest {
     private final String method;
     private final String path;
-    private final Map<String, String> headers;
-    private final byte[] body;
+    private final HttpHeaders httpHeaders;
+    private final ByteBuf content;
     
     public TunnelRequest(final String method, final String path, final HttpHeaders httpHeaders, final ByteBuf content) {
         this.method = method;
         this.path = path;
-        this.headers = new HashMap<>();
-        
-        // Convert Netty headers to Map
-        httpHeaders.forEach(entry -> 
-            this.headers.put(entry.getKey(), entry.getValue()));
-        
-        // Convert ByteBuf to byte array
-        this.body = new byte[content.readableBytes()];
-        content.readBytes(this.body);
+        this.httpHeaders = httpHeaders;
+        this.content = content;
     }
     
     public String getMethod() { return method; }
     public String getPath() { return path; }
-    public Map<String, String> getHeaders() { return headers; }
-    public byte[] getBody() { return body; }
+    public HttpHeaders getHttpHeaders() { return httpHeaders; }
+    public ByteBuf getContent() { return content; }
+    
+    public Map<String, String> getHeaders() {
+        // Convert Netty headers to Map
+        final Map<String, String> headers = new HashMap<>();
+        httpHeaders.forEach(entry -> 
+            headers.put(entry.getKey(), entry.getValue()));
+        return headers;
+    }
+    
+    public byte[] getBody() {
+        // Only the JSON protocol needs the body as a byte array
+        return ByteBufUtil.getBytes(content);
+    }
 }
\ No newline at end of file
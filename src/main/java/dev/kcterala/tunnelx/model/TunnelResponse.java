@@ -1,13 +1,19 @@
 package dev.kcterala.tunnelx.model;
 
+import io.netty.buffer.ByteBuf;
+
 import java.util.Map;
 
+/**
+ * A response coming back from a tunnel client. The receiver owns {@code body} and must release it,
+ * usually by writing it to the public channel.
+ */
 public class TunnelResponse {
     private final int statusCode;
     private final Map<String, String> headers;
-    private final byte[] body;
+    private final ByteBuf body;
     
-    public TunnelResponse(final int statusCode, final Map<String, String> headers, final byte[] body) {
+    public TunnelResponse(final int statusCode, final Map<String, String> headers, final ByteBuf body) {
         this.statusCode = statusCode;
         this.headers = headers;
         this.body = body;
@@ -15,5 +21,5 @@ public class TunnelResponse {
     
     public int getStatusCode() { return statusCode; }
     public Map<String, String> getHeaders() { return headers; }
-    public byte[] getBody() { return body; }
+    public ByteBuf getBody() { return body; }
 }
\ No newline at end of file
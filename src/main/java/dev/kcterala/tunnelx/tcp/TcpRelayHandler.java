@@ -0,0 +1,102 @@
+package dev.kcterala.tunnelx.tcp;
+
+import dev.kcterala.tunnelx.ServerConfig;
+import dev.kcterala.tunnelx.logging.AccessLog;
+import dev.kcterala.tunnelx.logging.TunnelAccessLog;
+import dev.kcterala.tunnelx.model.TunnelResponse;
+import dev.kcterala.tunnelx.tunnel.StreamRelay;
+import dev.kcterala.tunnelx.tunnel.TunnelConnection;
+import dev.kcterala.tunnelx.tunnel.TunnelManager;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Relays one connection accepted on a tunnel's TCP port over a stream of a binary tunnel.
+ *
+ * <p>The stream opens with a {@code CONNECT} head whose path is the public host and port. The
+ * tunnel client answers with status 200 once it has reached its local service, or with anything
+ * else, or a reset, to refuse the connection. After that both directions carry raw bytes, see
+ * {@link StreamRelay}.
+ */
+class TcpRelayHandler extends StreamRelay {
+    private static final Logger logger = LoggerFactory.getLogger(TcpRelayHandler.class);
+
+    private final TunnelManager tunnelManager;
+    private final String subdomain;
+    private final int port;
+
+    // Access log fields
+    private final long startNanos = System.nanoTime();
+    private volatile int statusCode;
+    private volatile boolean reset;
+
+    TcpRelayHandler(final Channel channel, final TunnelManager tunnelManager, final String subdomain, final int port) {
+        super(channel);
+        this.tunnelManager = tunnelManager;
+        this.subdomain = subdomain;
+        this.port = port;
+    }
+
+    @Override
+    public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+        // JSON members of the pool cannot carry raw bytes
+        final TunnelConnection tunnel = tunnelManager.getTunnel(subdomain, true);
+        if (tunnel == null) {
+            ctx.close();
+            return;
+        }
+        final HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.CONNECT,
+                ServerConfig.DOMAIN + ":" + port);
+        start(tunnel, tunnel.openStream(request, false, this, channel));
+        logger.debug("TCP connection from {} on port {} for tunnel {}", channel.remoteAddress(), port, subdomain);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) {
+        logger.debug("TCP connection on port {} failed", port, cause);
+        ctx.close();
+    }
+
+    @Override
+    public void onResponse(final TunnelResponse response, final boolean endOfStream) {
+        statusCode = response.getStatusCode();
+        final ByteBuf body = response.getBody();
+        if (statusCode != 200) {
+            // Refused, or our own 502/503/504; there is no way to tell a raw socket why
+            body.release();
+            channel.close();
+            return;
+        }
+        if (endOfStream) {
+            channel.writeAndFlush(body).addListener(ChannelFutureListener.CLOSE);
+        } else if (body.isReadable()) {
+            channel.writeAndFlush(body);
+        } else {
+            body.release();
+        }
+    }
+
+    @Override
+    public void onReset() {
+        reset = true;
+        super.onReset();
+    }
+
+    @Override
+    protected void closed() {
+        final TunnelAccessLog accessLog = tunnel().getAccessLog();
+        if (accessLog != null) {
+            accessLog.record(HttpMethod.CONNECT.name(), ":" + port, channel.remoteAddress(), statusCode,
+                    reset ? AccessLog.FLAG_RESET : 0, bytesIn(), bytesOut(), System.nanoTime() - startNanos);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package dev.kcterala.tunnelx.tcp;
+
+import dev.kcterala.tunnelx.ServerConfig;
+import dev.kcterala.tunnelx.Transport;
+import dev.kcterala.tunnelx.tunnel.TunnelListener;
+import dev.kcterala.tunnelx.tunnel.TunnelManager;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Public TCP ports handed out to tunnels that asked for one.
+ *
+ * <p>Each subdomain gets at most one port from the configured range, shared by every connection
+ * in its pool. Every connection accepted on it becomes a stream on one of those tunnels, see
+ * {@link TcpRelayHandler}. The port is closed and returned to the range once the subdomain has no
+ * tunnels left.
+ */
+public final class TcpTunnels implements TunnelListener {
+    private static final Logger logger = LoggerFactory.getLogger(TcpTunnels.class);
+
+    private final TunnelManager tunnelManager;
+    private final ServerBootstrap bootstrap;
+    private final int minPort;
+    private final int maxPort;
+
+    // Guarded by this
+    private final Map<String, Port> ports = new HashMap<>();
+    private final BitSet used = new BitSet();
+    private int next;
+
+    public TcpTunnels(final TunnelManager tunnelManager, final Transport transport, final EventLoopGroup bossGroup,
+                      final EventLoopGroup workerGroup, final int minPort, final int maxPort) {
+        this.tunnelManager = tunnelManager;
+        this.minPort = minPort;
+        this.maxPort = maxPort;
+        this.next = minPort;
+        // Half closure lets a client that has finished sending still read the rest of the reply
+        this.bootstrap = new ServerBootstrap()
+                .group(bossGroup, workerGroup)
+                .channel(transport.serverChannelClass())
+                .childOption(ChannelOption.ALLOW_HALF_CLOSURE, true)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(
+                        ServerConfig.WRITE_BUFFER_LOW_BYTES, ServerConfig.WRITE_BUFFER_HIGH_BYTES));
+    }
+
+    /**
+     * The public port for {@code subdomain}, bound first if it has none yet. The future fails if
+     * every port in the range is taken.
+     */
+    public Future<Integer> open(final String subdomain) {
+        final Port port;
+        synchronized (this) {
+            final Port existing = ports.get(subdomain);
+            if (existing != null) {
+                return existing.bound;
+            }
+            port = new Port(subdomain);
+            ports.put(subdomain, port);
+        }
+        bind(port, maxPort - minPort + 1);
+        return port.bound;
+    }
+
+    /** The port bound for {@code subdomain}, or 0. */
+    public synchronized int getPort(final String subdomain) {
+        final Port port = ports.get(subdomain);
+        return port != null && port.channel != null ? port.number : 0;
+    }
+
+    /** Closes every port, for a server that is draining; connections already accepted carry on. */
+    public void closeAll() {
+        final List<String> subdomains;
+        synchronized (this) {
+            subdomains = new ArrayList<>(ports.keySet());
+        }
+        subdomains.forEach(this::close);
+    }
+
+    @Override
+    public void onTunnelChanged(final String subdomain) {
+        if (!tunnelManager.isSubdomainTaken(subdomain)) {
+            close(subdomain);
+        }
+    }
+
+    private void bind(final Port port, final int attemptsLeft) {
+        final int number;
+        synchronized (this) {
+            number = port.closed ? -1 : allocate();
+        }
+        if (number < 0) {
+            fail(port, port.closed ? new ClosedChannelException() : new IllegalStateException("No free TCP port"));
+            return;
+        }
+
+        final ChannelFuture future = bootstrap.clone()
+                .childHandler(new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(final Channel ch) {
+                        ch.pipeline().addLast(new TcpRelayHandler(ch, tunnelManager, port.subdomain, number));
+                    }
+                })
+                .bind(number);
+        future.addListener(f -> {
+            if (!f.isSuccess()) {
+                // Something outside the server holds it; give it back and try the next one
+                synchronized (this) {
+                    used.clear(number - minPort);
+                }
+                if (attemptsLeft > 1) {
+                    bind(port, attemptsLeft - 1);
+                } else {
+                    fail(port, f.cause());
+                }
+                return;
+            }
+            final boolean keep;
+            synchronized (this) {
+                // The last tunnel may have gone while we were binding
+                keep = !port.closed && tunnelManager.isSubdomainTaken(port.subdomain);
+                if (keep) {
+                    port.channel = future.channel();
+                    port.number = number;
+                } else {
+                    used.clear(number - minPort);
+                }
+            }
+            if (!keep) {
+                future.channel().close();
+                fail(port, new ClosedChannelException());
+                return;
+            }
+            logger.info("TCP port {} open for tunnel {}", number, port.subdomain);
+            port.bound.trySuccess(number);
+        });
+    }
+
+    /** Forgets {@code port}, so the next tunnel to ask tries again. */
+    private void fail(final Port port, final Throwable cause) {
+        synchronized (this) {
+            ports.remove(port.subdomain, port);
+        }
+        port.bound.tryFailure(cause);
+    }
+
+    /** Claims the next free port after the last one handed out, or returns -1. */
+    private int allocate() {
+        final int size = maxPort - minPort + 1;
+        for (int i = 0; i < size; i++) {
+            final int candidate = minPort + (next - minPort + i) % size;
+            if (!used.get(candidate - minPort)) {
+                used.set(candidate - minPort);
+                next = candidate + 1 > maxPort ? minPort : candidate + 1;
+                return candidate;
+            }
+        }
+        return -1;
+    }
+
+    private void close(final String subdomain) {
+        final Port port;
+        synchronized (this) {
+            port = ports.remove(subdomain);
+            if (port == null) {
+                return;
+            }
+            port.closed = true;
+            if (port.channel != null) {
+                used.clear(port.number - minPort);
+            }
+        }
+        if (port.channel != null) {
+            // Accepted connections end on their own, their streams are reset with the tunnel
+            port.channel.close();
+            logger.info("TCP port {} closed for tunnel {}", port.number, subdomain);
+        }
+    }
+
+    /** One subdomain's listening socket. */
+    private static final class Port {
+        private final String subdomain;
+        private final Promise<Integer> bound = ImmediateEventExecutor.INSTANCE.newPromise();
+        // Guarded by the enclosing TcpTunnels
+        private Channel channel;
+        private int number;
+        private boolean closed;
+
+        Port(final String subdomain) {
+            this.subdomain = subdomain;
+        }
+    }
+}
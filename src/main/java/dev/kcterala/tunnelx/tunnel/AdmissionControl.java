@@ -0,0 +1,114 @@
+package dev.kcterala.tunnelx.tunnel;
+
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caps the requests in flight on one tunnel connection. Requests over the cap wait in a bounded
+ * queue for a free slot; a full queue, or a wait that runs out, rejects them instead.
+ */
+class AdmissionControl {
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final Timer timer;
+    private final long maxWaitMillis;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+
+    AdmissionControl(final int maxInFlight, final int maxQueued, final Timer timer, final long maxWaitMillis) {
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.timer = timer;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    int inFlight() { return inFlight.get(); }
+    int queued() { return queued.get(); }
+
+    /**
+     * Runs {@code admitted} once a slot is held, which the caller gives back with {@link #release()},
+     * or {@code rejected} if no slot frees up in time. Either may run on another thread.
+     */
+    void submit(final Runnable admitted, final Runnable rejected) {
+        if (tryAcquire()) {
+            admitted.run();
+            return;
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            rejected.run();
+            return;
+        }
+
+        final Waiter waiter = new Waiter(admitted, rejected);
+        waiter.timeout = timer.newTimeout(timeout -> {
+            if (waiter.claim()) {
+                waiters.remove(waiter);
+                queued.decrementAndGet();
+                waiter.rejected.run();
+            }
+        }, maxWaitMillis, TimeUnit.MILLISECONDS);
+        waiters.add(waiter);
+        // A slot may have been released between the failed acquire and the enqueue
+        drain();
+    }
+
+    void release() {
+        inFlight.decrementAndGet();
+        drain();
+    }
+
+    private void drain() {
+        while (!waiters.isEmpty() && tryAcquire()) {
+            Waiter waiter;
+            do {
+                waiter = waiters.poll();
+            } while (waiter != null && !waiter.claim());
+
+            if (waiter == null) {
+                inFlight.decrementAndGet();
+                return;
+            }
+            queued.decrementAndGet();
+            waiter.timeout.cancel();
+            waiter.admitted.run();
+        }
+    }
+
+    private boolean tryAcquire() {
+        while (true) {
+            final int current = inFlight.get();
+            if (current >= maxInFlight) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private static final class Waiter {
+        private final Runnable admitted;
+        private final Runnable rejected;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private volatile Timeout timeout;
+
+        private Waiter(final Runnable admitted, final Runnable rejected) {
+            this.admitted = admitted;
+            this.rejected = rejected;
+        }
+
+        /** Exactly one of admission and expiry gets the waiter. */
+        private boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+    }
+}
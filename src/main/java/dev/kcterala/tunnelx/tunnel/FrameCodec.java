@@ -0,0 +1,182 @@
+package dev.kcterala.tunnelx.tunnel;
+
+import dev.kcterala.tunnelx.model.TunnelFrame;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.util.CharsetUtil;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes and decodes frames of the binary tunnel protocol described in {@link TunnelFrame}.
+ *
+ * <p>The header block is a {@code u16} entry count followed by {@code u16}-length-prefixed UTF-8
+ * name/value pairs. Request metadata travels as the pseudo-headers {@code :method} and
+ * {@code :path}, the response status as {@code :status}.
+ */
+public final class FrameCodec {
+    public static final int FIXED_HEADER_LENGTH = 14;
+
+    public static final String METHOD = ":method";
+    public static final String PATH = ":path";
+    public static final String STATUS = ":status";
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Encodes a request frame. Ownership of {@code body} passes to the returned buffer, which
+     * references it instead of copying it. Without {@code endStream} the body continues in
+     * {@link TunnelFrame#TYPE_DATA} frames.
+     */
+    public static ByteBuf encodeRequest(final ByteBufAllocator alloc, final long streamId, final String method,
+                                        final String path, final HttpHeaders headers, final ByteBuf body,
+                                        final boolean endStream) {
+        final ByteBuf header = alloc.buffer(FIXED_HEADER_LENGTH + 256);
+        header.writeLong(streamId);
+        header.writeByte(TunnelFrame.TYPE_REQUEST);
+        header.writeByte(endStream ? TunnelFrame.FLAG_END_STREAM : 0);
+        final int lengthIndex = header.writerIndex();
+        header.writeInt(0);
+
+        final int blockStart = header.writerIndex();
+        header.writeShort(headers.size() + 2);
+        writeEntry(header, METHOD, method);
+        writeEntry(header, PATH, path);
+        for (final Map.Entry<String, String> entry : headers) {
+            writeEntry(header, entry.getKey(), entry.getValue());
+        }
+        header.setInt(lengthIndex, header.writerIndex() - blockStart);
+
+        return compose(alloc, header, body);
+    }
+
+    /**
+     * Encodes a response frame as a tunnel client sends it, taking ownership of {@code body}. The
+     * server only decodes these; this is here for clients and tools written against this codec.
+     */
+    public static ByteBuf encodeResponse(final ByteBufAllocator alloc, final long streamId, final int status,
+                                         final Map<String, String> headers, final ByteBuf body,
+                                         final boolean endStream) {
+        final ByteBuf header = alloc.buffer(FIXED_HEADER_LENGTH + 128);
+        header.writeLong(streamId);
+        header.writeByte(TunnelFrame.TYPE_RESPONSE);
+        header.writeByte(endStream ? TunnelFrame.FLAG_END_STREAM : 0);
+        final int lengthIndex = header.writerIndex();
+        header.writeInt(0);
+
+        final int blockStart = header.writerIndex();
+        header.writeShort(headers.size() + 1);
+        writeEntry(header, STATUS, Integer.toString(status));
+        for (final Map.Entry<String, String> entry : headers.entrySet()) {
+            writeEntry(header, entry.getKey(), entry.getValue());
+        }
+        header.setInt(lengthIndex, header.writerIndex() - blockStart);
+
+        return compose(alloc, header, body);
+    }
+
+    /** Encodes a data frame, taking ownership of {@code body}. */
+    public static ByteBuf encodeData(final ByteBufAllocator alloc, final long streamId, final ByteBuf body,
+                                     final boolean endStream) {
+        final ByteBuf header = fixedHeader(alloc, streamId, TunnelFrame.TYPE_DATA,
+                endStream ? TunnelFrame.FLAG_END_STREAM : 0);
+        return compose(alloc, header, body);
+    }
+
+    public static ByteBuf encodeWindowUpdate(final ByteBufAllocator alloc, final long streamId, final int increment) {
+        final ByteBuf frame = alloc.buffer(FIXED_HEADER_LENGTH + 4);
+        writeFixedHeader(frame, streamId, TunnelFrame.TYPE_WINDOW_UPDATE, 0);
+        frame.writeInt(increment);
+        return frame;
+    }
+
+    public static ByteBuf encodeReset(final ByteBufAllocator alloc, final long streamId) {
+        return fixedHeader(alloc, streamId, TunnelFrame.TYPE_RESET, TunnelFrame.FLAG_END_STREAM);
+    }
+
+    private static ByteBuf fixedHeader(final ByteBufAllocator alloc, final long streamId, final byte type,
+                                       final int flags) {
+        final ByteBuf header = alloc.buffer(FIXED_HEADER_LENGTH);
+        writeFixedHeader(header, streamId, type, flags);
+        return header;
+    }
+
+    private static void writeFixedHeader(final ByteBuf out, final long streamId, final byte type, final int flags) {
+        out.writeLong(streamId);
+        out.writeByte(type);
+        out.writeByte(flags);
+        out.writeInt(0);
+    }
+
+    private static ByteBuf compose(final ByteBufAllocator alloc, final ByteBuf header, final ByteBuf body) {
+        final CompositeByteBuf frame = alloc.compositeBuffer(2);
+        frame.addComponent(true, header);
+        frame.addComponent(true, body);
+        return frame;
+    }
+
+    /**
+     * Decodes a frame. The returned body is a retained slice of {@code in}; the caller is
+     * responsible for releasing it.
+     */
+    public static TunnelFrame decode(final ByteBuf in) {
+        if (in.readableBytes() < FIXED_HEADER_LENGTH) {
+            throw new CorruptedFrameException("Frame shorter than fixed header: " + in.readableBytes());
+        }
+        final long streamId = in.readLong();
+        final byte type = in.readByte();
+        final byte flags = in.readByte();
+        final int blockLength = in.readInt();
+        if (blockLength < 0 || blockLength > in.readableBytes()) {
+            throw new CorruptedFrameException("Invalid header block length: " + blockLength);
+        }
+
+        final int blockEnd = in.readerIndex() + blockLength;
+        final Map<String, String> headers;
+        if (blockLength == 0) {
+            headers = Map.of();
+        } else {
+            final int count = in.readUnsignedShort();
+            headers = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                final String name = readString(in, blockEnd);
+                final String value = readString(in, blockEnd);
+                headers.put(name, value);
+            }
+        }
+        in.readerIndex(blockEnd);
+
+        return new TunnelFrame(streamId, type, flags, headers, in.readRetainedSlice(in.readableBytes()));
+    }
+
+    private static void writeEntry(final ByteBuf out, final CharSequence name, final CharSequence value) {
+        writeString(out, name);
+        writeString(out, value);
+    }
+
+    private static void writeString(final ByteBuf out, final CharSequence value) {
+        final int lengthIndex = out.writerIndex();
+        out.writeShort(0);
+        final int written = ByteBufUtil.writeUtf8(out, value);
+        if (written > 0xFFFF) {
+            throw new IllegalArgumentException("Header entry longer than 65535 bytes");
+        }
+        out.setShort(lengthIndex, written);
+    }
+
+    private static String readString(final ByteBuf in, final int blockEnd) {
+        final int length = in.readUnsignedShort();
+        if (in.readerIndex() + length > blockEnd) {
+            throw new CorruptedFrameException("Header entry exceeds header block");
+        }
+        final String value = in.toString(in.readerIndex(), length, CharsetUtil.UTF_8);
+        in.skipBytes(length);
+        return value;
+    }
+}
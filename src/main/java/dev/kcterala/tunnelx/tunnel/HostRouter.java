@@ -0,0 +1,377 @@
+package dev.kcterala.tunnelx.tunnel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Maps the {@code Host} header of a public request to the subdomain that should serve it.
+ *
+ * <p>A host resolves, in order, as a custom domain claimed by a tunnel, as a subdomain of the base
+ * domain ({@code TUNNEL_DOMAIN}), or through the longest matching {@code *.suffix} wildcard claim.
+ * The port and a trailing dot are ignored and names compare case-insensitively.
+ *
+ * <p>Lookups walk the header's characters against open-addressed tables and return strings the
+ * tables already hold, so routing a request allocates nothing, and take no lock. The tables are
+ * immutable; a registration change copies only the table it touches, under a lock, and publishes
+ * the new set with one volatile write before it returns.
+ */
+public final class HostRouter implements TunnelListener {
+    /** Subdomains of the base domain that serve the dashboard instead of a tunnel. */
+    private static final String[] MAIN_LABELS = {"www", "app", "tunnel", "api"};
+
+    private final String baseDomain;
+    private final TunnelRegistry registry;
+
+    /** Each subdomain's claims, as given to {@link #claim}, so they go without a scan. Guarded by this. */
+    private final Map<String, Set<String>> claims = new HashMap<>();
+
+    // Written under the lock, read without it
+    private volatile Routes routes = Routes.EMPTY;
+
+    HostRouter(final String baseDomain, final TunnelRegistry registry) {
+        this.baseDomain = normalize(baseDomain);
+        this.registry = registry;
+    }
+
+    /** The subdomain {@code host} routes to, or null. */
+    public String resolve(final CharSequence host) {
+        if (host == null) {
+            return null;
+        }
+        final int end = hostEnd(host);
+        final Routes current = routes;
+
+        final String custom = current.domains.get(host, 0, end);
+        if (custom != null) {
+            return custom;
+        }
+
+        final int firstDot = indexOf(host, '.', 0, end);
+        if (firstDot > 0 && isUnderBaseDomain(host, end)) {
+            final String subdomain = current.subdomains.get(host, 0, firstDot);
+            if (subdomain != null) {
+                return subdomain;
+            }
+        }
+
+        // The first suffix that matches is the longest one
+        for (int dot = firstDot; dot >= 0; dot = indexOf(host, '.', dot + 1, end)) {
+            final String wildcard = current.wildcards.get(host, dot + 1, end);
+            if (wildcard != null) {
+                return wildcard;
+            }
+        }
+        return null;
+    }
+
+    /** Whether {@code host} is the base domain itself or one of its dashboard aliases. */
+    public boolean isMainDomain(final CharSequence host) {
+        final int end = hostEnd(host);
+        if (regionEquals(baseDomain, host, 0, end)) {
+            return true;
+        }
+        final int firstDot = indexOf(host, '.', 0, end);
+        if (firstDot <= 0 || !isUnderBaseDomain(host, end) || firstDot != end - baseDomain.length() - 1) {
+            return false;
+        }
+        for (final String label : MAIN_LABELS) {
+            if (regionEquals(label, host, 0, firstDot)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Routes each of {@code claimed} (an exact host or {@code *.suffix}) to {@code subdomain} for as
+     * long as it stays registered. Claims are all or nothing: returns the first domain that is
+     * malformed, inside the base domain or held by another subdomain, or null once all are taken.
+     */
+    public synchronized String claim(final String subdomain, final List<String> claimed) {
+        if (claimed == null || claimed.isEmpty()) {
+            return null;
+        }
+        final Routes current = routes;
+        for (final String domain : claimed) {
+            final String name = normalize(domain);
+            final boolean wildcard = name.startsWith("*.");
+            final String key = wildcard ? name.substring(2) : name;
+            final String owner = (wildcard ? current.wildcards : current.domains).get(key, 0, key.length());
+            if (!isValidDomain(key) || key.equals(baseDomain) || key.endsWith("." + baseDomain)
+                    || owner != null && !owner.equals(subdomain)) {
+                return domain;
+            }
+        }
+        final Set<String> held = claims.computeIfAbsent(subdomain, key -> new LinkedHashSet<>());
+        Table domains = current.domains;
+        Table wildcards = current.wildcards;
+        for (final String domain : claimed) {
+            final String name = normalize(domain);
+            if (!held.add(name)) {
+                continue;
+            }
+            if (name.startsWith("*.")) {
+                wildcards = wildcards.with(name.substring(2), subdomain);
+            } else {
+                domains = domains.with(name, subdomain);
+            }
+        }
+        routes = new Routes(current.subdomains, domains, wildcards);
+        return null;
+    }
+
+    /** The custom domains {@code subdomain} holds, wildcards as {@code *.suffix}. */
+    public synchronized List<String> claimsOf(final String subdomain) {
+        final Set<String> held = claims.get(subdomain);
+        return held != null ? new ArrayList<>(held) : new ArrayList<>();
+    }
+
+    @Override
+    public synchronized void onTunnelChanged(final String subdomain) {
+        final String key = subdomain.toLowerCase(Locale.ROOT);
+        final Routes current = routes;
+        final String routed = current.subdomains.get(key, 0, key.length());
+        if (registry.contains(subdomain)) {
+            if (!subdomain.equals(routed)) {
+                routes = new Routes(current.subdomains.with(key, subdomain), current.domains, current.wildcards);
+            }
+            return;
+        }
+
+        final Table subdomains = subdomain.equals(routed) ? current.subdomains.without(key) : current.subdomains;
+        Table domains = current.domains;
+        Table wildcards = current.wildcards;
+        final Set<String> held = claims.remove(subdomain);
+        if (held != null) {
+            for (final String name : held) {
+                if (name.startsWith("*.")) {
+                    wildcards = wildcards.without(name.substring(2), subdomain);
+                } else {
+                    domains = domains.without(name, subdomain);
+                }
+            }
+        }
+        if (subdomains != current.subdomains || domains != current.domains || wildcards != current.wildcards) {
+            routes = new Routes(subdomains, domains, wildcards);
+        }
+    }
+
+    private boolean isUnderBaseDomain(final CharSequence host, final int end) {
+        final int start = end - baseDomain.length();
+        return start > 0 && host.charAt(start - 1) == '.' && regionEquals(baseDomain, host, start, end);
+    }
+
+    /** Where the host name ends, leaving out the port and a trailing dot. */
+    static int hostEnd(final CharSequence host) {
+        int end = host.length();
+        if (end > 0 && host.charAt(0) == '[') {
+            // IPv6 literal
+            final int bracket = indexOf(host, ']', 0, end);
+            return bracket < 0 ? end : bracket + 1;
+        }
+        for (int i = end - 1; i >= 0; i--) {
+            final char c = host.charAt(i);
+            if (c == ':') {
+                end = i;
+                break;
+            }
+            if (c < '0' || c > '9') {
+                break;
+            }
+        }
+        if (end > 0 && host.charAt(end - 1) == '.') {
+            end--;
+        }
+        return end;
+    }
+
+    private static int indexOf(final CharSequence s, final char c, final int from, final int end) {
+        for (int i = from; i < end; i++) {
+            if (s.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Whether {@code s[start, end)} equals the lowercase {@code expected}, ignoring ASCII case. */
+    private static boolean regionEquals(final String expected, final CharSequence s, final int start, final int end) {
+        if (expected.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            if (expected.charAt(i) != toLower(s.charAt(start + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static char toLower(final char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static String normalize(final String domain) {
+        String name = domain.trim().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        return name;
+    }
+
+    private static boolean isValidDomain(final String name) {
+        if (name.isEmpty() || name.length() > 253 || name.startsWith(".") || name.contains("..")) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '-' || c == '.')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private record Routes(Table subdomains, Table domains, Table wildcards) {
+        static final Routes EMPTY = new Routes(Table.EMPTY, Table.EMPTY, Table.EMPTY);
+    }
+
+    /**
+     * An immutable open-addressed map from lowercase names, probed with a slice of a host. Changes
+     * return a copy, so one entry costs an array copy rather than hashing every name again.
+     */
+    private static final class Table {
+        private static final int MIN_CAPACITY = 8;
+        static final Table EMPTY = new Table(MIN_CAPACITY);
+
+        private final String[] keys;
+        private final String[] values;
+        private final int mask;
+        private int size;
+
+        private Table(final int capacity) {
+            keys = new String[capacity];
+            values = new String[capacity];
+            mask = capacity - 1;
+        }
+
+        private Table(final Table source) {
+            keys = source.keys.clone();
+            values = source.values.clone();
+            mask = source.mask;
+            size = source.size;
+        }
+
+        String get(final CharSequence s, final int start, final int end) {
+            if (start >= end) {
+                return null;
+            }
+            int i = hash(s, start, end) & mask;
+            String key;
+            while ((key = keys[i]) != null) {
+                if (regionEquals(key, s, start, end)) {
+                    return values[i];
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+
+        /** A copy with {@code key} routed to {@code value}. */
+        Table with(final String key, final String value) {
+            final int slot = slotOf(key);
+            if (slot >= 0) {
+                final Table copy = new Table(this);
+                copy.values[slot] = value;
+                return copy;
+            }
+            // At most half full, so probe sequences stay short
+            final Table copy = (size + 1) * 2 > keys.length ? resized(keys.length * 2) : new Table(this);
+            copy.insert(key, value);
+            return copy;
+        }
+
+        /** A copy without {@code key}, or this table if {@code key} is not routed to {@code value}. */
+        Table without(final String key, final String value) {
+            final int slot = slotOf(key);
+            return slot >= 0 && values[slot].equals(value) ? without(key) : this;
+        }
+
+        /** A copy without {@code key}, or this table if it has none. */
+        Table without(final String key) {
+            final int slot = slotOf(key);
+            if (slot < 0) {
+                return this;
+            }
+            final Table copy = size * 8 < keys.length && keys.length > MIN_CAPACITY
+                    ? resized(keys.length / 2) : new Table(this);
+            copy.remove(copy.slotOf(key));
+            return copy;
+        }
+
+        private int slotOf(final String key) {
+            int i = hash(key, 0, key.length()) & mask;
+            String candidate;
+            while ((candidate = keys[i]) != null) {
+                if (candidate.equals(key)) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        private Table resized(final int capacity) {
+            final Table copy = new Table(capacity);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null) {
+                    copy.insert(keys[i], values[i]);
+                }
+            }
+            return copy;
+        }
+
+        private void insert(final String key, final String value) {
+            int i = hash(key, 0, key.length()) & mask;
+            while (keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            size++;
+        }
+
+        /** Empties {@code slot}, shifting later entries of its probe run back so lookups still find them. */
+        private void remove(final int slot) {
+            int hole = slot;
+            keys[hole] = null;
+            values[hole] = null;
+            size--;
+            for (int i = (hole + 1) & mask; keys[i] != null; i = (i + 1) & mask) {
+                final int home = hash(keys[i], 0, keys[i].length()) & mask;
+                // Entries whose home lies cyclically in (hole, i] are still reachable where they are
+                final boolean reachable = hole <= i ? hole < home && home <= i : hole < home || home <= i;
+                if (!reachable) {
+                    keys[hole] = keys[i];
+                    values[hole] = values[i];
+                    keys[i] = null;
+                    values[i] = null;
+                    hole = i;
+                }
+            }
+        }
+
+        private static int hash(final CharSequence s, final int start, final int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + toLower(s.charAt(i));
+            }
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package dev.kcterala.tunnelx.tunnel;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import dev.kcterala.tunnelx.model.TunnelMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes and decodes the JSON {@link TunnelMessage}s sent in text frames, straight from and into
+ * the frame's {@link ByteBuf}.
+ *
+ * <p>Decoding streams over the tokens instead of building the message through data binding, so
+ * {@code headers} and {@code body} are only read for message types that carry them. Once a
+ * message names a type the server has no use for, the rest of it is not read at all. Parse
+ * errors never quote the input, since it may hold request bodies or auth tokens.
+ */
+public final class MessageCodec {
+    private static final JsonFactory FACTORY = JsonFactory.builder()
+            .disable(StreamReadFeature.INCLUDE_SOURCE_IN_LOCATION)
+            .build();
+    private static final ObjectWriter WRITER = new ObjectMapper(FACTORY).writerFor(TunnelMessage.class);
+
+    private MessageCodec() {
+    }
+
+    /** Encodes {@code message} as UTF-8 JSON into a buffer from {@code alloc}. */
+    public static ByteBuf encode(final ByteBufAllocator alloc, final TunnelMessage message) throws IOException {
+        final ByteBuf out = alloc.buffer();
+        try {
+            // ByteBufOutputStream is also a DataOutput, which has its own overload
+            WRITER.writeValue((OutputStream) new ByteBufOutputStream(out), message);
+            return out;
+        } catch (final IOException | RuntimeException e) {
+            out.release();
+            throw e;
+        }
+    }
+
+    /** Decodes the message in {@code in} without changing its reader index. */
+    public static TunnelMessage decode(final ByteBuf in) throws IOException {
+        try (JsonParser parser = createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Tunnel message is not a JSON object");
+            }
+            final TunnelMessage message = new TunnelMessage();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.currentName();
+                if (parser.nextToken() == JsonToken.VALUE_NULL) {
+                    continue;
+                }
+                switch (field) {
+                    case "type" -> {
+                        message.setType(text(parser));
+                        if (!isKnownType(message.getType())) {
+                            return message;
+                        }
+                    }
+                    case "subdomain" -> message.setSubdomain(text(parser));
+                    case "authToken" -> message.setAuthToken(text(parser));
+                    case "publicUrl" -> message.setPublicUrl(text(parser));
+                    case "protocol" -> message.setProtocol(text(parser));
+                    case "error" -> message.setError(text(parser));
+                    case "method" -> message.setMethod(text(parser));
+                    case "path" -> message.setPath(text(parser));
+                    case "initialWindow" -> message.setInitialWindow(parser.getValueAsInt());
+                    case "requestTimeoutMs" -> message.setRequestTimeoutMs(parser.getValueAsInt());
+                    case "tcp" -> message.setTcp(parser.getValueAsBoolean());
+                    case "tcpPort" -> message.setTcpPort(parser.getValueAsInt());
+                    case "statusCode" -> message.setStatusCode(parser.getValueAsInt());
+                    // Clients may send the id as a JSON string or a number
+                    case "requestId" -> message.setRequestId(parser.getValueAsLong());
+                    case "domains" -> message.setDomains(readStrings(parser));
+                    case "headers" -> {
+                        if (carriesPayload(message.getType())) {
+                            message.setHeaders(readHeaders(parser));
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                    case "body" -> {
+                        if (carriesPayload(message.getType()) && parser.currentToken() == JsonToken.VALUE_STRING) {
+                            message.setBody(parser.getBinaryValue());
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                    default -> parser.skipChildren();
+                }
+            }
+            return message;
+        }
+    }
+
+    private static JsonParser createParser(final ByteBuf in) throws IOException {
+        if (in.hasArray()) {
+            return FACTORY.createParser(in.array(), in.arrayOffset() + in.readerIndex(), in.readableBytes());
+        }
+        // ByteBufInputStream is also a DataInput, which has its own overload
+        return FACTORY.createParser((InputStream) new ByteBufInputStream(in.duplicate()));
+    }
+
+    private static boolean isKnownType(final String type) {
+        return switch (type == null ? "" : type) {
+            case "register", "registered", "request", "response", "error" -> true;
+            default -> false;
+        };
+    }
+
+    /** Whether headers and body are worth reading; true while the type is still unknown. */
+    private static boolean carriesPayload(final String type) {
+        return type == null || "request".equals(type) || "response".equals(type);
+    }
+
+    private static String text(final JsonParser parser) throws IOException {
+        final String value = parser.getValueAsString();
+        parser.skipChildren();
+        return value;
+    }
+
+    private static List<String> readStrings(final JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+        final List<String> values = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            values.add(text(parser));
+        }
+        return values;
+    }
+
+    private static Map<String, String> readHeaders(final JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+        final Map<String, String> headers = new LinkedHashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.currentName();
+            parser.nextToken();
+            headers.put(name, text(parser));
+        }
+        return headers;
+    }
+}
@@ -0,0 +1,101 @@
+package dev.kcterala.tunnelx.tunnel;
+
+import dev.kcterala.tunnelx.model.PendingRequest;
+import dev.kcterala.tunnelx.model.TunnelResponse;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import io.netty.util.Timer;
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.collection.LongObjectMap;
+import io.netty.util.concurrent.EventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request id allocation and JSON requests awaiting a response on one tunnel channel.
+ *
+ * <p>Ids are plain counters scoped to the WebSocket they travel on, and the table is keyed by
+ * primitive longs. All state is confined to the tunnel channel's event loop, which is also where
+ * responses arrive, so no locking is needed.
+ */
+public class PendingRequests {
+    private static final Logger log = LoggerFactory.getLogger(PendingRequests.class);
+    private static final AttributeKey<PendingRequests> KEY = AttributeKey.valueOf("pendingRequests");
+
+    private final EventExecutor executor;
+    private final LongObjectMap<PendingRequest> pending = new LongObjectHashMap<>();
+    private long nextRequestId = 1;
+
+    private PendingRequests(final Channel channel) {
+        this.executor = channel.eventLoop();
+    }
+
+    public static PendingRequests of(final Channel channel) {
+        final PendingRequests created = new PendingRequests(channel);
+        final PendingRequests existing = channel.attr(KEY).setIfAbsent(created);
+        if (existing != null) {
+            return existing;
+        }
+        channel.closeFuture().addListener(future -> created.failAll(502, "Tunnel disconnected"));
+        return created;
+    }
+
+    public static PendingRequests get(final Channel channel) {
+        return channel.attr(KEY).get();
+    }
+
+    /**
+     * Allocates an id for a request answered through {@code listener}, expiring it with a 504 after
+     * {@code timeoutMillis}. Must be called on the tunnel channel's event loop.
+     */
+    public long add(final ResponseListener listener, final Timer timer, final long timeoutMillis) {
+        final long requestId = nextRequestId++;
+        final PendingRequest request = new PendingRequest(listener);
+        pending.put(requestId, request);
+        request.setTimeout(timer.newTimeout(
+                timeout -> executor.execute(() -> expire(requestId)), timeoutMillis, TimeUnit.MILLISECONDS));
+        return requestId;
+    }
+
+    /** Completes request {@code requestId}; a response for an unknown or expired id is dropped. */
+    public void complete(final long requestId, final TunnelResponse response) {
+        final PendingRequest request = pending.remove(requestId);
+        if (request == null) {
+            response.getBody().release();
+            return;
+        }
+        request.cancelTimeout();
+        request.getListener().onResponse(response, true);
+    }
+
+    /** Completes request {@code requestId} with an error response, unless it already finished. */
+    public void fail(final long requestId, final int statusCode, final String message) {
+        final PendingRequest request = pending.remove(requestId);
+        if (request != null) {
+            request.cancelTimeout();
+            request.getListener().onResponse(TunnelConnection.errorResponse(statusCode, message), true);
+        }
+    }
+
+    private void expire(final long requestId) {
+        final PendingRequest request = pending.remove(requestId);
+        if (request != null) {
+            log.debug("Request {} expired after {} ms", requestId, System.currentTimeMillis() - request.getTimestamp());
+            request.getListener().onTimeout();
+            request.getListener().onResponse(TunnelConnection.errorResponse(504, "Gateway Timeout"), true);
+        }
+    }
+
+    private void failAll(final int statusCode, final String message) {
+        final List<PendingRequest> failed = new ArrayList<>(pending.values());
+        pending.clear();
+        for (final PendingRequest request : failed) {
+            request.cancelTimeout();
+            request.getListener().onResponse(TunnelConnection.errorResponse(statusCode, message), true);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package dev.kcterala.tunnelx.tunnel;
+
+import dev.kcterala.tunnelx.metrics.TrafficMetrics;
+import dev.kcterala.tunnelx.model.TunnelResponse;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collapses identical concurrent GET and HEAD requests to one tunnel into a single exchange.
+ *
+ * <p>Requests match on method, host, URI and the values of a configured set of headers, plus the
+ * conditional headers, which always count. The first request is forwarded; the others wait for
+ * its response head, and only until it arrives. The response is then fanned out: every waiter
+ * gets a retained duplicate of the same body buffers.
+ *
+ * <p>On binary tunnels a streamed body is flow controlled for the whole group. Credit goes back
+ * to the tunnel client only for bytes every public client still attached has written, so the
+ * slowest one sets the pace, as it would on its own stream.
+ */
+public final class RequestCoalescer {
+    /** Conditional requests may get a 304 that means nothing to an unconditional one. */
+    private static final List<String> CONDITIONAL_HEADERS = List.of(
+            HttpHeaderNames.IF_NONE_MATCH.toString(), HttpHeaderNames.IF_MODIFIED_SINCE.toString(),
+            HttpHeaderNames.IF_MATCH.toString(), HttpHeaderNames.IF_UNMODIFIED_SINCE.toString(),
+            HttpHeaderNames.IF_RANGE.toString());
+
+    private final List<String> keyHeaders;
+    private final int maxWaiters;
+    private final TrafficMetrics metrics;
+    private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+
+    /**
+     * @param keyHeaders comma separated names of request headers whose values must match
+     * @param maxWaiters requests that may wait on one forwarded request; later ones go on their own
+     */
+    public RequestCoalescer(final String keyHeaders, final int maxWaiters, final TrafficMetrics metrics) {
+        final List<String> names = new ArrayList<>();
+        for (final String name : keyHeaders.split(",")) {
+            final String trimmed = name.trim().toLowerCase(Locale.ROOT);
+            if (!trimmed.isEmpty() && !names.contains(trimmed) && !CONDITIONAL_HEADERS.contains(trimmed)) {
+                names.add(trimmed);
+            }
+        }
+        names.addAll(CONDITIONAL_HEADERS);
+        this.keyHeaders = List.copyOf(names);
+        this.maxWaiters = maxWaiters;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Attaches {@code downstream} to an identical request already in flight and returns null, or
+     * returns the listener {@code request} should be forwarded with.
+     */
+    public ResponseListener join(final HttpRequest request, final ResponseListener downstream) {
+        final HttpMethod method = request.method();
+        if (!HttpMethod.GET.equals(method) && !HttpMethod.HEAD.equals(method)
+                || HttpUtil.getContentLength(request, 0L) > 0 || HttpUtil.isTransferEncodingChunked(request)) {
+            return downstream;
+        }
+        final String key = key(request);
+        final Flight flight = new Flight(key, downstream);
+        while (true) {
+            final Flight existing = flights.putIfAbsent(key, flight);
+            if (existing == null) {
+                return flight;
+            }
+            switch (existing.attach(downstream, maxWaiters)) {
+                case Flight.JOINED -> {
+                    metrics.recordCoalesced();
+                    return null;
+                }
+                case Flight.FULL -> {
+                    return downstream;
+                }
+                default -> {
+                    // Landed between its head and its removal from the map
+                    flights.remove(key, existing);
+                }
+            }
+        }
+    }
+
+    /** Requests currently waiting on another one, for stats. */
+    public int getWaiting() {
+        int waiting = 0;
+        for (final Flight flight : flights.values()) {
+            waiting += flight.waiters();
+        }
+        return waiting;
+    }
+
+    private String key(final HttpRequest request) {
+        final HttpHeaders headers = request.headers();
+        final StringBuilder key = new StringBuilder(128)
+                .append(request.method().name()).append(' ')
+                .append(headers.get(HttpHeaderNames.HOST, "").toLowerCase(Locale.ROOT)).append(' ')
+                .append(request.uri());
+        for (final String name : keyHeaders) {
+            // Separators that cannot occur in a header value
+            key.append('\n');
+            for (final String value : headers.getAll(name)) {
+                key.append(value).append('\r');
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * One forwarded request and the public clients waiting for its response. Attaching is only
+     * possible until the response head arrives; after that the participants are fixed.
+     */
+    private final class Flight implements ResponseListener {
+        static final int JOINED = 0;
+        static final int FULL = 1;
+        static final int DEPARTED = 2;
+
+        private final String key;
+        // Guarded by this
+        private final List<Participant> participants = new ArrayList<>();
+        private boolean departed;
+        private ResponseStream stream;
+        private long credited;
+
+        Flight(final String key, final ResponseListener leader) {
+            this.key = key;
+            participants.add(new Participant(leader));
+        }
+
+        synchronized int attach(final ResponseListener listener, final int maxWaiters) {
+            if (departed) {
+                return DEPARTED;
+            }
+            if (participants.size() > maxWaiters) {
+                return FULL;
+            }
+            participants.add(new Participant(listener));
+            return JOINED;
+        }
+
+        synchronized int waiters() {
+            return departed ? 0 : participants.size() - 1;
+        }
+
+        /** Closes the group to newcomers and returns it. */
+        private List<Participant> depart() {
+            final List<Participant> snapshot;
+            synchronized (this) {
+                departed = true;
+                snapshot = List.copyOf(participants);
+            }
+            flights.remove(key, this);
+            return snapshot;
+        }
+
+        @Override
+        public void onResponse(final TunnelResponse response, final boolean endOfStream) {
+            final List<Participant> all = depart();
+            final ByteBuf body = response.getBody();
+            // Duplicates first, the leader's listener may release the original straight away
+            final TunnelResponse[] copies = new TunnelResponse[all.size()];
+            for (int i = 1; i < copies.length; i++) {
+                copies[i] = new TunnelResponse(response.getStatusCode(), response.getHeaders(), body.retainedDuplicate());
+            }
+            copies[0] = response;
+            for (int i = 0; i < copies.length; i++) {
+                all.get(i).listener.onResponse(copies[i], endOfStream);
+            }
+        }
+
+        @Override
+        public void onContent(final ResponseStream stream, final ByteBuf content, final boolean endOfStream) {
+            final List<Participant> attached;
+            synchronized (this) {
+                this.stream = stream;
+                attached = new ArrayList<>(participants.size());
+                for (final Participant participant : participants) {
+                    if (!participant.detached) {
+                        attached.add(participant);
+                    }
+                }
+            }
+            if (attached.isEmpty()) {
+                content.release();
+                return;
+            }
+            final ByteBuf[] chunks = new ByteBuf[attached.size()];
+            for (int i = 1; i < chunks.length; i++) {
+                chunks[i] = content.retainedDuplicate();
+            }
+            chunks[0] = content;
+            for (int i = 0; i < chunks.length; i++) {
+                final Participant participant = attached.get(i);
+                participant.listener.onContent(participant.view(stream), chunks[i], endOfStream);
+            }
+        }
+
+        @Override
+        public void onTimeout() {
+            for (final Participant participant : depart()) {
+                participant.listener.onTimeout();
+            }
+        }
+
+        @Override
+        public void onReset() {
+            for (final Participant participant : depart()) {
+                participant.listener.onReset();
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            for (final Participant participant : depart()) {
+                participant.listener.onComplete();
+            }
+        }
+
+        /** Returns the credit every attached participant has consumed and the tunnel client has not got back. */
+        private void credit() {
+            final ResponseStream target;
+            final long delta;
+            synchronized (this) {
+                long consumed = Long.MAX_VALUE;
+                for (final Participant participant : participants) {
+                    if (!participant.detached) {
+                        consumed = Math.min(consumed, participant.consumed);
+                    }
+                }
+                if (consumed == Long.MAX_VALUE || consumed <= credited) {
+                    return;
+                }
+                delta = consumed - credited;
+                credited = consumed;
+                target = stream;
+            }
+            target.consumeBytes((int) delta);
+        }
+
+        /** One public client's share of the exchange. */
+        private final class Participant {
+            private final ResponseListener listener;
+            // Guarded by the flight
+            private long consumed;
+            private boolean detached;
+            private SharedStream view;
+
+            Participant(final ResponseListener listener) {
+                this.listener = listener;
+            }
+
+            ResponseStream view(final ResponseStream stream) {
+                synchronized (Flight.this) {
+                    if (view == null) {
+                        view = new SharedStream(stream, this);
+                    }
+                    return view;
+                }
+            }
+        }
+
+        /** What a participant sees of the stream: consuming and resetting only affect its own share. */
+        private final class SharedStream implements ResponseStream {
+            private final ResponseStream target;
+            private final Participant participant;
+
+            SharedStream(final ResponseStream target, final Participant participant) {
+                this.target = target;
+                this.participant = participant;
+            }
+
+            @Override
+            public boolean isClosed() {
+                return target.isClosed();
+            }
+
+            @Override
+            public void consumeBytes(final int bytes) {
+                synchronized (Flight.this) {
+                    participant.consumed += bytes;
+                }
+                credit();
+            }
+
+            @Override
+            public void reset() {
+                final boolean last;
+                synchronized (Flight.this) {
+                    participant.detached = true;
+                    last = participants.stream().allMatch(p -> p.detached);
+                }
+                if (last) {
+                    target.reset();
+                } else {
+                    // The others may have been waiting on this one's credit
+                    credit();
+                }
+            }
+        }
+    }
+}
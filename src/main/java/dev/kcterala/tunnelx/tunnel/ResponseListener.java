@@ -0,0 +1,43 @@
+package dev.kcterala.tunnelx.tunnel;
+
+import dev.kcterala.tunnelx.model.TunnelResponse;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Receives a tunneled response. JSON tunnels always deliver a single complete response; binary
+ * tunnels may follow the response head with body chunks.
+ */
+public interface ResponseListener {
+
+    /**
+     * Status and headers of the response, plus whatever body arrived with them. The listener owns
+     * {@code response.getBody()}.
+     */
+    void onResponse(TunnelResponse response, boolean endOfStream);
+
+    /**
+     * A chunk of the response body. The listener owns {@code content} and must call
+     * {@link ResponseStream#consumeBytes(int)} once it no longer holds the bytes, which returns the
+     * credit to the tunnel client.
+     */
+    default void onContent(final ResponseStream stream, final ByteBuf content, final boolean endOfStream) {
+        final int bytes = content.readableBytes();
+        content.release();
+        stream.consumeBytes(bytes);
+    }
+
+    /** The tunnel client did not answer in time; the 504 follows through {@link #onResponse}. */
+    default void onTimeout() {
+    }
+
+    /** The stream was aborted by the tunnel client after {@link #onResponse} may have been called. */
+    default void onReset() {
+    }
+
+    /**
+     * The exchange is over, however it ended, including when it was aborted from our side without
+     * any other callback. May arrive before the final {@link #onResponse}.
+     */
+    default void onComplete() {
+    }
+}
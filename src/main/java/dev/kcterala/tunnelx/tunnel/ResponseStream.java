@@ -0,0 +1,19 @@
+package dev.kcterala.tunnelx.tunnel;
+
+/**
+ * What a {@link ResponseListener} may do with the stream a response body arrives on: return
+ * credit for the bytes it has consumed, or give up on the rest.
+ */
+public interface ResponseStream {
+
+    /**
+     * Returns {@code bytes} of response body credit to the tunnel client, typically from a write
+     * listener once the bytes have left. May be called from any thread.
+     */
+    void consumeBytes(int bytes);
+
+    /** Aborts the stream from our side, e.g. because the public client went away. */
+    void reset();
+
+    boolean isClosed();
+}
@@ -0,0 +1,116 @@
+package dev.kcterala.tunnelx.tunnel;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Relays raw bytes both ways between a channel and a binary tunnel stream, once the stream's head
+ * has been dealt with by the subclass.
+ *
+ * <p>As a handler at the end of the channel's pipeline, it passes every buffer read to
+ * {@link TunnelStream#sendData} as it is. The stream pauses reads while the tunnel client has no
+ * window left, and {@link TunnelConnection#throttle} while the tunnel channel is above its high
+ * watermark. As a listener, it writes data frame bodies to the channel as they are and credits
+ * them back only once the write has completed. Nothing is parsed or copied.
+ *
+ * <p>Half closure is not carried through: when either side ends its stream the channel is closed
+ * after the last bytes are written.
+ */
+public abstract class StreamRelay extends ChannelInboundHandlerAdapter implements ResponseListener {
+    protected final Channel channel;
+    private TunnelConnection tunnel;
+    private TunnelStream stream;
+
+    // Only touched on the channel's event loop
+    private long bytesIn;
+    private long bytesOut;
+
+    protected StreamRelay(final Channel channel) {
+        this.channel = channel;
+    }
+
+    /** Sets where bytes read from the channel go. Must be called on the channel's event loop. */
+    protected void start(final TunnelConnection tunnel, final TunnelStream stream) {
+        this.tunnel = tunnel;
+        this.stream = stream;
+    }
+
+    protected TunnelConnection tunnel() {
+        return tunnel;
+    }
+
+    /** Bytes read from the channel and written to it so far. */
+    protected long bytesIn() {
+        return bytesIn;
+    }
+
+    protected long bytesOut() {
+        return bytesOut;
+    }
+
+    /** Called on the event loop once the channel has closed and the stream is reset. */
+    protected void closed() {
+    }
+
+    @Override
+    public void channelRead(final ChannelHandlerContext ctx, final Object msg) {
+        if (stream == null || !(msg instanceof ByteBuf data)) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        bytesIn += data.readableBytes();
+        // Ownership of the buffer passes to the stream
+        stream.sendData(data, false);
+        tunnel.throttle(channel);
+    }
+
+    @Override
+    public void userEventTriggered(final ChannelHandlerContext ctx, final Object evt) throws Exception {
+        if (evt instanceof ChannelInputShutdownEvent && stream != null) {
+            stream.sendData(Unpooled.EMPTY_BUFFER, true);
+            return;
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+        if (stream != null) {
+            stream.reset();
+            closed();
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(final ChannelHandlerContext ctx, final Throwable cause) {
+        ctx.close();
+    }
+
+    @Override
+    public void onContent(final ResponseStream stream, final ByteBuf content, final boolean endOfStream) {
+        final int bytes = content.readableBytes();
+        channel.writeAndFlush(content).addListener(f -> {
+            // Runs on the channel's event loop, where the stream expects its credit
+            if (!f.isSuccess()) {
+                stream.reset();
+                return;
+            }
+            bytesOut += bytes;
+            stream.consumeBytes(bytes);
+            if (endOfStream) {
+                channel.close();
+            }
+        });
+    }
+
+    @Override
+    public void onReset() {
+        channel.close();
+    }
+}
@@ -0,0 +1,98 @@
+package dev.kcterala.tunnelx.tunnel;
+
+import dev.kcterala.tunnelx.ServerConfig;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilter;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilterProvider;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandler;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateServerExtensionHandshaker;
+
+import java.util.Locale;
+
+/**
+ * {@code permessage-deflate} on the tunnel WebSocket.
+ *
+ * <p>Context takeover is kept on, so the deflate window carries over between messages and the
+ * header names and values that every request repeats compress down to back-references. Frames
+ * below {@link ServerConfig#COMPRESSION_MIN_BYTES} and frames whose body is already compressed
+ * are sent as they are.
+ */
+public final class TunnelCompression {
+    private static final WebSocketExtensionFilterProvider FILTERS = new WebSocketExtensionFilterProvider() {
+        @Override
+        public WebSocketExtensionFilter encoderFilter() {
+            return frame -> frame instanceof IncompressibleFrame
+                    || frame.content().readableBytes() < ServerConfig.COMPRESSION_MIN_BYTES;
+        }
+
+        @Override
+        public WebSocketExtensionFilter decoderFilter() {
+            return WebSocketExtensionFilter.NEVER_SKIP;
+        }
+    };
+
+    private TunnelCompression() {
+    }
+
+    /** Negotiates the extension during the tunnel handshake, or returns null if it is disabled. */
+    public static WebSocketServerExtensionHandler newExtensionHandler() {
+        if (ServerConfig.COMPRESSION_LEVEL <= 0) {
+            return null;
+        }
+        return new WebSocketServerExtensionHandler(new PerMessageDeflateServerExtensionHandshaker(
+                ServerConfig.COMPRESSION_LEVEL, false, PerMessageDeflateServerExtensionHandshaker.MAX_WINDOW_SIZE,
+                false, false, FILTERS));
+    }
+
+    /**
+     * Whether a body described by {@code headers} is worth deflating. Bodies that carry a
+     * {@code Content-Encoding}, and media and archive types, are compressed already.
+     */
+    public static boolean isCompressible(final HttpHeaders headers) {
+        if (headers == null) {
+            return true;
+        }
+        final String encoding = headers.get(HttpHeaderNames.CONTENT_ENCODING);
+        if (encoding != null && !"identity".equalsIgnoreCase(encoding.trim())) {
+            return false;
+        }
+        final String contentType = headers.get(HttpHeaderNames.CONTENT_TYPE);
+        return contentType == null || isCompressibleType(contentType.toLowerCase(Locale.ROOT));
+    }
+
+    /** Wraps an encoded tunnel frame, marking it to bypass compression if its body will not shrink. */
+    static BinaryWebSocketFrame frame(final ByteBuf content, final boolean compressible) {
+        return compressible ? new BinaryWebSocketFrame(content) : new IncompressibleFrame(content);
+    }
+
+    private static boolean isCompressibleType(final String contentType) {
+        if (contentType.startsWith("image/")) {
+            return contentType.startsWith("image/svg");
+        }
+        return !contentType.startsWith("video/")
+                && !contentType.startsWith("audio/")
+                && !contentType.startsWith("font/woff")
+                && !contentType.startsWith("application/zip")
+                && !contentType.startsWith("application/gzip")
+                && !contentType.startsWith("application/x-gzip")
+                && !contentType.startsWith("application/zstd")
+                && !contentType.startsWith("application/x-7z")
+                && !contentType.startsWith("application/x-rar")
+                && !contentType.startsWith("application/pdf");
+    }
+
+    /** A binary frame the deflate encoder leaves alone. */
+    private static final class IncompressibleFrame extends BinaryWebSocketFrame {
+        private IncompressibleFrame(final ByteBuf content) {
+            super(content);
+        }
+
+        @Override
+        public IncompressibleFrame replace(final ByteBuf content) {
+            return new IncompressibleFrame(content);
+        }
+    }
+}
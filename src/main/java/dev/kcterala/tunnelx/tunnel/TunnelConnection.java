@@ -1,35 +1,226 @@
 package dev.kcterala.tunnelx.tunnel;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import dev.kcterala.tunnelx.model.PendingRequest;
+import dev.kcterala.tunnelx.ServerConfig;
+import dev.kcterala.tunnelx.cache.ResponseCache;
+import dev.kcterala.tunnelx.logging.TunnelAccessLog;
+import dev.kcterala.tunnelx.metrics.TrafficMetrics;
 import dev.kcterala.tunnelx.model.TunnelMessage;
 import dev.kcterala.tunnelx.model.TunnelRequest;
 import dev.kcterala.tunnelx.model.TunnelResponse;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.util.CharsetUtil;
 
-import java.util.UUID;
-import java.util.function.Consumer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class TunnelConnection {
+    /** Gateway failures in a row after which the connection is taken out of its pool for a while. */
+    private static final int EJECT_AFTER_FAILURES = 3;
+    private static final long EJECT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
     private final String subDomain;
     private final Channel channel;
     private final TunnelManager tunnelManager;
-    private final ObjectMapper mapper = new ObjectMapper();
+    private final boolean binary;
+    private final TunnelStreams streams;
+    private final PendingRequests pendingRequests;
+    private final long requestTimeoutMillis;
     private final long connectedTime = System.currentTimeMillis();
 
+    // Load and health, read by TunnelPool when picking a member
+    private final AdmissionControl admission;
+    private final AtomicLong latencyNanos = new AtomicLong();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long ejectedUntilNanos;
+    /** The pool's metrics once registered; requests are only routed here after that. */
+    private TrafficMetrics metrics = new TrafficMetrics();
+    private ResponseCache cache;
+    private RequestCoalescer coalescer;
+    private TunnelAccessLog accessLog;
+
+    /** Public channels whose reads are paused until the tunnel channel drains. */
+    private final Set<Channel> pausedSources = ConcurrentHashMap.newKeySet();
+
     public TunnelConnection(final String subDomain, final Channel channel, final TunnelManager tunnelManager) {
+        this(subDomain, channel, tunnelManager, false, TimeUnit.SECONDS.toMillis(ServerConfig.REQUEST_TIMEOUT_SECONDS));
+    }
+
+    /**
+     * @param requestTimeoutMillis how long a request may wait for the tunnel client's response head
+     *                             before it is answered with a 504
+     */
+    public TunnelConnection(final String subDomain, final Channel channel, final TunnelManager tunnelManager,
+                            final boolean binary, final long requestTimeoutMillis) {
         this.subDomain = subDomain;
         this.channel = channel;
         this.tunnelManager = tunnelManager;
+        this.binary = binary;
+        this.streams = binary ? TunnelStreams.of(channel) : null;
+        this.pendingRequests = binary ? null : PendingRequests.of(channel);
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        this.admission = new AdmissionControl(ServerConfig.MAX_IN_FLIGHT, ServerConfig.MAX_QUEUED,
+                tunnelManager.getTimer(), TimeUnit.SECONDS.toMillis(ServerConfig.QUEUE_TIMEOUT_SECONDS));
     }
 
     public String getSubDomain() { return subDomain; }
     public Channel getChannel() { return channel; }
     public long getConnectedTime() { return connectedTime; }
+    public boolean isBinary() { return binary; }
+    public long getRequestTimeoutMillis() { return requestTimeoutMillis; }
+    public int getOutstandingRequests() { return admission.inFlight(); }
+    public int getQueuedRequests() { return admission.queued(); }
+    /** Moving average of the time to the response head, 0 until the first response. */
+    public long getLatencyNanos() { return latencyNanos.get(); }
+
+    void setMetrics(final TrafficMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    void setCache(final ResponseCache cache) {
+        this.cache = cache;
+    }
+
+    /** The pool's edge cache, or null if caching is off. */
+    public ResponseCache getCache() {
+        return cache;
+    }
+
+    void setCoalescer(final RequestCoalescer coalescer) {
+        this.coalescer = coalescer;
+    }
+
+    /** The pool's request coalescer, or null if coalescing is off. */
+    public RequestCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    void setAccessLog(final TunnelAccessLog accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    /** Where this tunnel's requests are logged, or null if access logging is off. */
+    public TunnelAccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    boolean isEjected(final long nowNanos) {
+        final long until = ejectedUntilNanos;
+        return until != 0 && nowNanos - until < 0;
+    }
+
+    /**
+     * Forwards a complete request once the connection has a free slot. If it stays full for too
+     * long, or too many requests are already waiting, the listener gets a 503 instead.
+     */
+    public void forwardRequest(final TunnelRequest request, final ResponseListener listener) {
+        final TrackedListener tracked = new TrackedListener(listener);
+        admission.submit(() -> {
+            tracked.admit();
+            tracked.metrics.recordBytesIn(request.getContent().readableBytes());
+            if (binary) {
+                forwardBinaryRequest(request, tracked);
+            } else {
+                forwardJsonRequest(request, tracked);
+            }
+        }, () -> {
+            request.getContent().release();
+            tracked.metrics.recordRejected();
+            tracked.onResponse(overloadedResponse(), true);
+        });
+    }
+
+    /**
+     * Opens a streaming exchange on a binary tunnel. The request head is sent as soon as the
+     * connection has a free slot; unless {@code endStream} is set, the body follows through
+     * {@link TunnelStream#sendData}. Reads on {@code source} are paused while the body cannot be
+     * sent, either because the head is still waiting or the tunnel client has no window left.
+     */
+    public TunnelStream openStream(final HttpRequest request, final boolean endStream,
+                                   final ResponseListener listener, final Channel source) {
+        final TrackedListener tracked = new TrackedListener(listener);
+        final TunnelStream stream = streams.open(tracked, source);
+        final String method = request.method().name();
+        final String uri = request.uri();
+        final HttpHeaders headers = request.headers();
+        // Raw TCP payloads are mostly encrypted or compressed already, and deflating them would copy every chunk
+        stream.setCompressible(!HttpMethod.CONNECT.equals(request.method()) && TunnelCompression.isCompressible(headers));
+        stream.setMetrics(tracked.metrics);
+
+        admission.submit(() -> {
+            tracked.admit();
+            if (stream.isClosed()) {
+                return;
+            }
+            stream.startDeadline(tunnelManager.getTimer(), requestTimeoutMillis);
+            final ByteBuf frame = FrameCodec.encodeRequest(channel.alloc(), stream.getStreamId(), method, uri,
+                    headers, Unpooled.EMPTY_BUFFER, endStream);
+            writeRequestFrame(stream, frame, true);
+            stream.start();
+        }, () -> {
+            tracked.metrics.recordRejected();
+            stream.fail(overloadedResponse());
+        });
+        return stream;
+    }
+
+    /**
+     * Stops reading from {@code source} while this tunnel's channel is above its write buffer high
+     * watermark, so a slow tunnel client cannot make the server buffer without bound.
+     */
+    public void throttle(final Channel source) {
+        if (channel.isWritable()) {
+            return;
+        }
+        pausedSources.add(source);
+        source.config().setAutoRead(false);
+        // The channel may have drained before we were added
+        if (channel.isWritable()) {
+            resumeSources();
+        }
+    }
+
+    /** Called once the tunnel channel is writable again. */
+    void resumeSources() {
+        for (final Channel source : pausedSources) {
+            if (pausedSources.remove(source)) {
+                source.config().setAutoRead(true);
+            }
+        }
+    }
+
+    private void forwardBinaryRequest(final TunnelRequest request, final ResponseListener listener) {
+        final TunnelStream stream = streams.open(listener, null);
+        stream.startDeadline(tunnelManager.getTimer(), requestTimeoutMillis);
 
-    public void forwardRequest(final TunnelRequest request, final Consumer<TunnelResponse> callback) {
-        final String requestId = UUID.randomUUID().toString();
+        // The body is referenced by the outgoing frame, not copied
+        final ByteBuf frame = FrameCodec.encodeRequest(channel.alloc(), stream.getStreamId(), request.getMethod(),
+                request.getPath(), request.getHttpHeaders(), request.getContent(), true);
+        writeRequestFrame(stream, frame, TunnelCompression.isCompressible(request.getHttpHeaders()));
+    }
+
+    private void writeRequestFrame(final TunnelStream stream, final ByteBuf frame, final boolean compressible) {
+        streams.write(TunnelCompression.frame(frame, compressible), () -> stream.fail(502, "Tunnel write failed"));
+    }
+
+    private void forwardJsonRequest(final TunnelRequest request, final ResponseListener listener) {
+        // Pending requests are confined to the tunnel's event loop, the write would hop there anyway
+        if (!channel.eventLoop().inEventLoop()) {
+            channel.eventLoop().execute(() -> forwardJsonRequest(request, listener));
+            return;
+        }
+
+        // Store callback before writing so a fast response cannot miss it
+        final long requestId = pendingRequests.add(listener, tunnelManager.getTimer(), requestTimeoutMillis);
 
         // Create message to send to client
         final TunnelMessage message = new TunnelMessage();
@@ -39,21 +230,125 @@ public class TunnelConnection {
         message.setPath(request.getPath());
         message.setHeaders(request.getHeaders());
         message.setBody(request.getBody());
+        request.getContent().release();
 
         try {
-            final String json = mapper.writeValueAsString(message);
-            channel.writeAndFlush(new TextWebSocketFrame(json));
-
-            // Store callback for when response comes back
-            // This would typically be handled by TunnelManager
-            final PendingRequest pending = new PendingRequest(callback);
-            tunnelManager.addPendingRequest(requestId, pending);
+            channel.writeAndFlush(new TextWebSocketFrame(MessageCodec.encode(channel.alloc(), message))).addListener(future -> {
+                if (!future.isSuccess()) {
+                    pendingRequests.fail(requestId, 502, "Tunnel write failed");
+                }
+            });
 
         } catch (final Exception e) {
             // Handle error
-            tunnelManager.removePendingRequest(requestId);
-            final TunnelResponse errorResponse = new TunnelResponse(500, null, "Internal server error".getBytes());
-            callback.accept(errorResponse);
+            pendingRequests.fail(requestId, 500, "Internal server error");
+        }
+    }
+
+    /**
+     * Keeps the in-flight count, latency average, failure streak and traffic metrics for one
+     * exchange. The slot is given back once the exchange is both admitted and finished, whichever
+     * happens last.
+     */
+    private final class TrackedListener implements ResponseListener {
+        private static final int ADMITTED = 1;
+        private static final int FINISHED = 2;
+
+        private final ResponseListener listener;
+        private final TrafficMetrics metrics = TunnelConnection.this.metrics;
+        private final AtomicInteger state = new AtomicInteger();
+        private final long acceptedNanos = System.nanoTime();
+        private volatile long startNanos;
+
+        private TrackedListener(final ResponseListener listener) {
+            this.listener = listener;
+            metrics.recordRequest();
+        }
+
+        void admit() {
+            startNanos = System.nanoTime();
+            if (state.getAndUpdate(current -> current | ADMITTED) == FINISHED) {
+                admission.release();
+            }
+        }
+
+        private void finish() {
+            final int previous = state.getAndUpdate(current -> current | FINISHED);
+            if ((previous & FINISHED) != 0) {
+                return;
+            }
+            metrics.recordTotalLatency(System.nanoTime() - acceptedNanos);
+            if (previous == ADMITTED) {
+                admission.release();
+            }
+        }
+
+        @Override
+        public void onResponse(final TunnelResponse response, final boolean endOfStream) {
+            metrics.recordResponse(response.getStatusCode());
+            metrics.recordBytesOut(response.getBody().readableBytes());
+            if ((state.get() & ADMITTED) != 0) {
+                final long elapsed = System.nanoTime() - startNanos;
+                metrics.recordTunnelLatency(elapsed);
+                recordResponse(response.getStatusCode(), elapsed);
+            }
+            if (endOfStream) {
+                finish();
+            }
+            listener.onResponse(response, endOfStream);
+        }
+
+        @Override
+        public void onContent(final ResponseStream stream, final ByteBuf content, final boolean endOfStream) {
+            metrics.recordBytesOut(content.readableBytes());
+            if (endOfStream) {
+                finish();
+            }
+            listener.onContent(stream, content, endOfStream);
+        }
+
+        @Override
+        public void onTimeout() {
+            metrics.recordTimeout();
+            listener.onTimeout();
+        }
+
+        @Override
+        public void onReset() {
+            finish();
+            listener.onReset();
+        }
+
+        @Override
+        public void onComplete() {
+            finish();
+            listener.onComplete();
         }
     }
+
+    private void recordResponse(final int statusCode, final long elapsedNanos) {
+        latencyNanos.getAndUpdate(average -> average == 0 ? elapsedNanos : average + (elapsedNanos - average) / 8);
+        if (statusCode < 502 || statusCode > 504) {
+            consecutiveFailures.set(0);
+            return;
+        }
+        // 502/503/504 come from our own timeouts and write failures or from the client's upstream
+        if (consecutiveFailures.incrementAndGet() >= EJECT_AFTER_FAILURES) {
+            consecutiveFailures.set(0);
+            ejectedUntilNanos = System.nanoTime() + EJECT_NANOS;
+        }
+    }
+
+    /** 503 for requests shed because the tunnel is saturated, telling well-behaved clients to back off. */
+    static TunnelResponse overloadedResponse() {
+        return new TunnelResponse(503, Map.of(
+                "Content-Type", "text/plain; charset=UTF-8",
+                "Retry-After", String.valueOf(ServerConfig.RETRY_AFTER_SECONDS)),
+                Unpooled.copiedBuffer("Tunnel is overloaded", CharsetUtil.UTF_8));
+    }
+
+    static TunnelResponse errorResponse(final int statusCode, final String message) {
+        return new TunnelResponse(statusCode, Map.of("Content-Type", "text/plain; charset=UTF-8"),
+                Unpooled.copiedBuffer(message, CharsetUtil.UTF_8));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,10 @@
+package dev.kcterala.tunnelx.tunnel;
+
+/**
+ * Told when the set of registered tunnels changes. Called on the event loop that made the change,
+ * so implementations must hand any real work off.
+ */
+public interface TunnelListener {
+    /** The pool for {@code subdomain} gained or lost a member, or was created or dropped. */
+    void onTunnelChanged(String subdomain);
+}
@@ -1,47 +1,131 @@
 package dev.kcterala.tunnelx.tunnel;
 
-import dev.kcterala.tunnelx.model.PendingRequest;
+import dev.kcterala.tunnelx.Drain;
+import dev.kcterala.tunnelx.ServerConfig;
+import dev.kcterala.tunnelx.cluster.ClusterNode;
+import dev.kcterala.tunnelx.metrics.TrafficMetrics;
+import dev.kcterala.tunnelx.model.TunnelFrame;
 import dev.kcterala.tunnelx.model.TunnelMessage;
 import dev.kcterala.tunnelx.model.TunnelResponse;
+import dev.kcterala.tunnelx.tcp.TcpTunnels;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class TunnelManager {
     private static final Logger log = LoggerFactory.getLogger(TunnelManager.class);
-    private final Map<String, TunnelConnection> tunnels = new HashMap<>();
-    private final Map<String, PendingRequest> pendingRequests = new HashMap<>();
+    /** Totals over every tunnel, including ones that have since disconnected. */
+    private final TrafficMetrics metrics = new TrafficMetrics();
+    private final TunnelRegistry tunnels = new TunnelRegistry(metrics);
+    private final HostRouter router = new HostRouter(ServerConfig.DOMAIN, tunnels);
     private final long startTime = System.currentTimeMillis();
     private final AtomicLong totalTunnelCount = new AtomicLong(0);
-
+    private final List<TunnelListener> listeners = new CopyOnWriteArrayList<>();
+    /** Request deadlines only need ~100ms precision, so one cheap wheel serves every tunnel. */
+    private final Timer timer = new HashedWheelTimer(
+            new DefaultThreadFactory("tunnel-deadlines", true), 100, TimeUnit.MILLISECONDS);
+    private volatile TcpTunnels tcpTunnels;
+    private volatile ClusterNode cluster;
+    private volatile Drain drain;
+
+    public TunnelManager() {
+        listeners.add(router);
+    }
 
     public void registerTunnel(final String subdomain, final TunnelConnection tunnel) {
-        tunnels.put(subdomain, tunnel);
+        final int connections = tunnels.register(subdomain, tunnel);
         totalTunnelCount.incrementAndGet();
-        log.info("Tunnel registered: {}", subdomain);
-        // Push update to dashboard
-        notifyDashboard();
+        log.info("Tunnel registered: {} ({} connections)", subdomain, connections);
+        fireChanged(subdomain);
+    }
+
+    /**
+     * Picks one of the connections registered for {@code subdomain} to carry the next request, only
+     * a binary one if {@code binaryOnly}.
+     */
+    public TunnelConnection getTunnel(final String subdomain, final boolean binaryOnly) {
+        return tunnels.select(subdomain, binaryOnly);
+    }
+
+    /** Picks a connection for the public request addressed to {@code host}, or null. */
+    public TunnelConnection route(final CharSequence host) {
+        return route(host, false);
+    }
+
+    /** Like {@link #route(CharSequence)}, but only picks a binary connection if {@code binaryOnly}. */
+    public TunnelConnection route(final CharSequence host, final boolean binaryOnly) {
+        final String subdomain = router.resolve(host);
+        return subdomain != null ? tunnels.select(subdomain, binaryOnly) : null;
+    }
+
+    /** Whether a tunnel for {@code host} is connected here, without picking one of its connections. */
+    public boolean serves(final CharSequence host) {
+        final String subdomain = router.resolve(host);
+        return subdomain != null && tunnels.contains(subdomain);
     }
 
-    public TunnelConnection getTunnel(final String subdomain) {
-        return tunnels.get(subdomain);
+    public HostRouter getRouter() {
+        return router;
+    }
+
+    /** Lets tunnels ask for a public TCP port; until this is called they cannot. */
+    public void enableTcp(final TcpTunnels tcpTunnels) {
+        this.tcpTunnels = tcpTunnels;
+        addListener(tcpTunnels);
+    }
+
+    /** The TCP ports handed out to tunnels, or null if TCP tunnels are off. */
+    public TcpTunnels getTcpTunnels() {
+        return tcpTunnels;
+    }
+
+    /** Joins a cluster; must be called before any connection is accepted. */
+    public void enableCluster(final ClusterNode cluster) {
+        this.cluster = cluster;
+    }
+
+    /** This server's cluster node, or null when it runs alone. */
+    public ClusterNode getCluster() {
+        return cluster;
+    }
+
+    /** Lets the server be drained; until this is called it cannot. */
+    public void enableDrain(final Drain drain) {
+        this.drain = drain;
+    }
+
+    /** The server's drain, or null before it has started listening. */
+    public Drain getDrain() {
+        return drain;
+    }
+
+    /** Whether the server is draining, so no tunnel may register. */
+    public boolean isDraining() {
+        final Drain current = drain;
+        return current != null && current.isStarted();
+    }
+
+    /** Whether a tunnel is registered over {@code channel}. */
+    public boolean isTunnelChannel(final Channel channel) {
+        return !tunnels.tunnelsOn(channel).isEmpty();
     }
 
     public void removeChannel(final Channel channel) {
-        boolean removed = tunnels.entrySet().removeIf(entry -> {
-            if (entry.getValue().getChannel().equals(channel)) {
-                log.info("Removing tunnel for closed channel: {}", entry.getKey());
-                return true;
-            }
-            return false;
-        });
-        if (removed) {
-            // Push update to dashboard
-            notifyDashboard();
+        final List<TunnelConnection> removed = tunnels.removeChannel(channel);
+        for (final TunnelConnection tunnel : removed) {
+            log.info("Removing tunnel for closed channel: {}", tunnel.getSubDomain());
+            tunnel.resumeSources();
+            fireChanged(tunnel.getSubDomain());
         }
     }
 
@@ -49,53 +133,75 @@ public class TunnelManager {
         return tunnels.size();
     }
 
-    public void handleTunnelResponse(final TunnelMessage message) {
-        final String requestId = message.getRequestId();
-        final PendingRequest pending = pendingRequests.remove(requestId);
+    public void handleTunnelResponse(final Channel channel, final TunnelMessage message) {
+        final PendingRequests pending = PendingRequests.get(channel);
+        if (pending == null) {
+            return;
+        }
+        pending.complete(message.getRequestId(), new TunnelResponse(
+                message.getStatusCode(),
+                message.getHeaders(),
+                message.getBody() != null ? Unpooled.wrappedBuffer(message.getBody()) : Unpooled.EMPTY_BUFFER
+        ));
+    }
 
-        if (pending != null) {
-            final TunnelResponse response = new TunnelResponse(
-                    message.getStatusCode(),
-                    message.getHeaders(),
-                    message.getBody()
-            );
-            pending.getCallback().accept(response);
+    /** Resumes the public channels that were paused while {@code channel} was unwritable. */
+    public void onTunnelWritable(final Channel channel) {
+        for (final TunnelConnection tunnel : tunnels.tunnelsOn(channel)) {
+            tunnel.resumeSources();
         }
     }
 
-    public void addPendingRequest(final String requestId, final PendingRequest request) {
-        pendingRequests.put(requestId, request);
+    public void handleTunnelFrame(final Channel channel, final TunnelFrame frame) {
+        final TunnelStreams streams = TunnelStreams.get(channel);
+        if (streams == null) {
+            frame.getBody().release();
+            return;
+        }
+        streams.handleFrame(frame);
     }
 
-    public void removePendingRequest(final String requestId) {
-        pendingRequests.remove(requestId);
+    public Timer getTimer() {
+        return timer;
     }
 
     public long getTotalTunnelCount() {
         return totalTunnelCount.get();
     }
 
+    public TrafficMetrics getMetrics() {
+        return metrics;
+    }
+
     public long getUptimeSeconds() {
         return (System.currentTimeMillis() - startTime) / 1000;
     }
 
 
     public boolean isSubdomainTaken(final String subdomain) {
-        return tunnels.containsKey(subdomain);
+        return tunnels.contains(subdomain);
     }
 
-    public Map<String, TunnelConnection> getActiveTunnels() {
-        return new HashMap<>(tunnels);
+    public Map<String, TunnelPool> getActiveTunnels() {
+        return tunnels.snapshot();
     }
 
-    private void notifyDashboard() {
-        try {
-            // Use reflection to avoid circular dependency
-            Class<?> sseManagerClass = Class.forName("dev.kcterala.tunnelx.utils.SSEManager");
-            java.lang.reflect.Method broadcastMethod = sseManagerClass.getMethod("broadcastStats", TunnelManager.class);
-            broadcastMethod.invoke(null, this);
-        } catch (Exception e) {
-            // Silently ignore if SSEManager is not available
+    /** The pool currently serving {@code subdomain}, or null. */
+    public TunnelPool getPool(final String subdomain) {
+        return tunnels.pool(subdomain);
+    }
+
+    public void addListener(final TunnelListener listener) {
+        listeners.add(listener);
+    }
+
+    private void fireChanged(final String subdomain) {
+        for (final TunnelListener listener : listeners) {
+            try {
+                listener.onTunnelChanged(subdomain);
+            } catch (final Exception e) {
+                log.warn("Tunnel listener failed", e);
+            }
         }
     }
 
@@ -0,0 +1,160 @@
+package dev.kcterala.tunnelx.tunnel;
+
+import dev.kcterala.tunnelx.ServerConfig;
+import dev.kcterala.tunnelx.cache.ResponseCache;
+import dev.kcterala.tunnelx.logging.AccessLog;
+import dev.kcterala.tunnelx.logging.TunnelAccessLog;
+import dev.kcterala.tunnelx.metrics.TrafficMetrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The tunnel connections serving one subdomain, opened by one client or by several replicas.
+ *
+ * <p>Requests go to the member with the fewest outstanding requests, ties broken by the lower
+ * response latency average. Members that keep failing are ejected for a while and only used again
+ * when nothing healthy is left. Members are held in a copy-on-write array, so selection never
+ * locks; adding and removing happen inside the registry's per-subdomain compute.
+ */
+public class TunnelPool {
+    private static final TunnelConnection[] EMPTY = new TunnelConnection[0];
+
+    private final String subdomain;
+    private final TrafficMetrics metrics;
+    /** Null unless {@link ServerConfig#CACHE_MAX_BYTES} turns the edge cache on. */
+    private final ResponseCache cache;
+    /** Null unless {@link ServerConfig#COALESCE_MAX_WAITERS} turns coalescing on. */
+    private final RequestCoalescer coalescer;
+    /** Null unless {@link ServerConfig#ACCESS_LOG} turns access logging on. */
+    private final TunnelAccessLog accessLog;
+    private volatile TunnelConnection[] members = EMPTY;
+    /** Rotates where the scan starts so idle members share the load. */
+    private final AtomicInteger cursor = new AtomicInteger();
+
+    TunnelPool(final String subdomain, final TrafficMetrics serverMetrics) {
+        this.subdomain = subdomain;
+        this.metrics = new TrafficMetrics(serverMetrics);
+        this.cache = ServerConfig.CACHE_MAX_BYTES > 0
+                ? new ResponseCache(ServerConfig.CACHE_MAX_BYTES, ServerConfig.CACHE_MAX_ENTRY_BYTES, metrics)
+                : null;
+        this.coalescer = ServerConfig.COALESCE_MAX_WAITERS > 0
+                ? new RequestCoalescer(ServerConfig.COALESCE_HEADERS, ServerConfig.COALESCE_MAX_WAITERS, metrics)
+                : null;
+        this.accessLog = AccessLog.forTunnel(subdomain, ServerConfig.ACCESS_LOG_SAMPLE,
+                ServerConfig.ACCESS_LOG_MAX_PER_SECOND);
+    }
+
+    public String getSubdomain() { return subdomain; }
+    public int size() { return members.length; }
+    /** Traffic of every member, for as long as the pool exists. */
+    public TrafficMetrics getMetrics() { return metrics; }
+    /** The edge cache shared by every member, or null if caching is off. */
+    public ResponseCache getCache() { return cache; }
+    /** The coalescer shared by every member, or null if coalescing is off. */
+    public RequestCoalescer getCoalescer() { return coalescer; }
+
+    /** Requests currently forwarded and not yet answered, across members. */
+    public int getInFlightRequests() {
+        int total = 0;
+        for (final TunnelConnection member : members) {
+            total += member.getOutstandingRequests();
+        }
+        return total;
+    }
+
+    /** Requests waiting for a free slot, across members. */
+    public int getQueuedRequests() {
+        int total = 0;
+        for (final TunnelConnection member : members) {
+            total += member.getQueuedRequests();
+        }
+        return total;
+    }
+
+    /** Connected time of the longest-lived member. */
+    public long getConnectedTime() {
+        long oldest = Long.MAX_VALUE;
+        for (final TunnelConnection member : members) {
+            oldest = Math.min(oldest, member.getConnectedTime());
+        }
+        return oldest;
+    }
+
+    /**
+     * Picks the member for the next request, only among binary ones if {@code binaryOnly}, or null
+     * if there is none. A pool may mix protocols, as each connection chooses its own.
+     */
+    public TunnelConnection select(final boolean binaryOnly) {
+        final TunnelConnection[] current = members;
+        final int count = current.length;
+        if (count == 0) {
+            return null;
+        }
+        if (count == 1) {
+            return !binaryOnly || current[0].isBinary() ? current[0] : null;
+        }
+
+        final long now = System.nanoTime();
+        final int start = Math.floorMod(cursor.getAndIncrement(), count);
+        TunnelConnection best = null;
+        TunnelConnection fallback = null;
+        for (int i = 0; i < count; i++) {
+            final TunnelConnection candidate = current[(start + i) % count];
+            if (binaryOnly && !candidate.isBinary()) {
+                continue;
+            }
+            if (candidate.isEjected(now)) {
+                if (fallback == null || isBetter(candidate, fallback)) {
+                    fallback = candidate;
+                }
+            } else if (best == null || isBetter(candidate, best)) {
+                best = candidate;
+            }
+        }
+        return best != null ? best : fallback;
+    }
+
+    synchronized void add(final TunnelConnection member) {
+        // Set before the member is published, so its first request is already counted here
+        member.setMetrics(metrics);
+        member.setCache(cache);
+        member.setCoalescer(coalescer);
+        member.setAccessLog(accessLog);
+        final TunnelConnection[] current = members;
+        final TunnelConnection[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = member;
+        members = next;
+    }
+
+    /** Removes {@code member}; returns true if the pool is empty afterwards. */
+    synchronized boolean remove(final TunnelConnection member) {
+        final TunnelConnection[] current = members;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == member) {
+                final TunnelConnection[] next = new TunnelConnection[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                members = next;
+                break;
+            }
+        }
+        if (members.length > 0) {
+            return false;
+        }
+        // The registry drops an empty pool for good, so nothing can be cached here any more
+        if (cache != null) {
+            cache.close();
+        }
+        return true;
+    }
+
+    private static boolean isBetter(final TunnelConnection candidate, final TunnelConnection best) {
+        final int outstanding = candidate.getOutstandingRequests();
+        final int bestOutstanding = best.getOutstandingRequests();
+        if (outstanding != bestOutstanding) {
+            return outstanding < bestOutstanding;
+        }
+        return candidate.getLatencyNanos() < best.getLatencyNanos();
+    }
+}
@@ -0,0 +1,96 @@
+package dev.kcterala.tunnelx.tunnel;
+
+import dev.kcterala.tunnelx.metrics.TrafficMetrics;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Subdomain to tunnel pool mapping shared by every event loop.
+ *
+ * <p>Lookups are lock-free reads of a {@link ConcurrentHashMap}. Each tunnel channel also keeps
+ * the tunnels registered over it in a channel attribute, so a disconnect only touches its own
+ * entries. Pools are created and dropped inside the map's per-key compute, so a registration
+ * racing with the last member's disconnect never lands in a pool that is being removed.
+ */
+public class TunnelRegistry {
+    private static final AttributeKey<Set<TunnelConnection>> CHANNEL_TUNNELS = AttributeKey.valueOf("registeredTunnels");
+
+    private final Map<String, TunnelPool> pools = new ConcurrentHashMap<>();
+    private final TrafficMetrics serverMetrics;
+
+    public TunnelRegistry(final TrafficMetrics serverMetrics) {
+        this.serverMetrics = serverMetrics;
+    }
+
+    /** Adds {@code tunnel} to the pool for {@code subdomain} and returns the pool's new size. */
+    public int register(final String subdomain, final TunnelConnection tunnel) {
+        channelTunnels(tunnel.getChannel()).add(tunnel);
+        final TunnelPool pool = pools.compute(subdomain, (key, existing) -> {
+            final TunnelPool target = existing != null ? existing : new TunnelPool(key, serverMetrics);
+            target.add(tunnel);
+            return target;
+        });
+        if (!tunnel.getChannel().isActive()) {
+            // Lost a race with the disconnect, which may already have cleaned up this channel
+            removeChannel(tunnel.getChannel());
+        }
+        return pool.size();
+    }
+
+    /** Picks a connection for {@code subdomain}, only a binary one if {@code binaryOnly}, or null. */
+    public TunnelConnection select(final String subdomain, final boolean binaryOnly) {
+        final TunnelPool pool = pools.get(subdomain);
+        return pool != null ? pool.select(binaryOnly) : null;
+    }
+
+    public TunnelPool pool(final String subdomain) {
+        return pools.get(subdomain);
+    }
+
+    public boolean contains(final String subdomain) {
+        return pools.containsKey(subdomain);
+    }
+
+    public int size() {
+        return pools.size();
+    }
+
+    /** Removes every tunnel registered over {@code channel} and returns the removed ones. */
+    public List<TunnelConnection> removeChannel(final Channel channel) {
+        final Set<TunnelConnection> owned = channel.attr(CHANNEL_TUNNELS).getAndSet(null);
+        if (owned == null) {
+            return Collections.emptyList();
+        }
+        final List<TunnelConnection> removed = new ArrayList<>(owned.size());
+        for (final TunnelConnection tunnel : owned) {
+            pools.computeIfPresent(tunnel.getSubDomain(), (key, pool) -> pool.remove(tunnel) ? null : pool);
+            removed.add(tunnel);
+        }
+        return removed;
+    }
+
+    /** The tunnels currently registered over {@code channel}. */
+    public Set<TunnelConnection> tunnelsOn(final Channel channel) {
+        final Set<TunnelConnection> owned = channel.attr(CHANNEL_TUNNELS).get();
+        return owned != null ? owned : Collections.emptySet();
+    }
+
+    /** A point-in-time copy, for stats and the dashboard. */
+    public Map<String, TunnelPool> snapshot() {
+        return new HashMap<>(pools);
+    }
+
+    private static Set<TunnelConnection> channelTunnels(final Channel channel) {
+        final Set<TunnelConnection> created = ConcurrentHashMap.newKeySet();
+        final Set<TunnelConnection> existing = channel.attr(CHANNEL_TUNNELS).setIfAbsent(created);
+        return existing != null ? existing : created;
+    }
+}
@@ -0,0 +1,298 @@
+package dev.kcterala.tunnelx.tunnel;
+
+import dev.kcterala.tunnelx.metrics.TrafficMetrics;
+import dev.kcterala.tunnelx.model.TunnelFrame;
+import dev.kcterala.tunnelx.model.TunnelResponse;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.EventExecutor;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One request/response exchange on a binary tunnel channel.
+ *
+ * <p>Both directions use credit-based flow control. Request body chunks are only sent while the
+ * tunnel client has granted window; anything beyond that is queued and reads on the source
+ * channel are paused until a window update arrives. Response body chunks are acknowledged with
+ * window updates only after the listener has consumed them, so a slow public client stops the
+ * tunnel client instead of filling the heap.
+ *
+ * <p>Upload state is confined to {@code executor}, the event loop of the source channel.
+ *
+ * <p>If the response head does not arrive before the deadline, the stream is reset and the
+ * listener gets a 504. Whichever of the two happens first wins.
+ */
+public class TunnelStream implements ResponseStream {
+    /** Receive window each side grants per stream before the first window update. */
+    public static final int INITIAL_WINDOW = 256 * 1024;
+
+    private final long streamId;
+    private final Channel tunnelChannel;
+    private final TunnelStreams streams;
+    private final ResponseListener listener;
+    private final Channel source;
+    private final EventExecutor executor;
+
+    // Upload side, only touched on executor
+    private final ArrayDeque<ByteBuf> pendingData = new ArrayDeque<>();
+    private int sendWindow = INITIAL_WINDOW;
+    private boolean pendingEnd;
+    private boolean readsPaused;
+    /** Set once the request head is on its way; body chunks queue up until then. */
+    private boolean started;
+    /** Whether body chunks may go through tunnel compression; set before {@link #start()}. */
+    private boolean compressible = true;
+    /** Where uploaded body bytes are counted, if anywhere; set before {@link #start()}. */
+    private TrafficMetrics metrics;
+
+    // Download side, only touched on executor
+    private int unacknowledged;
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicBoolean headReceived = new AtomicBoolean();
+    private volatile Timeout deadline;
+
+    TunnelStream(final long streamId, final Channel tunnelChannel, final TunnelStreams streams,
+                 final ResponseListener listener, final Channel source) {
+        this.streamId = streamId;
+        this.tunnelChannel = tunnelChannel;
+        this.streams = streams;
+        this.listener = listener;
+        this.source = source;
+        this.executor = source != null ? source.eventLoop() : tunnelChannel.eventLoop();
+    }
+
+    public long getStreamId() { return streamId; }
+    @Override
+    public boolean isClosed() { return closed.get(); }
+
+    /**
+     * Sends a chunk of the request body, taking ownership of {@code data}. Must be called on the
+     * source channel's event loop.
+     */
+    public void sendData(final ByteBuf data, final boolean endStream) {
+        if (closed.get()) {
+            data.release();
+            return;
+        }
+        pendingData.add(data);
+        pendingEnd |= endStream;
+        flushPending();
+        // Checks autoRead rather than readsPaused, as other throttling may have turned reads back on
+        if (!pendingData.isEmpty() && source != null && source.config().isAutoRead()) {
+            readsPaused = true;
+            source.config().setAutoRead(false);
+        }
+    }
+
+    void setCompressible(final boolean compressible) {
+        this.compressible = compressible;
+    }
+
+    void setMetrics(final TrafficMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /** Lets queued body chunks follow the request head, which the caller has just written. */
+    void start() {
+        executor.execute(() -> {
+            started = true;
+            flushPending();
+            if (pendingData.isEmpty() && readsPaused) {
+                readsPaused = false;
+                source.config().setAutoRead(true);
+            }
+        });
+    }
+
+    /** Returns {@code bytes} of response body credit to the tunnel client, on the source channel's event loop. */
+    @Override
+    public void consumeBytes(final int bytes) {
+        if (!executor.inEventLoop()) {
+            executor.execute(() -> consumeBytes(bytes));
+            return;
+        }
+        if (closed.get()) {
+            return;
+        }
+        unacknowledged += bytes;
+        if (unacknowledged >= INITIAL_WINDOW / 2) {
+            tunnelChannel.writeAndFlush(new BinaryWebSocketFrame(
+                    FrameCodec.encodeWindowUpdate(tunnelChannel.alloc(), streamId, unacknowledged)));
+            unacknowledged = 0;
+        }
+    }
+
+    /** Answers with a 504 unless the response head arrives within {@code millis}. */
+    public void startDeadline(final Timer timer, final long millis) {
+        deadline = timer.newTimeout(timeout -> expire(), millis, TimeUnit.MILLISECONDS);
+        if (closed.get()) {
+            deadline.cancel();
+        }
+    }
+
+    @Override
+    public void reset() {
+        if (close()) {
+            tunnelChannel.writeAndFlush(new BinaryWebSocketFrame(
+                    FrameCodec.encodeReset(tunnelChannel.alloc(), streamId)));
+        }
+    }
+
+    /** Completes the stream locally with an error response, unless it already finished. */
+    public void fail(final int statusCode, final String message) {
+        fail(TunnelConnection.errorResponse(statusCode, message));
+    }
+
+    /**
+     * Completes the stream locally with {@code response}, unless it already finished. If the
+     * response head has already arrived, the listener gets a reset instead.
+     */
+    public void fail(final TunnelResponse response) {
+        if (!close()) {
+            response.getBody().release();
+        } else if (headReceived.get()) {
+            // A second head cannot follow the one already passed on
+            response.getBody().release();
+            listener.onReset();
+        } else {
+            listener.onResponse(response, true);
+        }
+    }
+
+    void onFrame(final TunnelFrame frame) {
+        switch (frame.getType()) {
+            case TunnelFrame.TYPE_RESPONSE -> onResponse(frame);
+            case TunnelFrame.TYPE_DATA -> onData(frame);
+            case TunnelFrame.TYPE_WINDOW_UPDATE -> {
+                final int increment = frame.getBody().readInt();
+                frame.getBody().release();
+                executor.execute(() -> onWindowUpdate(increment));
+            }
+            case TunnelFrame.TYPE_RESET -> {
+                frame.getBody().release();
+                if (close()) {
+                    listener.onReset();
+                }
+            }
+            default -> frame.getBody().release();
+        }
+    }
+
+    private void expire() {
+        if (headReceived.compareAndSet(false, true) && close()) {
+            tunnelChannel.writeAndFlush(new BinaryWebSocketFrame(
+                    FrameCodec.encodeReset(tunnelChannel.alloc(), streamId)));
+            listener.onTimeout();
+            listener.onResponse(TunnelConnection.errorResponse(504, "Gateway Timeout"), true);
+        }
+    }
+
+    private void onResponse(final TunnelFrame frame) {
+        if (!headReceived.compareAndSet(false, true)) {
+            // Duplicate head, or the deadline already answered for us
+            frame.getBody().release();
+            return;
+        }
+        cancelDeadline();
+        final Map<String, String> headers = new HashMap<>(frame.getHeaders());
+        final String status = headers.remove(FrameCodec.STATUS);
+        final int statusCode;
+        try {
+            statusCode = status != null ? Integer.parseInt(status) : 200;
+        } catch (final NumberFormatException e) {
+            frame.getBody().release();
+            reset();
+            listener.onResponse(TunnelConnection.errorResponse(502, "Invalid status from tunnel"), true);
+            return;
+        }
+
+        if (frame.isEndStream()) {
+            close();
+        }
+        listener.onResponse(new TunnelResponse(statusCode, headers, frame.getBody()), frame.isEndStream());
+    }
+
+    private void onData(final TunnelFrame frame) {
+        if (frame.isEndStream()) {
+            close();
+        }
+        listener.onContent(this, frame.getBody(), frame.isEndStream());
+    }
+
+    private void onWindowUpdate(final int increment) {
+        sendWindow += increment;
+        flushPending();
+        if (pendingData.isEmpty() && readsPaused) {
+            readsPaused = false;
+            source.config().setAutoRead(true);
+        }
+    }
+
+    private void flushPending() {
+        if (!started) {
+            return;
+        }
+        while (!pendingData.isEmpty() && !closed.get()) {
+            final ByteBuf head = pendingData.peek();
+            final int readable = head.readableBytes();
+            if (readable <= sendWindow) {
+                pendingData.poll();
+                writeData(head, pendingData.isEmpty() && pendingEnd);
+            } else if (sendWindow > 0) {
+                writeData(head.readRetainedSlice(sendWindow), false);
+            } else {
+                break;
+            }
+        }
+    }
+
+    private void writeData(final ByteBuf data, final boolean endStream) {
+        if (!data.isReadable() && !endStream) {
+            data.release();
+            return;
+        }
+        sendWindow -= data.readableBytes();
+        if (metrics != null) {
+            metrics.recordBytesIn(data.readableBytes());
+        }
+        tunnelChannel.writeAndFlush(TunnelCompression.frame(
+                FrameCodec.encodeData(tunnelChannel.alloc(), streamId, data, endStream), compressible));
+    }
+
+    /** Marks the stream closed and releases queued upload data. Returns false if already closed. */
+    private boolean close() {
+        if (!closed.compareAndSet(false, true)) {
+            return false;
+        }
+        streams.remove(streamId);
+        cancelDeadline();
+        listener.onComplete();
+        executor.execute(() -> {
+            ByteBuf data;
+            while ((data = pendingData.poll()) != null) {
+                data.release();
+            }
+            if (readsPaused) {
+                readsPaused = false;
+                source.config().setAutoRead(true);
+            }
+        });
+        return true;
+    }
+
+    private void cancelDeadline() {
+        final Timeout timeout = deadline;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package dev.kcterala.tunnelx.tunnel;
+
+import dev.kcterala.tunnelx.model.TunnelFrame;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.collection.LongObjectMap;
+import io.netty.util.concurrent.EventExecutor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stream id allocation and in-flight streams of one binary tunnel channel. Stream ids are scoped
+ * to the WebSocket they travel on, so every tunnel registered over the same channel shares one
+ * instance.
+ *
+ * <p>Ids come from a counter any thread may draw on. The table is keyed by primitive longs and
+ * confined to the tunnel channel's event loop, where frames arrive; streams opened elsewhere are
+ * registered there, ahead of their request head, which is written from the same loop.
+ */
+public class TunnelStreams {
+    private static final AttributeKey<TunnelStreams> KEY = AttributeKey.valueOf("tunnelStreams");
+
+    private final Channel channel;
+    private final EventExecutor executor;
+    private final AtomicLong nextStreamId = new AtomicLong(1);
+    private final LongObjectMap<TunnelStream> streams = new LongObjectHashMap<>();
+
+    private TunnelStreams(final Channel channel) {
+        this.channel = channel;
+        this.executor = channel.eventLoop();
+    }
+
+    public static TunnelStreams of(final Channel channel) {
+        final TunnelStreams created = new TunnelStreams(channel);
+        final TunnelStreams existing = channel.attr(KEY).setIfAbsent(created);
+        if (existing != null) {
+            return existing;
+        }
+        channel.closeFuture().addListener(future -> created.failAll(502, "Tunnel disconnected"));
+        return created;
+    }
+
+    public static TunnelStreams get(final Channel channel) {
+        return channel.attr(KEY).get();
+    }
+
+    /**
+     * Opens a stream whose response goes to {@code listener}. Reads on {@code source}, if given,
+     * are paused while the request body waits for window. Its frames must be written through
+     * {@link #write}.
+     */
+    public TunnelStream open(final ResponseListener listener, final Channel source) {
+        final long streamId = nextStreamId.getAndIncrement();
+        final TunnelStream stream = new TunnelStream(streamId, channel, this, listener, source);
+        if (executor.inEventLoop()) {
+            register(stream);
+        } else {
+            executor.execute(() -> register(stream));
+        }
+        return stream;
+    }
+
+    /**
+     * Writes a stream's request head. Always queued on the event loop, so it goes out after the
+     * stream is registered and its response cannot miss it.
+     */
+    void write(final Object frame, final Runnable onFailure) {
+        executor.execute(() -> channel.writeAndFlush(frame).addListener(future -> {
+            if (!future.isSuccess()) {
+                onFailure.run();
+            }
+        }));
+    }
+
+    /** Must be called on the tunnel channel's event loop. */
+    public void handleFrame(final TunnelFrame frame) {
+        final TunnelStream stream = streams.get(frame.getStreamId());
+        if (stream == null) {
+            frame.getBody().release();
+            return;
+        }
+        stream.onFrame(frame);
+    }
+
+    void remove(final long streamId) {
+        if (executor.inEventLoop()) {
+            streams.remove(streamId);
+        } else {
+            executor.execute(() -> streams.remove(streamId));
+        }
+    }
+
+    private void register(final TunnelStream stream) {
+        if (!channel.isActive()) {
+            // Opened as the tunnel went away, after every registered stream was failed
+            stream.fail(502, "Tunnel disconnected");
+        } else if (!stream.isClosed()) {
+            streams.put(stream.getStreamId(), stream);
+        }
+    }
+
+    /** Completes every in-flight stream with an error response once the tunnel is gone. */
+    private void failAll(final int statusCode, final String message) {
+        // Failing a stream removes it from the table
+        final List<TunnelStream> failed = new ArrayList<>(streams.values());
+        for (final TunnelStream stream : failed) {
+            stream.fail(statusCode, message);
+        }
+    }
+}
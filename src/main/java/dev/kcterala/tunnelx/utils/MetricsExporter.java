@@ -0,0 +1,217 @@
+package dev.kcterala.tunnelx.utils;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import dev.kcterala.tunnelx.cluster.ClusterNode;
+import dev.kcterala.tunnelx.logging.AccessLog;
+import dev.kcterala.tunnelx.metrics.LatencyHistogram;
+import dev.kcterala.tunnelx.metrics.TrafficMetrics;
+import dev.kcterala.tunnelx.tunnel.TunnelManager;
+import dev.kcterala.tunnelx.tunnel.TunnelPool;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Renders tunnel traffic metrics for {@code /metrics}, in the Prometheus text format, and for
+ * {@code /api/stats}.
+ *
+ * <p>Server-wide series are named {@code tunnelx_*} and keep counting across disconnects;
+ * per-tunnel series are named {@code tunnelx_tunnel_*} with a {@code subdomain} label and start
+ * over when a subdomain's last connection goes away.
+ */
+public final class MetricsExporter {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /** Histogram bucket bounds, powers of four from 256us to about 67s, which the histogram splits exactly. */
+    private static final long[] BUCKET_MICROS = {
+            1L << 8, 1L << 10, 1L << 12, 1L << 14, 1L << 16, 1L << 18, 1L << 20, 1L << 22, 1L << 24, 1L << 26
+    };
+    private static final String[] BUCKET_LABELS = new String[BUCKET_MICROS.length];
+
+    static {
+        for (int i = 0; i < BUCKET_MICROS.length; i++) {
+            BUCKET_LABELS[i] = BigDecimal.valueOf(BUCKET_MICROS[i], 6).stripTrailingZeros().toPlainString();
+        }
+    }
+
+    private MetricsExporter() {
+    }
+
+    /** One set of labelled series. */
+    private record Series(String labels, TrafficMetrics metrics, long inFlight, long queued) {
+    }
+
+    public static String prometheus(final TunnelManager tunnelManager) {
+        final StringBuilder out = new StringBuilder(4096);
+
+        gauge(out, "tunnelx_uptime_seconds", "Seconds since the server started.", tunnelManager.getUptimeSeconds());
+        gauge(out, "tunnelx_tunnels_active", "Subdomains with at least one tunnel connection.",
+                tunnelManager.getActiveTunnelCount());
+        counter(out, "tunnelx_tunnels_registered_total", "Tunnel connections registered since start.",
+                tunnelManager.getTotalTunnelCount());
+        counter(out, "tunnelx_access_log_written_total", "Access log records written.", AccessLog.getWritten());
+        counter(out, "tunnelx_access_log_dropped_total", "Access log records dropped because the writer fell behind.",
+                AccessLog.getDropped());
+        counter(out, "tunnelx_access_log_limited_total", "Access log records left out by a tunnel's rate limit.",
+                AccessLog.getLimited());
+        final ClusterNode cluster = tunnelManager.getCluster();
+        if (cluster != null) {
+            gauge(out, "tunnelx_cluster_nodes", "Cluster nodes with an entry in the directory, this one included.",
+                    cluster.getDirectory().nodes().size());
+            counter(out, "tunnelx_cluster_forwarded_total", "Public requests sent on to the cluster node serving their tunnel.",
+                    cluster.getForwarded());
+        }
+
+        final List<Series> tunnels = new ArrayList<>();
+        long inFlight = 0;
+        long queued = 0;
+        for (final TunnelPool pool : tunnelManager.getActiveTunnels().values()) {
+            final Series series = new Series("subdomain=\"" + escape(pool.getSubdomain()) + "\"",
+                    pool.getMetrics(), pool.getInFlightRequests(), pool.getQueuedRequests());
+            inFlight += series.inFlight();
+            queued += series.queued();
+            tunnels.add(series);
+        }
+
+        writeTraffic(out, "tunnelx_", List.of(new Series("", tunnelManager.getMetrics(), inFlight, queued)));
+        writeTraffic(out, "tunnelx_tunnel_", tunnels);
+        return out.toString();
+    }
+
+    /** Adds the traffic counters and latency percentiles of {@code metrics} to a stats object. */
+    public static void putTraffic(final ObjectNode node, final TrafficMetrics metrics) {
+        node.put("requestCount", metrics.getRequests());
+        node.put("timeouts", metrics.getTimeouts());
+        node.put("rejected", metrics.getRejected());
+        node.put("bytesIn", metrics.getBytesIn());
+        node.put("bytesOut", metrics.getBytesOut());
+        final ObjectNode responses = node.putObject("responses");
+        for (int statusClass = 1; statusClass <= 5; statusClass++) {
+            responses.put(statusClass + "xx", metrics.getResponses(statusClass));
+        }
+        final ObjectNode cache = node.putObject("cache");
+        cache.put("hits", metrics.getCacheHits());
+        cache.put("misses", metrics.getCacheMisses());
+        cache.put("revalidated", metrics.getCacheRevalidations());
+        node.put("coalesced", metrics.getCoalesced());
+        final ObjectNode latency = node.putObject("latencyMs");
+        putPercentiles(latency.putObject("roundTrip"), metrics.getTunnelLatency().snapshot());
+        putPercentiles(latency.putObject("total"), metrics.getTotalLatency().snapshot());
+    }
+
+    private static void putPercentiles(final ObjectNode node, final LatencyHistogram.Snapshot snapshot) {
+        node.put("p50", snapshot.percentileNanos(50) / 1_000_000.0);
+        node.put("p90", snapshot.percentileNanos(90) / 1_000_000.0);
+        node.put("p99", snapshot.percentileNanos(99) / 1_000_000.0);
+    }
+
+    private static void writeTraffic(final StringBuilder out, final String prefix, final List<Series> series) {
+        if (series.isEmpty()) {
+            return;
+        }
+        counterFamily(out, prefix + "requests_total", "Requests received for forwarding.", series,
+                s -> s.metrics().getRequests());
+        header(out, prefix + "responses_total", "Responses by status class.", "counter");
+        for (final Series s : series) {
+            for (int statusClass = 1; statusClass <= 5; statusClass++) {
+                sample(out, prefix + "responses_total", join(s.labels(), "code=\"" + statusClass + "xx\""),
+                        s.metrics().getResponses(statusClass));
+            }
+        }
+        counterFamily(out, prefix + "timeouts_total", "Requests answered with 504 because the tunnel client did not respond in time.",
+                series, s -> s.metrics().getTimeouts());
+        counterFamily(out, prefix + "rejected_total", "Requests shed with 503 because the tunnel was saturated.",
+                series, s -> s.metrics().getRejected());
+        counterFamily(out, prefix + "request_bytes_total", "Request body bytes sent to tunnel clients.",
+                series, s -> s.metrics().getBytesIn());
+        counterFamily(out, prefix + "response_bytes_total", "Response body bytes received from tunnel clients.",
+                series, s -> s.metrics().getBytesOut());
+        counterFamily(out, prefix + "cache_hits_total", "Requests answered from the edge cache.",
+                series, s -> s.metrics().getCacheHits());
+        counterFamily(out, prefix + "cache_misses_total", "Cacheable requests forwarded to the tunnel client.",
+                series, s -> s.metrics().getCacheMisses());
+        counterFamily(out, prefix + "cache_revalidations_total", "Stale cache entries the tunnel client confirmed with a 304.",
+                series, s -> s.metrics().getCacheRevalidations());
+        counterFamily(out, prefix + "coalesced_total", "Requests that waited on an identical request instead of being forwarded.",
+                series, s -> s.metrics().getCoalesced());
+
+        header(out, prefix + "requests_in_flight", "Requests forwarded and not yet finished.", "gauge");
+        for (final Series s : series) {
+            sample(out, prefix + "requests_in_flight", s.labels(), s.inFlight());
+        }
+        header(out, prefix + "requests_queued", "Requests waiting for a free slot on a tunnel.", "gauge");
+        for (final Series s : series) {
+            sample(out, prefix + "requests_queued", s.labels(), s.queued());
+        }
+
+        histogram(out, prefix + "round_trip_seconds",
+                "Time from sending a request to the tunnel client until its response head arrives.",
+                series, s -> s.metrics().getTunnelLatency());
+        histogram(out, prefix + "request_duration_seconds",
+                "Time from receiving a request until its response is complete, including queueing.",
+                series, s -> s.metrics().getTotalLatency());
+    }
+
+    private static void histogram(final StringBuilder out, final String name, final String help,
+                                  final List<Series> series, final Function<Series, LatencyHistogram> histogram) {
+        header(out, name, help, "histogram");
+        for (final Series s : series) {
+            final LatencyHistogram.Snapshot snapshot = histogram.apply(s).snapshot();
+            for (int i = 0; i < BUCKET_MICROS.length; i++) {
+                sample(out, name + "_bucket", join(s.labels(), "le=\"" + BUCKET_LABELS[i] + "\""),
+                        snapshot.countBelow(BUCKET_MICROS[i]));
+            }
+            sample(out, name + "_bucket", join(s.labels(), "le=\"+Inf\""), snapshot.getCount());
+            out.append(name).append("_sum");
+            labels(out, s.labels());
+            out.append(' ').append(snapshot.getSumNanos() / 1e9).append('\n');
+            sample(out, name + "_count", s.labels(), snapshot.getCount());
+        }
+    }
+
+    private static void counterFamily(final StringBuilder out, final String name, final String help,
+                                      final List<Series> series, final ToLongFunction<Series> value) {
+        header(out, name, help, "counter");
+        for (final Series s : series) {
+            sample(out, name, s.labels(), value.applyAsLong(s));
+        }
+    }
+
+    private static void counter(final StringBuilder out, final String name, final String help, final long value) {
+        header(out, name, help, "counter");
+        sample(out, name, "", value);
+    }
+
+    private static void gauge(final StringBuilder out, final String name, final String help, final long value) {
+        header(out, name, help, "gauge");
+        sample(out, name, "", value);
+    }
+
+    private static void header(final StringBuilder out, final String name, final String help, final String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(final StringBuilder out, final String name, final String labels, final long value) {
+        out.append(name);
+        labels(out, labels);
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static void labels(final StringBuilder out, final String labels) {
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+    }
+
+    private static String join(final String labels, final String label) {
+        return labels.isEmpty() ? label : labels + "," + label;
+    }
+
+    private static String escape(final String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -1,7 +1,7 @@
 package dev.kcterala.tunnelx.utils;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import dev.kcterala.tunnelx.model.TunnelMessage;
+import dev.kcterala.tunnelx.tunnel.MessageCodec;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import org.slf4j.Logger;
@@ -9,13 +9,11 @@ import org.slf4j.LoggerFactory;
 
 public class ResponseUtils {
 
-    public static ObjectMapper objectMapper = new ObjectMapper();
     public static Logger logger = LoggerFactory.getLogger(ResponseUtils.class);
 
     public static void sendMessage(final ChannelHandlerContext ctx, final TunnelMessage message) {
         try {
-            final String json = objectMapper.writeValueAsString(message);
-            ctx.writeAndFlush(new TextWebSocketFrame(json));
+            ctx.writeAndFlush(new TextWebSocketFrame(MessageCodec.encode(ctx.alloc(), message)));
         } catch (final Exception e) {
             logger.error("Error sending message", e);
         }
@@ -1,108 +1,270 @@
 package dev.kcterala.tunnelx.utils;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import dev.kcterala.tunnelx.ServerConfig;
 import dev.kcterala.tunnelx.tunnel.TunnelManager;
+import dev.kcterala.tunnelx.tunnel.TunnelPool;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
-import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.*;
 import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Pushes tunnel changes to dashboard clients over Server-Sent Events.
+ *
+ * <p>A client gets the full tunnel list once when it connects, as a plain message. After that,
+ * changed subdomains are collected and flushed at most once every
+ * {@link ServerConfig#SSE_MIN_INTERVAL_MILLIS} as a single {@code tunnels} event listing the pools
+ * that were updated and the subdomains that were removed. Each event is encoded once and shared by
+ * every client. A client whose channel is not writable skips events and gets a fresh snapshot when
+ * it catches up; one that stays unwritable for {@link ServerConfig#SSE_MAX_UNWRITABLE_MILLIS} is
+ * disconnected.
+ */
 public class SSEManager {
     private static final Logger logger = LoggerFactory.getLogger(SSEManager.class);
     private static final ObjectMapper objectMapper = new ObjectMapper();
-    private static final Set<ChannelHandlerContext> sseClients = ConcurrentHashMap.newKeySet();
-    private static final ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor();
-    
+    private static final Map<ChannelHandlerContext, Client> sseClients = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService broadcastExecutor =
+            Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("sse-broadcast", true));
+    private static final ByteBuf HEARTBEAT = Unpooled.unreleasableBuffer(
+            Unpooled.copiedBuffer(": heartbeat\n\n", CharsetUtil.UTF_8).asReadOnly());
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("MMM dd, HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+
+    private static final Set<String> changedSubdomains = ConcurrentHashMap.newKeySet();
+    private static final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private static volatile long lastFlushNanos;
+    private static volatile TunnelManager tunnelManager;
+
     static {
         // Send heartbeat every 30 seconds to keep connections alive
-        heartbeatExecutor.scheduleWithFixedDelay(SSEManager::sendHeartbeat, 30, 30, TimeUnit.SECONDS);
+        broadcastExecutor.scheduleWithFixedDelay(SSEManager::sendHeartbeat, 30, 30, TimeUnit.SECONDS);
+    }
+
+    /** Starts following tunnel changes on {@code manager}. */
+    public static void attach(TunnelManager manager) {
+        tunnelManager = manager;
+        manager.addListener(SSEManager::onTunnelChanged);
     }
-    
+
     public static void addClient(ChannelHandlerContext ctx) {
-        sseClients.add(ctx);
-        logger.info("SSE client connected: {}", ctx.channel().remoteAddress());
-        
+        sseClients.put(ctx, new Client());
+        logger.debug("SSE client connected: {}", ctx.channel().remoteAddress());
+
         // Send initial SSE headers
         HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
         response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/event-stream");
         response.headers().set(HttpHeaderNames.CACHE_CONTROL, "no-cache");
         response.headers().set(HttpHeaderNames.CONNECTION, "keep-alive");
         response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
-        
+
         ctx.write(response);
+        ByteBuf snapshot = encodeSnapshot();
+        if (snapshot != null) {
+            // Content rather than a bare buffer, so HTTP/2 streams can carry it too
+            ctx.write(new DefaultHttpContent(snapshot));
+        }
         ctx.flush();
     }
-    
+
     public static void removeClient(ChannelHandlerContext ctx) {
-        sseClients.remove(ctx);
-        logger.info("SSE client disconnected: {}", ctx.channel().remoteAddress());
+        if (sseClients.remove(ctx) != null) {
+            logger.debug("SSE client disconnected: {}", ctx.channel().remoteAddress());
+        }
     }
-    
-    public static void broadcastStats(TunnelManager tunnelManager) {
-        if (sseClients.isEmpty()) return;
-        
+
+    /** Disconnects every client, for a server that is draining. */
+    public static void closeAll() {
+        for (ChannelHandlerContext ctx : sseClients.keySet()) {
+            ctx.close();
+        }
+    }
+
+    private static void onTunnelChanged(String subdomain) {
+        if (sseClients.isEmpty()) {
+            // Nobody to tell; new clients start from a snapshot anyway
+            return;
+        }
+        changedSubdomains.add(subdomain);
+        if (flushScheduled.compareAndSet(false, true)) {
+            long minInterval = TimeUnit.MILLISECONDS.toNanos(ServerConfig.SSE_MIN_INTERVAL_MILLIS);
+            long delay = Math.max(0, lastFlushNanos + minInterval - System.nanoTime());
+            broadcastExecutor.schedule(SSEManager::flushChanges, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static void flushChanges() {
+        // Cleared first, so a change that lands while this flush runs schedules the next one
+        flushScheduled.set(false);
+        lastFlushNanos = System.nanoTime();
+
+        List<String> changed = new ArrayList<>();
+        for (Iterator<String> it = changedSubdomains.iterator(); it.hasNext(); ) {
+            changed.add(it.next());
+            it.remove();
+        }
+        TunnelManager manager = tunnelManager;
+        if (changed.isEmpty() || manager == null) {
+            return;
+        }
+
         try {
-            ObjectNode stats = objectMapper.createObjectNode();
-            stats.put("totalTunnels", tunnelManager.getTotalTunnelCount());
-            stats.put("activeTunnels", tunnelManager.getActiveTunnelCount());
-            stats.put("uptime", tunnelManager.getUptimeSeconds());
-            
-            // Add tunnel details
-            var tunnelsArray = stats.putArray("tunnels");
-            tunnelManager.getActiveTunnels().forEach((subdomain, tunnel) -> {
-                ObjectNode tunnelInfo = objectMapper.createObjectNode();
-                tunnelInfo.put("subdomain", subdomain);
-                tunnelInfo.put("connectedTime", formatTime(tunnel.getConnectedTime()));
-                tunnelsArray.add(tunnelInfo);
-            });
-            
-            String data = "data: " + objectMapper.writeValueAsString(stats) + "\n\n";
-            broadcastToAll(data);
+            ObjectNode delta = statsNode(manager);
+            ArrayNode updated = delta.putArray("updated");
+            ArrayNode removed = delta.putArray("removed");
+            for (String subdomain : changed) {
+                TunnelPool pool = manager.getPool(subdomain);
+                if (pool != null) {
+                    updated.add(tunnelNode(subdomain, pool));
+                } else {
+                    removed.add(subdomain);
+                }
+            }
+            broadcast(encode("tunnels", delta));
         } catch (Exception e) {
-            logger.error("Error broadcasting stats", e);
+            logger.error("Error broadcasting tunnel changes", e);
         }
     }
-    
-    private static void broadcastToAll(String data) {
-        sseClients.removeIf(ctx -> {
-            if (!ctx.channel().isActive()) {
-                return true; // Remove inactive clients
+
+    /** Writes {@code payload} to every client and releases it. Runs on the broadcast thread. */
+    private static void broadcast(ByteBuf payload) {
+        ByteBuf snapshot = null;
+        try {
+            long now = System.nanoTime();
+            for (Iterator<Map.Entry<ChannelHandlerContext, Client>> it = sseClients.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<ChannelHandlerContext, Client> entry = it.next();
+                ChannelHandlerContext ctx = entry.getKey();
+                Client client = entry.getValue();
+                if (!ctx.channel().isActive()) {
+                    it.remove();
+                    continue;
+                }
+
+                if (!ctx.channel().isWritable()) {
+                    // Drop rather than queue behind a reader that is not keeping up
+                    client.stale = true;
+                    if (client.unwritableSince == 0) {
+                        client.unwritableSince = now;
+                    } else if (now - client.unwritableSince
+                            > TimeUnit.MILLISECONDS.toNanos(ServerConfig.SSE_MAX_UNWRITABLE_MILLIS)) {
+                        logger.warn("Dropping slow SSE client: {}", ctx.channel().remoteAddress());
+                        it.remove();
+                        ctx.close();
+                    }
+                    continue;
+                }
+                client.unwritableSince = 0;
+
+                if (client.stale) {
+                    // It missed events, so bring it up to date in one go
+                    if (snapshot == null) {
+                        snapshot = encodeSnapshot();
+                    }
+                    if (snapshot != null) {
+                        ctx.writeAndFlush(new DefaultHttpContent(snapshot.retainedDuplicate()));
+                        client.stale = false;
+                    }
+                } else {
+                    ctx.writeAndFlush(new DefaultHttpContent(payload.retainedDuplicate()));
+                }
             }
-            
-            try {
-                ctx.writeAndFlush(Unpooled.copiedBuffer(data, CharsetUtil.UTF_8));
-                return false; // Keep active clients
-            } catch (Exception e) {
-                logger.warn("Failed to send SSE data to client", e);
-                return true; // Remove clients that failed
+        } finally {
+            payload.release();
+            if (snapshot != null) {
+                snapshot.release();
             }
-        });
+        }
     }
-    
+
     private static void sendHeartbeat() {
         if (sseClients.isEmpty()) return;
-        
+
         // Send SSE comment as heartbeat (comments are ignored by browser but keep connection alive)
-        String heartbeat = ": heartbeat\n\n";
-        broadcastToAll(heartbeat);
+        broadcast(HEARTBEAT);
+    }
+
+    private static ByteBuf encodeSnapshot() {
+        TunnelManager manager = tunnelManager;
+        if (manager == null) {
+            return null;
+        }
+        try {
+            ObjectNode stats = statsNode(manager);
+            ArrayNode tunnelsArray = stats.putArray("tunnels");
+            manager.getActiveTunnels().forEach((subdomain, pool) -> tunnelsArray.add(tunnelNode(subdomain, pool)));
+            return encode(null, stats);
+        } catch (Exception e) {
+            logger.error("Error encoding tunnel snapshot", e);
+            return null;
+        }
     }
-    
+
+    private static ObjectNode statsNode(TunnelManager manager) {
+        ObjectNode stats = objectMapper.createObjectNode();
+        stats.put("totalTunnels", manager.getTotalTunnelCount());
+        stats.put("activeTunnels", manager.getActiveTunnelCount());
+        stats.put("uptime", manager.getUptimeSeconds());
+        return stats;
+    }
+
+    private static ObjectNode tunnelNode(String subdomain, TunnelPool pool) {
+        ObjectNode tunnelInfo = objectMapper.createObjectNode();
+        tunnelInfo.put("subdomain", subdomain);
+        tunnelInfo.put("connectedTime", formatTime(pool.getConnectedTime()));
+        tunnelInfo.put("connections", pool.size());
+        return tunnelInfo;
+    }
+
+    /** Encodes one SSE message straight into a pooled buffer. */
+    private static ByteBuf encode(String event, ObjectNode data) throws IOException {
+        ByteBuf buffer = ByteBufAllocator.DEFAULT.buffer();
+        try {
+            if (event != null) {
+                ByteBufUtil.writeAscii(buffer, "event: " + event + "\n");
+            }
+            ByteBufUtil.writeAscii(buffer, "data: ");
+            // ByteBufOutputStream is also a DataOutput, so pick the stream overload explicitly
+            objectMapper.writeValue((OutputStream) new ByteBufOutputStream(buffer), data);
+            ByteBufUtil.writeAscii(buffer, "\n\n");
+            return buffer;
+        } catch (IOException | RuntimeException e) {
+            buffer.release();
+            throw e;
+        }
+    }
+
     private static String formatTime(long timestamp) {
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("MMM dd, HH:mm:ss")
-                .withZone(ZoneId.systemDefault());
-        return formatter.format(Instant.ofEpochMilli(timestamp));
+        return TIME_FORMAT.format(Instant.ofEpochMilli(timestamp));
+    }
+
+    /** Per-client delivery state, only touched on the broadcast thread. */
+    private static final class Client {
+        private long unwritableSince;
+        private boolean stale;
     }
-}
\ No newline at end of file
+}
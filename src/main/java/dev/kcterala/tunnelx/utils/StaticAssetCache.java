@@ -0,0 +1,248 @@
+package dev.kcterala.tunnelx.utils;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.compression.Brotli;
+import io.netty.handler.codec.compression.BrotliEncoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The static asset tree, read from the classpath once and kept in direct memory.
+ *
+ * <p>Every asset holds its identity bytes plus gzip and, when Brotli is available, br variants
+ * that came out smaller. Each variant has its own strong ETag. Buffers are unreleasable, so
+ * responses can share them through {@link ByteBuf#retainedDuplicate()} without copying.
+ */
+public final class StaticAssetCache {
+    private static final Logger logger = LoggerFactory.getLogger(StaticAssetCache.class);
+
+    /** Variants are only worth keeping when they save at least this much. */
+    private static final double MIN_SAVING = 0.9;
+
+    private final Map<String, Asset> assets;
+
+    private StaticAssetCache(final Map<String, Asset> assets) {
+        this.assets = assets;
+    }
+
+    /** Returns the asset at {@code path} (e.g. {@code /index.html}), or null. */
+    public Asset get(final String path) {
+        return assets.get(path);
+    }
+
+    public int size() {
+        return assets.size();
+    }
+
+    /** One encoding of an asset. */
+    public record Variant(String contentEncoding, String etag, ByteBuf content) {
+    }
+
+    /** A static file with its precompressed variants. */
+    public record Asset(String contentType, Variant identity, Variant gzip, Variant brotli) {
+
+        /** Picks the smallest variant the client accepts. */
+        public Variant select(final String acceptEncoding) {
+            Variant best = identity;
+            if (gzip != null && accepts(acceptEncoding, "gzip")) {
+                best = gzip;
+            }
+            if (brotli != null && brotli.content().readableBytes() < best.content().readableBytes()
+                    && accepts(acceptEncoding, "br")) {
+                best = brotli;
+            }
+            return best;
+        }
+
+        /** Whether any of the entity tags in an {@code If-None-Match} value matches a variant. */
+        public boolean matches(final String ifNoneMatch) {
+            if (ifNoneMatch.trim().equals("*")) {
+                return true;
+            }
+            for (final String tag : ifNoneMatch.split(",")) {
+                String candidate = tag.trim();
+                // If-None-Match uses weak comparison
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if (candidate.equals(identity.etag())
+                        || gzip != null && candidate.equals(gzip.etag())
+                        || brotli != null && candidate.equals(brotli.etag())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean accepts(final String acceptEncoding, final String coding) {
+            if (acceptEncoding == null) {
+                return false;
+            }
+            for (final String entry : acceptEncoding.split(",")) {
+                final String[] parts = entry.split(";");
+                final String name = parts[0].trim();
+                if (!name.equalsIgnoreCase(coding) && !name.equals("*")) {
+                    continue;
+                }
+                for (int i = 1; i < parts.length; i++) {
+                    final String param = parts[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            return Double.parseDouble(param.substring(2)) > 0;
+                        } catch (final NumberFormatException e) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /** Loads every file under the classpath directory {@code root}, e.g. {@code /static/}. */
+    public static StaticAssetCache load(final String root) {
+        final URL url = StaticAssetCache.class.getResource(root);
+        if (url == null) {
+            logger.warn("No static assets found at {}", root);
+            return new StaticAssetCache(Collections.emptyMap());
+        }
+
+        final boolean brotli = Brotli.isAvailable();
+        final Map<String, Asset> assets = new HashMap<>();
+        try {
+            final URI uri = url.toURI();
+            if ("jar".equals(uri.getScheme())) {
+                try (FileSystem fs = FileSystems.newFileSystem(uri, Collections.emptyMap())) {
+                    loadTree(fs.provider().getPath(uri), brotli, assets);
+                }
+            } else {
+                loadTree(Path.of(uri), brotli, assets);
+            }
+        } catch (final Exception e) {
+            throw new IllegalStateException("Could not load static assets from " + root, e);
+        }
+
+        logger.info("Cached {} static assets (brotli {})", assets.size(), brotli ? "enabled" : "unavailable");
+        return new StaticAssetCache(Collections.unmodifiableMap(assets));
+    }
+
+    private static void loadTree(final Path base, final boolean brotli, final Map<String, Asset> assets) throws IOException {
+        final List<Path> files;
+        try (Stream<Path> walk = Files.walk(base)) {
+            files = walk.filter(Files::isRegularFile).toList();
+        }
+        for (final Path file : files) {
+            final String path = "/" + base.relativize(file).toString().replace('\\', '/');
+            final String contentType = StaticFileServer.getContentType(path);
+            assets.put(path, buildAsset(contentType, Files.readAllBytes(file), brotli));
+        }
+    }
+
+    private static Asset buildAsset(final String contentType, final byte[] content, final boolean brotli) {
+        final String hash = hash(content);
+        final Variant identity = new Variant(null, "\"" + hash + "\"", directBuffer(content));
+        if (!isCompressible(contentType)) {
+            return new Asset(contentType, identity, null, null);
+        }
+
+        final byte[] gzipped = gzip(content);
+        final Variant gzip = gzipped.length < content.length * MIN_SAVING
+                ? new Variant("gzip", "\"" + hash + "-gz\"", directBuffer(gzipped))
+                : null;
+
+        Variant br = null;
+        if (brotli) {
+            final byte[] compressed = brotli(content);
+            if (compressed != null && compressed.length < content.length * MIN_SAVING) {
+                br = new Variant("br", "\"" + hash + "-br\"", directBuffer(compressed));
+            }
+        }
+        return new Asset(contentType, identity, gzip, br);
+    }
+
+    private static boolean isCompressible(final String contentType) {
+        return contentType.startsWith("text/")
+                || contentType.startsWith("application/javascript")
+                || contentType.startsWith("application/json")
+                || contentType.startsWith("application/xml")
+                || contentType.startsWith("image/svg")
+                || contentType.startsWith("image/x-icon")
+                || contentType.startsWith("font/ttf");
+    }
+
+    private static ByteBuf directBuffer(final byte[] bytes) {
+        final ByteBuf buffer = PooledByteBufAllocator.DEFAULT.directBuffer(bytes.length, bytes.length);
+        buffer.writeBytes(bytes);
+        // Lives as long as the server, so reference counting only gets in the way
+        return Unpooled.unreleasableBuffer(buffer.asReadOnly());
+    }
+
+    private static byte[] gzip(final byte[] content) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2);
+        try (OutputStream gzip = new GZIPOutputStream(out) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            gzip.write(content);
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] brotli(final byte[] content) {
+        final EmbeddedChannel channel = new EmbeddedChannel(new BrotliEncoder());
+        try {
+            channel.writeOutbound(Unpooled.wrappedBuffer(content));
+            channel.finish();
+            final ByteBuf compressed = Unpooled.buffer();
+            ByteBuf chunk;
+            while ((chunk = channel.readOutbound()) != null) {
+                compressed.writeBytes(chunk);
+                chunk.release();
+            }
+            final byte[] bytes = ByteBufUtil.getBytes(compressed);
+            compressed.release();
+            return bytes;
+        } catch (final Exception e) {
+            logger.debug("Brotli compression failed, serving without a br variant", e);
+            channel.finishAndReleaseAll();
+            return null;
+        }
+    }
+
+    private static String hash(final byte[] content) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest).substring(0, 22);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,22 +1,32 @@
 package dev.kcterala.tunnelx.utils;
 
 import io.netty.buffer.Unpooled;
-import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.*;
 import io.netty.util.CharsetUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.InputStream;
 import java.net.URLConnection;
-import java.nio.file.Paths;
 
 public class StaticFileServer {
     private static final Logger logger = LoggerFactory.getLogger(StaticFileServer.class);
     private static final String STATIC_ROOT = "/static/";
     
-    public static void serveStaticFile(ChannelHandlerContext ctx, String path) {
+    private static final StaticAssetCache CACHE = StaticAssetCache.load(STATIC_ROOT);
+    
+    /** Loads the asset cache now rather than on the first request. */
+    public static void preload() {
+        logger.debug("{} static assets ready", CACHE.size());
+    }
+    
+    public static void serveStaticFile(ChannelHandlerContext ctx, HttpRequest request, String path) {
+        // Query strings do not select a different file
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        
         // Default to index.html for root path or client-side routing
         if (path.equals("/") || !path.contains(".")) {
             path = "/index.html";
@@ -27,63 +37,57 @@ public class StaticFileServer {
             path = "/" + path;
         }
         
-        String resourcePath = STATIC_ROOT + path.substring(1);
+        StaticAssetCache.Asset asset = CACHE.get(path);
+        if (asset != null) {
+            sendAsset(ctx, request, asset, "public, max-age=3600");
+            return;
+        }
         
-        try (InputStream inputStream = StaticFileServer.class.getResourceAsStream(resourcePath)) {
-            if (inputStream == null) {
-                // File not found, serve index.html for client-side routing
-                serveIndexHtml(ctx);
-                return;
-            }
-            
-            byte[] content = inputStream.readAllBytes();
-            String contentType = getContentType(path);
-            
-            FullHttpResponse response = new DefaultFullHttpResponse(
-                HttpVersion.HTTP_1_1,
-                HttpResponseStatus.OK,
-                Unpooled.wrappedBuffer(content)
-            );
-            
-            response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
-            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.length);
-            response.headers().set(HttpHeaderNames.CACHE_CONTROL, "public, max-age=3600");
-            
-            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
-            
-        } catch (Exception e) {
-            logger.error("Error serving static file: " + path, e);
+        // File not found, serve index.html for client-side routing
+        asset = CACHE.get("/index.html");
+        if (asset == null) {
             sendNotFound(ctx);
+            return;
         }
+        sendAsset(ctx, request, asset, null);
     }
     
-    private static void serveIndexHtml(ChannelHandlerContext ctx) {
-        try (InputStream inputStream = StaticFileServer.class.getResourceAsStream(STATIC_ROOT + "index.html")) {
-            if (inputStream == null) {
-                sendNotFound(ctx);
-                return;
+    private static void sendAsset(ChannelHandlerContext ctx, HttpRequest request, StaticAssetCache.Asset asset,
+                                  String cacheControl) {
+        String ifNoneMatch = request.headers().get(HttpHeaderNames.IF_NONE_MATCH);
+        StaticAssetCache.Variant variant = asset.select(request.headers().get(HttpHeaderNames.ACCEPT_ENCODING));
+        boolean notModified = ifNoneMatch != null && asset.matches(ifNoneMatch);
+        
+        // The cached buffers are shared, each response gets its own indices over the same memory
+        FullHttpResponse response = new DefaultFullHttpResponse(
+            HttpVersion.HTTP_1_1,
+            notModified ? HttpResponseStatus.NOT_MODIFIED : HttpResponseStatus.OK,
+            notModified || request.method().equals(HttpMethod.HEAD)
+                ? Unpooled.EMPTY_BUFFER
+                : variant.content().retainedDuplicate()
+        );
+        
+        HttpHeaders headers = response.headers();
+        headers.set(HttpHeaderNames.ETAG, variant.etag());
+        if (asset.gzip() != null || asset.brotli() != null) {
+            headers.set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        }
+        if (cacheControl != null) {
+            headers.set(HttpHeaderNames.CACHE_CONTROL, cacheControl);
+        }
+        // Also sent with 304 and HEAD, where it describes the body a GET would get
+        headers.set(HttpHeaderNames.CONTENT_LENGTH, variant.content().readableBytes());
+        if (!notModified) {
+            headers.set(HttpHeaderNames.CONTENT_TYPE, asset.contentType());
+            if (variant.contentEncoding() != null) {
+                headers.set(HttpHeaderNames.CONTENT_ENCODING, variant.contentEncoding());
             }
-            
-            byte[] content = inputStream.readAllBytes();
-            
-            FullHttpResponse response = new DefaultFullHttpResponse(
-                HttpVersion.HTTP_1_1,
-                HttpResponseStatus.OK,
-                Unpooled.wrappedBuffer(content)
-            );
-            
-            response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=UTF-8");
-            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.length);
-            
-            ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
-            
-        } catch (Exception e) {
-            logger.error("Error serving index.html", e);
-            sendNotFound(ctx);
         }
+        
+        ctx.writeAndFlush(response);
     }
     
-    private static String getContentType(String path) {
+    static String getContentType(String path) {
         String contentType = URLConnection.guessContentTypeFromName(path);
         if (contentType == null) {
             if (path.endsWith(".js")) {
@@ -123,6 +127,6 @@ public class StaticFileServer {
         response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=UTF-8");
         response.headers().set(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
         
-        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        ctx.writeAndFlush(response);
     }
 }
\ No newline at end of file